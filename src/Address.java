@@ -0,0 +1,136 @@
+/*
+ *
+ * A valid city address reduced to the city block it is on.
+ *
+ * Address objects are interned: there is exactly one Address per city block,
+ * created up front by CityMap, so looking up an address string parses it in
+ * place and never allocates. Addresses on the same block are the same object.
+ */
+public final class Address {
+	private final int avenue;
+	private final int street;
+	private final int block;  // avenue and street packed into one int, see CityMap.packBlock
+	private final int index;  // block index, see CityMap.getBlockIndex
+
+	// Created by CityMap only
+	Address(int avenue, int street, int index) {
+		this.avenue = avenue;
+		this.street = street;
+		this.block = CityMap.packBlock(avenue, street);
+		this.index = index;
+	}
+
+	public int getAvenue() {
+		return avenue;
+	}
+
+	public int getStreet() {
+		return street;
+	}
+
+	public int getBlock() {
+		return block;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	// The zone in the zones the city is configured with (see CityMap.getZones),
+	// a system that was rezoned looks zones up in its own
+	public int getZone() {
+		return CityMap.getZoneOfBlockIndex(index);
+	}
+
+	/*
+	 * Look up the city block of an address string, e.g. "34 4th Street".
+	 * Returns null if the address is not valid (see CityMap for the rules).
+	 * The string is scanned in place instead of being split into parts.
+	 */
+	public static Address of(String address) {
+		if (address == null)
+			return null;
+
+		int len = address.length();
+		// Find the 3 parts, separated by white space
+		int start0 = -1, end0 = -1, start1 = -1, end1 = -1, start2 = -1, end2 = -1;
+		int numParts = 0;
+		int i = 0;
+		while (i < len) {
+			while (i < len && Character.isWhitespace(address.charAt(i)))
+				i++;
+			if (i == len)
+				break;
+			int start = i;
+			while (i < len && !Character.isWhitespace(address.charAt(i)))
+				i++;
+			if (numParts == 0) {
+				start0 = start;
+				end0 = i;
+			} else if (numParts == 1) {
+				start1 = start;
+				end1 = i;
+			} else if (numParts == 2) {
+				start2 = start;
+				end2 = i;
+			}
+			numParts++;
+		}
+		if (numParts != 3)
+			return null;
+
+		// "street" or "avenue" check, which is it?
+		boolean streetType;
+		if (end2 - start2 != 6)
+			return null;
+		if (address.regionMatches(true, start2, "street", 0, 6))
+			streetType = true;
+		else if (address.regionMatches(true, start2, "avenue", 0, 6))
+			streetType = false;
+		else
+			return null;
+
+		// All digits and at least 2 of them, all digits but the last give the avenue or street
+		int num1 = parseNumber(address, start0, end0 - 1);
+		if (num1 <= 0 || Character.digit(address.charAt(end0 - 1), 10) < 0)
+			return null;
+
+		// Must be 'n'th or 1st or 2nd or 3rd (21st, 22nd... for a larger city)
+		if (end1 - start1 < 3)
+			return null;
+		int num2 = parseNumber(address, start1, end1 - 2);
+		if (num2 <= 0)
+			return null;
+		char c1 = address.charAt(end1 - 2);
+		char c2 = address.charAt(end1 - 1);
+		boolean th = c1 == 't' && c2 == 'h';
+		int last = num2 % 10;
+		boolean teen = num2 % 100 / 10 == 1;
+		if (!th && !(last == 1 && !teen && c1 == 's' && c2 == 't') && !(last == 2 && !teen && c1 == 'n' && c2 == 'd')
+				&& !(last == 3 && !teen && c1 == 'r' && c2 == 'd'))
+			return null;
+
+		if (streetType)
+			return CityMap.getAddress(num1, num2);
+		return CityMap.getAddress(num2, num1);
+	}
+
+	// Value of the decimal number from start to end (excluded), 0 if it is empty, does not start
+	// with 1 to 9 or is not a number. Numbers larger than a city can be are cut to CityMap.MAX_SIZE + 1
+	private static int parseNumber(String s, int start, int end) {
+		if (start >= end || s.charAt(start) == '0')
+			return 0;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(s.charAt(i), 10);
+			if (digit < 0)
+				return 0;
+			value = Math.min(value * 10 + digit, CityMap.MAX_SIZE + 1);
+		}
+		return value;
+	}
+
+	public String toString() {
+		return "(" + avenue + ", " + street + ")";
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ * One ride or delivery request of a batch, see TMUberSystemManager.requestServices
+ */
+public class BatchRequest
+{
+  private String type;  // TMUberRide.TYPENAME or TMUberDelivery.TYPENAME
+  private String accountId;
+  private String from;
+  private String to;
+  private String restaurant;
+  private String foodOrderId;
+  
+  private BatchRequest(String type, String accountId, String from, String to, String restaurant, String foodOrderId)
+  {
+    this.type = type;
+    this.accountId = accountId;
+    this.from = from;
+    this.to = to;
+    this.restaurant = restaurant;
+    this.foodOrderId = foodOrderId;
+  }
+  
+  // A ride request
+  public static BatchRequest ride(String accountId, String from, String to)
+  {
+    return new BatchRequest(TMUberRide.TYPENAME, accountId, from, to, null, null);
+  }
+  
+  // A food delivery request
+  public static BatchRequest delivery(String accountId, String from, String to, String restaurant, String foodOrderId)
+  {
+    return new BatchRequest(TMUberDelivery.TYPENAME, accountId, from, to, restaurant, foodOrderId);
+  }
+  
+  // Getters
+  public String getType()
+  {
+    return type;
+  }
+  public boolean isRide()
+  {
+    return type.equals(TMUberRide.TYPENAME);
+  }
+  public String getAccountId()
+  {
+    return accountId;
+  }
+  public String getFrom()
+  {
+    return from;
+  }
+  public String getTo()
+  {
+    return to;
+  }
+  public String getRestaurant()
+  {
+    return restaurant;
+  }
+  public String getFoodOrderId()
+  {
+    return foodOrderId;
+  }
+}
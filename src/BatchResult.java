@@ -0,0 +1,45 @@
+/*
+ *
+ * Outcome of one request of a batch, see TMUberSystemManager.requestServices
+ * 
+ * Either the request was queued and has a request id, or it was rejected and
+ * holds the exception that requestRide/requestDelivery would have thrown.
+ */
+public class BatchResult
+{
+  private long requestId;
+  private RuntimeException error;
+  
+  // The request was queued
+  public BatchResult(long requestId)
+  {
+    this.requestId = requestId;
+    this.error = null;
+  }
+  
+  // The request was rejected
+  public BatchResult(RuntimeException error)
+  {
+    this.requestId = -1;
+    this.error = error;
+  }
+  
+  public boolean isAccepted()
+  {
+    return error == null;
+  }
+  // Request id of the queued request, -1 if rejected
+  public long getRequestId()
+  {
+    return requestId;
+  }
+  // Why the request was rejected, null if accepted
+  public RuntimeException getError()
+  {
+    return error;
+  }
+  public String getMessage()
+  {
+    return error == null ? null : error.getMessage();
+  }
+}
@@ -1,7 +1,4 @@
-import java.util.Arrays;
-import java.util.Scanner;
-
-// The city consists of a grid of 9 X 9 City Blocks
+// The default city consists of a grid of 9 X 9 City Blocks
 
 // Streets are west-east (1st street to 9th street)
 // Avenues are south-north (1st avenue to 9th avenue)
@@ -22,162 +19,405 @@ import java.util.Scanner;
 // in this example it is city block (7, 5) (7th avenue and 5th street)
 //
 // Distance in city blocks between (3, 4) and (7, 5) is then == 5 city blocks
+//
+// A larger city can be configured (see configure). Residence numbers then have more digits:
+// all the digits but the last one give the avenue or street, e.g. "1234 56th Street" is on
+// city block (123, 56), and the street or avenue can be any 'n'th, e.g. 21st or 112th.
+//
+// A city has at most MAX_BLOCKS blocks, e.g. 1024 x 1024, and at most MAX_SIZE avenues or
+// streets, e.g. 65535 x 16. Everything is kept per block up front: the interned Address
+// (about 36 bytes), the zone of the block in each Zones (4 bytes) and a bucket of the
+// DriverPool of each system (about 36 bytes), so about 80 MB for the largest city. Matching
+// queued requests, rezoning and checking whether to rebalance go through every block: on the
+// largest city a matching round takes about 15 ms and a rezone about 200 ms.
 
 public class CityMap {
-	// Checks for string consisting of all digits
-	// An easier solution would use String method matches()
-	private static boolean allDigits(String s) {
-		for (int i = 0; i < s.length(); i++)
-			if (!Character.isDigit(s.charAt(i)))
-				return false;
-		return true;
-	}
-
-	// Get all parts of address string
-	// An easier solution would use String method split()
-	private static String[] getParts(String address) {
-		String parts[] = new String[3];
-
-		if (address == null || address.length() == 0) {
-			parts = new String[0];
-			return parts;
+	// Size of the default city grid, largest number of avenues or streets (a packed block keeps
+	// 16 bits for each) and largest number of blocks (the tables kept per block, see above)
+	public static final int DEFAULT_AVENUES = 9;
+	public static final int DEFAULT_STREETS = 9;
+	public static final int MAX_SIZE = 0xFFFF;
+	public static final int MAX_BLOCKS = 1 << 20;
+
+	/*
+	 * How the city grid is split in zones. Every zone is a rectangle of blocks,
+	 * which makes the distance between two zones easy to compute. Zones never
+	 * change once built: the city is configured with the zones every new
+	 * TMUberSystemManager starts with (see getZones), and a system that is
+	 * rezoned replaces its own Zones as a whole (see balancedZones), without
+	 * changing the zones of the city or of any other system.
+	 */
+	public static final class Zones {
+		private final int streets;
+		private final int[] zoneOfBlock; // zone by block index
+		private final int[] zoneBounds;  // per zone: first avenue, last avenue, first street, last street
+
+		private Zones(int avenues, int streets, int[] zoneBounds) {
+			this.streets = streets;
+			this.zoneBounds = zoneBounds;
+			zoneOfBlock = new int[avenues * streets];
+			for (int zone = 0; zone < zoneBounds.length / 4; zone++) {
+				for (int avenue = zoneBounds[4 * zone]; avenue <= zoneBounds[4 * zone + 1]; avenue++) {
+					for (int street = zoneBounds[4 * zone + 2]; street <= zoneBounds[4 * zone + 3]; street++)
+						zoneOfBlock[(avenue - 1) * streets + street - 1] = zone;
+				}
+			}
 		}
 
-		int numParts = 0;
-		Scanner sc = new Scanner(address);
-		while (sc.hasNext()) {
-			if (numParts >= 3)
-				parts = Arrays.copyOf(parts, parts.length + 1);
+		public int getNumZones() {
+			return zoneBounds.length / 4;
+		}
 
-			parts[numParts] = sc.next();
-			numParts++;
+		// Zone of a looked up address, -1 if the address is null (not valid)
+		public int getZone(Address address) {
+			return address == null ? -1 : zoneOfBlock[address.getIndex()];
 		}
-		if (numParts == 1)
-			parts = Arrays.copyOf(parts, 1);
-		else if (numParts == 2)
-			parts = Arrays.copyOf(parts, 2);
-		return parts;
-	}
 
-	// Checks for a valid address
-	public static boolean validAddress(String address) {
-		int[] block = { -1, -1 };
+		// Zone of an address, -1 if the address is not valid
+		public int getZone(String address) {
+			return getZone(Address.of(address));
+		}
 
-		// String[] parts = address.split(" ");
-		String[] parts = getParts(address);
+		// Zone of a block index (see getBlockIndex)
+		public int getZoneOfBlockIndex(int blockIndex) {
+			return zoneOfBlock[blockIndex];
+		}
 
-		if (parts.length != 3)
-			return false;
+		// Zone of a city block, the block must be in the city
+		int getZone(int avenue, int street) {
+			return zoneOfBlock[(avenue - 1) * streets + street - 1];
+		}
 
-		boolean streetType = false;
+		// Distance in city blocks between two zones: the smallest distance between a block of one
+		// and a block of the other, e.g. 0 for the same zone and 1 for zones sharing a border
+		public int getZoneDistance(int fromZone, int toZone) {
+			int[] bounds = zoneBounds;
+			int from = 4 * fromZone;
+			int to = 4 * toZone;
+			int avenues = Math.max(0, Math.max(bounds[to] - bounds[from + 1], bounds[from] - bounds[to + 1]));
+			int streets = Math.max(0, Math.max(bounds[to + 2] - bounds[from + 3], bounds[from + 2] - bounds[to + 3]));
+			return avenues + streets;
+		}
+	}
 
-		// "street" or "avenue" check
-		if (!parts[2].equalsIgnoreCase("street") && !parts[2].equalsIgnoreCase("avenue"))
-			return false;
-		// which is it?
-		if (parts[2].equalsIgnoreCase("street"))
-			streetType = true;
+	/*
+	 * The city grid and the zones it is configured with. A layout never changes
+	 * once built, configuring the city replaces it as a whole, so a lookup
+	 * always sees one consistent layout.
+	 */
+	private static final class Layout {
+		final int avenues;
+		final int streets;
+		final Address[] addresses; // interned addresses by block index
+		final Zones zones;
+
+		Layout(int avenues, int streets, Address[] addresses, int[] zoneBounds) {
+			this.avenues = avenues;
+			this.streets = streets;
+			this.addresses = addresses;
+			zones = new Zones(avenues, streets, zoneBounds);
+		}
+	}
 
-		// All digits and digit count == 2
-		if (!allDigits(parts[0]) || parts[0].length() != 2)
-			return false;
+	private static volatile Layout layout;
 
-		// Get first digit of street number
-		int num1 = Integer.parseInt(parts[0]) / 10;
-		if (num1 == 0)
-			return false;
+	static {
+		reset();
+	}
 
-		// Must be 'n'th or 1st or 2nd or 3rd
-		String suffix = parts[1].substring(1);
-		if (parts[1].length() != 3)
-			return false;
+	/*
+	 * Go back to the default city of 9 x 9 blocks in 4 zones:
+	 * 
+	 * Zone 0 extends from 1st avenue to 5th avenue and 6th to 9th street. 
+	 * Zone 1 extends from 6th avenue to 9th avenue and 6th to 9th street. 
+	 * Zone 2 extends from 6th avenue to 9th avenue and 1st to 5th street. 
+	 * Zone 3 extends from 1st avenue to 5th avenue and 1st to 5th street. 
+	 */
+	public static void reset() {
+		setLayout(DEFAULT_AVENUES, DEFAULT_STREETS, new int[] { 1, 5, 6, 9, 6, 9, 6, 9, 6, 9, 1, 5, 1, 5, 1, 5 });
+	}
+
+	/*
+	 * Make the city avenues x streets blocks, split in zonesAcross x zonesDown
+	 * zones of (about) the same size. Zones are numbered from the south west
+	 * corner, along the streets first: zone = row * zonesAcross + column.
+	 *
+	 * The city should be configured before any TMUberSystemManager is created,
+	 * the addresses looked up before belong to the old city.
+	 */
+	public static void configure(int avenues, int streets, int zonesAcross, int zonesDown) {
+		checkSize(avenues, streets);
+		if (zonesAcross < 1 || zonesAcross > avenues || zonesDown < 1 || zonesDown > streets)
+			throw new IllegalArgumentException("Invalid number of zones " + zonesAcross + " x " + zonesDown);
+		int[] bounds = new int[4 * zonesAcross * zonesDown];
+		for (int row = 0; row < zonesDown; row++) {
+			for (int column = 0; column < zonesAcross; column++) {
+				int zone = row * zonesAcross + column;
+				bounds[4 * zone] = column * avenues / zonesAcross + 1;
+				bounds[4 * zone + 1] = (column + 1) * avenues / zonesAcross;
+				bounds[4 * zone + 2] = row * streets / zonesDown + 1;
+				bounds[4 * zone + 3] = (row + 1) * streets / zonesDown;
+			}
+		}
+		setLayout(avenues, streets, bounds);
+	}
 
-		if (!suffix.equals("th") && !parts[1].equals("1st") && !parts[1].equals("2nd") && !parts[1].equals("3rd"))
-			return false;
+	/*
+	 * Make the city avenues x streets blocks, split in numZones zones that carry
+	 * about the same load. blockWeights gives the load of each block by block
+	 * index (e.g. the number of requests seen there), null to balance the number
+	 * of blocks. The city is cut in two along its longer side where the load is
+	 * shared in proportion of the zones on each side, then each side is cut the
+	 * same way (a k-d split) until there is one zone per part.
+	 *
+	 * Like configure, this should be called before any TMUberSystemManager is created.
+	 */
+	public static void configureBalanced(int avenues, int streets, int numZones, long[] blockWeights) {
+		checkSize(avenues, streets);
+		setLayout(avenues, streets, balancedBounds(avenues, streets, numZones, blockWeights));
+	}
 
-		String digitStr = parts[1].substring(0, 1);
-		if (!allDigits(digitStr))
-			return false;
-		int num2 = Integer.parseInt(digitStr);
-		if (num2 == 0)
-			return false;
-		if (streetType) {
-			block[0] = num1;
-			block[1] = num2;
+	/*
+	 * Split the city in numZones zones balanced on blockWeights like
+	 * configureBalanced, without changing the zones of the city: the new zones
+	 * are returned, e.g. for TMUberSystemManager.rezone to move the queued
+	 * requests of one system to them.
+	 */
+	public static Zones balancedZones(int numZones, long[] blockWeights) {
+		Layout current = layout;
+		return new Zones(current.avenues, current.streets, balancedBounds(current.avenues, current.streets, numZones, blockWeights));
+	}
 
+	// Bounds of numZones zones balanced on blockWeights, see configureBalanced
+	private static int[] balancedBounds(int avenues, int streets, int numZones, long[] blockWeights) {
+		if (numZones < 1 || numZones > avenues * streets)
+			throw new IllegalArgumentException("Invalid number of zones " + numZones);
+		if (blockWeights != null && blockWeights.length != avenues * streets)
+			throw new IllegalArgumentException("Expected " + avenues * streets + " block weights, got " + blockWeights.length);
+		// Prefix sums of the weights, so the weight of any rectangle of blocks is O(1)
+		long[][] sums = new long[avenues + 1][streets + 1];
+		for (int avenue = 1; avenue <= avenues; avenue++) {
+			for (int street = 1; street <= streets; street++) {
+				long weight = blockWeights == null ? 1 : blockWeights[(avenue - 1) * streets + street - 1];
+				if (weight < 0)
+					throw new IllegalArgumentException("Negative block weight " + weight);
+				sums[avenue][street] = weight + sums[avenue - 1][street] + sums[avenue][street - 1] - sums[avenue - 1][street - 1];
+			}
+		}
+		int[] bounds = new int[4 * numZones];
+		split(sums, 1, avenues, 1, streets, numZones, bounds, 0);
+		return bounds;
+	}
+
+	// Split a rectangle of blocks in numZones zones, stored in bounds from zone firstZone on
+	private static void split(long[][] sums, int minAvenue, int maxAvenue, int minStreet, int maxStreet, int numZones, int[] bounds,
+			int firstZone) {
+		if (numZones == 1) {
+			bounds[4 * firstZone] = minAvenue;
+			bounds[4 * firstZone + 1] = maxAvenue;
+			bounds[4 * firstZone + 2] = minStreet;
+			bounds[4 * firstZone + 3] = maxStreet;
+			return;
+		}
+		int width = maxAvenue - minAvenue + 1;
+		int height = maxStreet - minStreet + 1;
+		boolean alongAvenues = width >= height;
+		int length = alongAvenues ? width : height;   // number of lines the cut can be after
+		int across = alongAvenues ? height : width;
+		long total = weight(sums, minAvenue, maxAvenue, minStreet, maxStreet);
+		// For each cut, the side before it gets the number of zones closest to its share of the
+		// load (or of the area if there is no load at all), but each side needs one block per zone.
+		// The cut where that share is best met wins, the most even split of the zones on a tie
+		int best = -1, bestZones = 0;
+		long bestError = Long.MAX_VALUE;
+		int bestBalance = Integer.MAX_VALUE;
+		for (int cut = 1; cut < length; cut++) {
+			long weight1 = alongAvenues ? weight(sums, minAvenue, minAvenue + cut - 1, minStreet, maxStreet)
+					: weight(sums, minAvenue, maxAvenue, minStreet, minStreet + cut - 1);
+			long all = total;
+			if (total == 0) {
+				weight1 = cut;
+				all = length;
+			}
+			int fewest = Math.max(1, numZones - (length - cut) * across);
+			int most = Math.min(numZones - 1, cut * across);
+			if (fewest > most)
+				continue;
+			int zones1 = (int) Math.max(fewest, Math.min(most, Math.round((double) weight1 * numZones / all)));
+			long error = Math.abs(weight1 * numZones - all * zones1);
+			int balance = Math.abs(2 * zones1 - numZones);
+			if (error < bestError || (error == bestError && balance < bestBalance)) {
+				best = cut;
+				bestZones = zones1;
+				bestError = error;
+				bestBalance = balance;
+			}
+		}
+		int zones1 = bestZones;
+		int zones2 = numZones - zones1;
+		if (alongAvenues) {
+			split(sums, minAvenue, minAvenue + best - 1, minStreet, maxStreet, zones1, bounds, firstZone);
+			split(sums, minAvenue + best, maxAvenue, minStreet, maxStreet, zones2, bounds, firstZone + zones1);
 		} else {
-			block[0] = num2;
-			block[1] = num1;
+			split(sums, minAvenue, maxAvenue, minStreet, minStreet + best - 1, zones1, bounds, firstZone);
+			split(sums, minAvenue, maxAvenue, minStreet + best, maxStreet, zones2, bounds, firstZone + zones1);
+		}
+	}
+
+	private static long weight(long[][] sums, int minAvenue, int maxAvenue, int minStreet, int maxStreet) {
+		return sums[maxAvenue][maxStreet] - sums[minAvenue - 1][maxStreet] - sums[maxAvenue][minStreet - 1]
+				+ sums[minAvenue - 1][minStreet - 1];
+	}
+
+	private static void checkSize(int avenues, int streets) {
+		if (avenues < 1 || avenues > MAX_SIZE || streets < 1 || streets > MAX_SIZE || (long) avenues * streets > MAX_BLOCKS)
+			throw new IllegalArgumentException("Invalid city size " + avenues + " x " + streets + ", at most " + MAX_SIZE
+					+ " avenues or streets and " + MAX_BLOCKS + " blocks");
+	}
+
+	private static void setLayout(int avenues, int streets, int[] zoneBounds) {
+		Address[] addresses = new Address[avenues * streets];
+		for (int avenue = 1; avenue <= avenues; avenue++) {
+			for (int street = 1; street <= streets; street++)
+				addresses[(avenue - 1) * streets + street - 1] = new Address(avenue, street, (avenue - 1) * streets + street - 1);
 		}
-		return true;
+		layout = new Layout(avenues, streets, addresses, zoneBounds);
+	}
+
+	public static int getAvenues() {
+		return layout.avenues;
+	}
+
+	public static int getStreets() {
+		return layout.streets;
+	}
+
+	public static int getNumBlocks() {
+		Layout current = layout;
+		return current.avenues * current.streets;
+	}
+
+	// The zones the city is configured with, the zones of a new TMUberSystemManager
+	public static Zones getZones() {
+		return layout.zones;
+	}
+
+	// Number of zones the city is configured with, and the zone lookups below: a system
+	// that was rezoned has its own zones (see TMUberSystemManager.getZones)
+	public static int getNumZones() {
+		return layout.zones.getNumZones();
+	}
+
+	// The interned address of a city block, null if the block is outside of the city
+	static Address getAddress(int avenue, int street) {
+		Layout current = layout;
+		if (avenue < 1 || avenue > current.avenues || street < 1 || street > current.streets)
+			return null;
+		return current.addresses[(avenue - 1) * current.streets + street - 1];
+	}
+
+	// Addresses are looked up in the table of interned Address objects (one per city block),
+	// so an address string is not split into parts on every call
+
+	// Look up the city block of an address, null if the address is not valid
+	public static Address getAddress(String address) {
+		return Address.of(address);
+	}
+
+	// Checks for a valid address
+	public static boolean validAddress(String address) {
+		return Address.of(address) != null;
 	}
 
 	// Computes the city block from address string
 	public static int[] getCityBlock(String address) {
 		int[] block = { -1, -1 };
-		boolean streetType = false;
+		Address addr = Address.of(address);
+		if (addr != null) {
+			block[0] = addr.getAvenue();
+			block[1] = addr.getStreet();
+		}
+		return block;
+	}
 
-		// String[] parts = address.split(" ");
-		String[] parts = getParts(address);
+	// Computes the packed city block (see packBlock) from address string, -1 if not valid
+	public static int getPackedBlock(String address) {
+		Address addr = Address.of(address);
+		if (addr == null)
+			return -1;
+		return addr.getBlock();
+	}
 
-		if (parts[2].equalsIgnoreCase("street"))
-			streetType = true;
+	// A city block packed into a single int: avenue in the high 16 bits, street in the low 16 bits
+	// Packed blocks let distance and zone be computed without allocating int[] pairs
+	public static int packBlock(int avenue, int street) {
+		return (avenue << 16) | street;
+	}
 
-		// Get first digit of street number
-		int num1 = Integer.parseInt(parts[0]) / 10;
-		int num2 = Integer.parseInt(parts[1].substring(0, 1));
-		if (streetType) {
-			block[0] = num1;
-			block[1] = num2;
-		} else {
-			block[0] = num2;
-			block[1] = num1;
-		}
-		return block;
+	public static int getAvenue(int block) {
+		return block >>> 16;
+	}
+
+	public static int getStreet(int block) {
+		return block & 0xFFFF;
+	}
+
+	// Index of a packed city block from 0 to getNumBlocks() - 1, e.g. to keep something per block in an array
+	public static int getBlockIndex(int block) {
+		return (getAvenue(block) - 1) * layout.streets + getStreet(block) - 1;
+	}
+
+	// Packed city block of a block index, see getBlockIndex
+	public static int getBlock(int blockIndex) {
+		int streets = layout.streets;
+		return packBlock(blockIndex / streets + 1, blockIndex % streets + 1);
 	}
 
 	// Calculates the distance in city blocks between from address and to address
 	public static int getDistance(String from, String to) {
-		int[] fromblock = { 0, 0 };
-		int[] toblock = { 0, 0 };
+		return getDistance(Address.of(from), Address.of(to));
+	}
 
-		if (validAddress(from) && validAddress(to)) {
-			fromblock = getCityBlock(from);
-			toblock = getCityBlock(to);
-		}
-		return Math.abs(toblock[0] - fromblock[0]) + Math.abs(toblock[1] - fromblock[1]);
+	// Distance in city blocks between two looked up addresses, 0 if either one is not valid
+	public static int getDistance(Address from, Address to) {
+		if (from == null || to == null)
+			return 0;
+		return getDistance(from.getBlock(), to.getBlock());
 	}
 
-	/*
-	 * 34 4th Street
-	 * 
-	 * Zone 0 extends from 1st avenue to 5th avenue and 6th to 9th street. 
-	 * Zone 1 extends from 6th avenue to 9th avenue and 6th to 9th street. 
-	 * Zone 2 extends from 6th avenue to 9th avenue and 1st to 5th street. 
-	 * Zone 3 extends from 1st avenue to 5th avenue and 1st to 5th street. 
-	 * Add a static method to class CityMap called int getCityZone(String address) 
-	 * that returns the zone given a valid address. Return -1 if the address is not valid.
-	 */
+	// Distance in city blocks between two packed blocks
+	public static int getDistance(int fromBlock, int toBlock) {
+		return Math.abs(getAvenue(toBlock) - getAvenue(fromBlock)) + Math.abs(getStreet(toBlock) - getStreet(fromBlock));
+	}
+
+	// Returns the zone given a valid address. Return -1 if the address is not valid.
 	public static int getCityZone(String address) {
-		int[] addressblock = { 0, 0 };
-
-		int zone = -1;
-
-		if (validAddress(address)) {
-
-			addressblock = getCityBlock(address);
-			
-			if ((addressblock[0] >= 1 && addressblock[0] <= 5) && (addressblock[1] >= 1 && addressblock[1] <= 5)) {
-				zone = 3;
-			} else if ((addressblock[0] >= 1 && addressblock[0] <= 5) && (addressblock[1] >= 6 && addressblock[1] <= 9)) {
-				zone = 0;
-			} else if ((addressblock[0] >= 6 && addressblock[0] <= 9) && (addressblock[1] >= 1 && addressblock[1] <= 5)) {
-				zone = 2;
-			}  else if ((addressblock[0] >= 6 && addressblock[0] <= 9) &&(addressblock[1] >= 6 && addressblock[1] <= 9)) {
-				zone = 1;
-			}
-		}
+		Address addr = Address.of(address);
+		if (addr == null)
+			return -1;
+		return addr.getZone();
+	}
+
+	// Distance in city blocks between two zones, see Zones.getZoneDistance
+	public static int getZoneDistance(int fromZone, int toZone) {
+		return layout.zones.getZoneDistance(fromZone, toZone);
+	}
+
+	// Zone of a block index (see getBlockIndex)
+	public static int getZoneOfBlockIndex(int blockIndex) {
+		return layout.zones.getZoneOfBlockIndex(blockIndex);
+	}
+
+	// Zone of a packed city block, -1 if the block is outside of the city
+	public static int getCityZone(int block) {
+		return getCityZone(getAvenue(block), getStreet(block));
+	}
 
-		return zone;
+	// Zone of a city block, -1 if the block is outside of the city
+	public static int getCityZone(int avenue, int street) {
+		Layout current = layout;
+		if (avenue < 1 || avenue > current.avenues || street < 1 || street > current.streets)
+			return -1;
+		return current.zones.getZone(avenue, street);
 	}
 }
@@ -4,96 +4,182 @@
  */
 public class Driver
 {
-  private String id;
-  private String name;
-  private String carModel;
-  private String licensePlate;
-  private double wallet;
-  private String type;
+  // A registered driver is a row of a DriverFleet, this is only a view of it
+  private final DriverFleet fleet;
+  private final int index;
+  // A new driver keeps its fields here until it is registered, TMUberSystemManager
+  // then copies it in its fleet. null for a row of a fleet
+  private final Fields fields;
   
   public static enum Status {AVAILABLE, DRIVING};
-  private Status status;
-  private TMUberService tmuberService;
-  private String address;
-  private int zone;
+  
+  // The fields of a driver that is not in a fleet, volatile like the columns of a fleet.
+  // The object is also the lock of the driver
+  private static final class Fields
+  {
+    volatile String id;
+    volatile String name;
+    volatile String carModel;
+    volatile String licensePlate;
+    volatile String type = "";
+    volatile String address;
+    volatile int zone;
+    volatile long wallet;
+    volatile Status status = Status.AVAILABLE;
+    volatile TMUberService tmuberService;
+  }
   
   public Driver(String id, String name, String carModel, String licensePlate, String address)
   {
-    this.id = id;
-    this.name = name;
-    this.carModel = carModel;
-    this.licensePlate = licensePlate;
-    this.status = Status.AVAILABLE;
-    this.wallet = 0;
-    this.type = "";
-    this.address = address;
-    this.zone = CityMap.getCityZone(address);
+    this.fleet = null;
+    this.index = -1;
+    this.fields = new Fields();
+    fields.id = id;
+    fields.name = name;
+    fields.carModel = carModel;
+    fields.licensePlate = licensePlate;
+    fields.address = address;
+    fields.zone = CityMap.getCityZone(address);
+  }
+  // The driver at an index of a fleet
+  Driver(DriverFleet fleet, int index)
+  {
+    this.fleet = fleet;
+    this.index = index;
+    this.fields = null;
   }
   // Print Information about a driver
   public void printInfo()
   {
-    System.out.printf("Id: %-3s Name: %-15s Car Model: %-15s License Plate: %-10s Address: %-15s Zone: %-15s Wallet: %2.2f Status: %-10s ", 
-        id, name, carModel, licensePlate, address, zone, wallet, status);
+    System.out.printf("Id: %-3s Name: %-15s Car Model: %-15s License Plate: %-10s Address: %-15s Zone: %-15s Wallet: %s Status: %-10s ", 
+        getId(), getName(), getCarModel(), getLicensePlate(), getAddress(), getZone(), Money.format(getWallet()), getStatus());
+  }
+  
+  // The fleet of the driver, null if it is not registered
+  DriverFleet getFleet()
+  {
+    return fleet;
+  }
+  int getIndex()
+  {
+    return index;
+  }
+  // Lock of the driver, held to change its status or wallet
+  Object lock()
+  {
+    if (fields != null)
+      return fields;
+    return fleet.lock(index);
   }
   
   // Getters and Setters
   public String getType()
   {
-    return type;
+    if (fields != null)
+      return fields.type;
+    return fleet.getType(index);
   }
   public void setType(String type)
   {
-    this.type = type;
+    if (fields != null)
+      fields.type = type;
+    else
+      fleet.setType(index, type);
   }
   public String getId()
   {
-    return id;
+    if (fields != null)
+      return fields.id;
+    return fleet.getId(index);
   }
   public void setId(String id)
   {
-    this.id = id;
+    if (fields != null)
+      fields.id = id;
+    else
+      fleet.setId(index, id);
   }
   public String getName()
   {
-    return name;
+    if (fields != null)
+      return fields.name;
+    return fleet.getName(index);
   }
   public void setName(String name)
   {
-    this.name = name;
+    if (fields != null)
+      fields.name = name;
+    else
+      fleet.setName(index, name);
   }
   public String getCarModel()
   {
-    return carModel;
+    if (fields != null)
+      return fields.carModel;
+    return fleet.getCarModel(index);
   }
   public void setCarModel(String carModel)
   {
-    this.carModel = carModel;
+    if (fields != null)
+      fields.carModel = carModel;
+    else
+      fleet.setCarModel(index, carModel);
   }
   public String getLicensePlate()
   {
-    return licensePlate;
+    if (fields != null)
+      return fields.licensePlate;
+    return fleet.getLicensePlate(index);
   }
   public void setLicensePlate(String licensePlate)
   {
-    this.licensePlate = licensePlate;
+    if (fields != null)
+      fields.licensePlate = licensePlate;
+    else
+      fleet.setLicensePlate(index, licensePlate);
   }
   public Status getStatus()
   {
-    return status;
+    if (fields != null)
+      return fields.status;
+    return fleet.getStatus(index);
   }
   public void setStatus(Status status)
   {
-    this.status = status;
+    if (fields != null)
+      fields.status = status;
+    else
+      fleet.setStatus(index, status);
+  }
+  /*
+   * Atomically change the status if it is currently the expected one.
+   * Returns false (and leaves the status alone) if another thread changed it first.
+   */
+  public boolean compareAndSetStatus(Status expected, Status status)
+  {
+    if (fields == null)
+      return fleet.compareAndSetStatus(index, expected, status);
+    synchronized (fields) {
+      if (fields.status != expected)
+        return false;
+      fields.status = status;
+      return true;
+    }
   }
   
   
-  public double getWallet()
+  public long getWallet()
   {
-    return wallet;
+    if (fields != null)
+      return fields.wallet;
+    return fleet.getWallet(index);
   }
-  public void setWallet(double wallet)
+  public void setWallet(long wallet)
   {
-    this.wallet = wallet;
+    if (fields != null)
+      fields.wallet = wallet;
+    else
+      fleet.setWallet(index, wallet);
   }
   /*
    * Two drivers are equal if they have the same name and license plates.
@@ -102,31 +188,57 @@ public class Driver
   public boolean equals(Object other)
   {
     Driver otherDriver = (Driver) other;
-    return this.name.equals(otherDriver.name) && 
-           this.licensePlate.equals(otherDriver.licensePlate);
+    return this.getName().equals(otherDriver.getName()) && 
+           this.getLicensePlate().equals(otherDriver.getLicensePlate());
+  }
+  // Consistent with equals: from the name and license plate
+  public int hashCode()
+  {
+    return 31 * getName().hashCode() + getLicensePlate().hashCode();
   }
   
   // A driver earns a fee for every ride or delivery
-	public void pay(double fee)
+	public void pay(long fee)
 	{
-		wallet += fee;
+		if (fields == null) {
+			fleet.pay(index, fee);
+			return;
+		}
+		synchronized (fields) {
+			fields.wallet += fee;
+		}
 	}
 	public TMUberService getTmuberService() {
-		return tmuberService;
+		if (fields != null)
+			return fields.tmuberService;
+		return fleet.getTmuberService(index);
 	}
 	public void setTmuberService(TMUberService tmuberService) {
-		this.tmuberService = tmuberService;
+		if (fields != null)
+			fields.tmuberService = tmuberService;
+		else
+			fleet.setTmuberService(index, tmuberService);
 	}
 	public String getAddress() {
-		return address;
+		if (fields != null)
+			return fields.address;
+		return fleet.getAddress(index);
 	}
 	public void setAddress(String address) {
-		this.address = address;
+		if (fields != null)
+			fields.address = address;
+		else
+			fleet.setAddress(index, address);
 	}
 	public int getZone() {
-		return zone;
+		if (fields != null)
+			return fields.zone;
+		return fleet.getZone(index);
 	}
 	public void setZone(int zone) {
-		this.zone = zone;
+		if (fields != null)
+			fields.zone = zone;
+		else
+			fleet.setZone(index, zone);
 	}
 }
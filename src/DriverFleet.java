@@ -0,0 +1,399 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *
+ * The registered drivers of a TMUberSystemManager, stored by column: one
+ * array per field instead of one object per driver. A driver is its index
+ * in the fleet (0 for the first registered) and Driver is only a view of
+ * one index, made when needed.
+ *
+ * Per driver this takes a byte of status, a long of wallet, the block and
+ * zone of its address, the service it is working on and a few ints: the
+ * strings (name, car model, licence plate, type, address) are interned in a
+ * StringPool and kept as their number, and an id made by the TMUberIds of
+ * the fleet with the index as sequence number (e.g. "70012" for the driver
+ * at index 12) is not stored at all. Going through the status or zone of
+ * all the drivers reads one small array after the other.
+ *
+ * The columns are split in chunks of a fixed number of drivers that never
+ * move once allocated, so the fleet grows without copying and without
+ * losing a change made to a driver meanwhile. Adding drivers is synchronized;
+ * the fields that change while the system runs (status, wallet, address,
+ * block, zone, service) are read and written with volatile semantics, like
+ * the fields of the Driver object they replace. A status change and a
+ * payment hold the lock of the driver, one of LOCK_STRIPES locks shared by
+ * the drivers with the same low index bits.
+ */
+public class DriverFleet {
+	// Drivers per chunk is 1 << CHUNK_BITS
+	public static final int CHUNK_BITS = 12;
+	public static final int LOCK_STRIPES = 1024;
+
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle SERVICES = MethodHandles.arrayElementVarHandle(TMUberService[].class);
+
+	private static final Driver.Status[] STATUSES = Driver.Status.values();
+
+	// The columns of one chunk of drivers
+	private static final class Chunk {
+		final int[] id;           // id, -1 if it is the id prefix followed by the index
+		final int[] name;
+		final int[] carModel;
+		final int[] licensePlate;
+		final int[] type;
+		final int[] address;
+		final int[] block;        // index of the block of the address (see Address.getIndex), -1 if not valid
+		final int[] zone;
+		final byte[] status;      // ordinal of the Driver.Status
+		final long[] wallet;      // in cents (see Money)
+		final TMUberService[] service;
+		final int[] poolBucket;   // DriverPool bucket + 1, 0 when the driver is in no pool
+		final int[] poolNext;     // next and previous driver in the pool bucket, -1 for none
+		final int[] poolPrev;
+
+		Chunk(int size) {
+			id = new int[size];
+			name = new int[size];
+			carModel = new int[size];
+			licensePlate = new int[size];
+			type = new int[size];
+			address = new int[size];
+			block = new int[size];
+			zone = new int[size];
+			status = new byte[size];
+			wallet = new long[size];
+			service = new TMUberService[size];
+			poolBucket = new int[size];
+			poolNext = new int[size];
+			poolPrev = new int[size];
+		}
+	}
+
+	private final TMUberIds ids;
+	private final int chunkBits;
+	private final int chunkMask;
+	private volatile Chunk[] chunks = new Chunk[0];
+	private volatile int size;
+
+	private final StringPool strings = new StringPool();
+	// Zones of the system the fleet belongs to, the zone of a driver is the zone of its block here
+	private volatile CityMap.Zones zones = CityMap.getZones();
+	// Index of the drivers whose id is not the id of their index
+	private final ConcurrentHashMap<String, Integer> otherIds = new ConcurrentHashMap<String, Integer>();
+	private final Object[] locks;
+
+	// Drivers registered with the id of ids with their index as sequence number take no room
+	// for their id, ids can be null
+	public DriverFleet(TMUberIds ids) {
+		this.ids = ids;
+		chunkBits = CHUNK_BITS;
+		chunkMask = (1 << chunkBits) - 1;
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	// Number of drivers
+	public int size() {
+		return size;
+	}
+
+	// The driver at an index
+	public Driver get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("No driver " + index + " in a fleet of " + size);
+		return new Driver(this, index);
+	}
+
+	// The drivers, by index. The list grows with the fleet
+	public List<Driver> asList() {
+		return new DriverList();
+	}
+
+	private class DriverList extends AbstractList<Driver> implements RandomAccess {
+		public Driver get(int index) {
+			return DriverFleet.this.get(index);
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+
+	// Index of the driver with the given id, -1 if there is none
+	public int find(String id) {
+		if (id == null)
+			return -1;
+		if (ids != null) {
+			int index = indexOf(ids.parse(id));
+			if (index >= 0 && index < size && chunk(index).id[index & chunkMask] < 0)
+				return index;
+		}
+		Integer index = otherIds.get(id);
+		return index == null ? -1 : index;
+	}
+
+	// The index of a driver with an id of ids as made by the fleet, -1 for other ids
+	private int indexOf(long id) {
+		if (id < 0 || TMUberIds.nodeOf(id) != ids.getNode())
+			return -1;
+		long index = TMUberIds.sequenceOf(id);
+		return index <= Integer.MAX_VALUE ? (int) index : -1;
+	}
+
+	// Add an available driver with an empty wallet, returns it
+	public Driver add(String id, String name, String carModel, String licensePlate, String address) {
+		return new Driver(this, addRow(id, name, carModel, licensePlate, address, CityMap.getAddress(address)));
+	}
+
+	// Same with the address already looked up in CityMap (null if it is not valid)
+	public Driver add(String id, String name, String carModel, String licensePlate, String address, Address location) {
+		return new Driver(this, addRow(id, name, carModel, licensePlate, address, location));
+	}
+
+	// Add a copy of a driver that is not in this fleet (e.g. a new Driver), with its status, wallet,
+	// zone and service. Returns the copy
+	public Driver add(Driver driver) {
+		synchronized (this) {
+			int index = addRow(driver.getId(), driver.getName(), driver.getCarModel(), driver.getLicensePlate(),
+					driver.getAddress(), CityMap.getAddress(driver.getAddress()));
+			Driver copy = new Driver(this, index);
+			copy.setType(driver.getType());
+			copy.setZone(driver.getZone());
+			copy.setWallet(driver.getWallet());
+			copy.setStatus(driver.getStatus());
+			copy.setTmuberService(driver.getTmuberService());
+			return copy;
+		}
+	}
+
+	synchronized int addRow(String id, String name, String carModel, String licensePlate, String address, Address location) {
+		int index = size;
+		if ((index >>> chunkBits) == chunks.length) {
+			Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+			grown[chunks.length] = new Chunk(1 << chunkBits);
+			chunks = grown;
+		}
+		Chunk chunk = chunk(index);
+		int i = index & chunkMask;
+		chunk.id[i] = -1;
+		chunk.name[i] = strings.intern(name);
+		chunk.carModel[i] = strings.intern(carModel);
+		chunk.licensePlate[i] = strings.intern(licensePlate);
+		chunk.type[i] = strings.intern("");
+		chunk.address[i] = strings.intern(address);
+		chunk.block[i] = location == null ? -1 : location.getIndex();
+		chunk.zone[i] = zones.getZone(location);
+		chunk.status[i] = (byte) Driver.Status.AVAILABLE.ordinal();
+		chunk.poolNext[i] = -1;
+		chunk.poolPrev[i] = -1;
+		size = index + 1;
+		setId(index, id);
+		return index;
+	}
+
+	private Chunk chunk(int index) {
+		return chunks[index >>> chunkBits];
+	}
+
+	// Lock of a driver, held to change its status or its wallet
+	Object lock(int index) {
+		return locks[index & (locks.length - 1)];
+	}
+
+	/*
+	 * The fields of the drivers, by index, for Driver
+	 */
+
+	String getId(int index) {
+		int id = chunk(index).id[index & chunkMask];
+		return id < 0 ? ids.format(ids.id(index)) : strings.get(id);
+	}
+
+	synchronized void setId(int index, String id) {
+		Chunk chunk = chunk(index);
+		int i = index & chunkMask;
+		if (chunk.id[i] >= 0)
+			otherIds.remove(strings.get(chunk.id[i]), index);
+		if (ids != null && indexOf(ids.parse(id)) == index) {
+			chunk.id[i] = -1;
+		} else {
+			chunk.id[i] = strings.intern(id);
+			if (id != null)
+				otherIds.put(id, index);
+		}
+	}
+
+	String getName(int index) {
+		return strings.get((int) INTS.getVolatile(chunk(index).name, index & chunkMask));
+	}
+
+	void setName(int index, String name) {
+		INTS.setVolatile(chunk(index).name, index & chunkMask, strings.intern(name));
+	}
+
+	String getCarModel(int index) {
+		return strings.get((int) INTS.getVolatile(chunk(index).carModel, index & chunkMask));
+	}
+
+	void setCarModel(int index, String carModel) {
+		INTS.setVolatile(chunk(index).carModel, index & chunkMask, strings.intern(carModel));
+	}
+
+	String getLicensePlate(int index) {
+		return strings.get((int) INTS.getVolatile(chunk(index).licensePlate, index & chunkMask));
+	}
+
+	void setLicensePlate(int index, String licensePlate) {
+		INTS.setVolatile(chunk(index).licensePlate, index & chunkMask, strings.intern(licensePlate));
+	}
+
+	String getType(int index) {
+		return strings.get((int) INTS.getVolatile(chunk(index).type, index & chunkMask));
+	}
+
+	void setType(int index, String type) {
+		INTS.setVolatile(chunk(index).type, index & chunkMask, strings.intern(type));
+	}
+
+	String getAddress(int index) {
+		return strings.get((int) INTS.getVolatile(chunk(index).address, index & chunkMask));
+	}
+
+	// The block is set with the address, looked up once here
+	void setAddress(int index, String address) {
+		Address location = CityMap.getAddress(address);
+		Chunk chunk = chunk(index);
+		int i = index & chunkMask;
+		INTS.setVolatile(chunk.block, i, location == null ? -1 : location.getIndex());
+		INTS.setVolatile(chunk.address, i, strings.intern(address));
+	}
+
+	// Index of the block of the address of a driver, -1 if the address is not valid
+	int getBlock(int index) {
+		return (int) INTS.getVolatile(chunk(index).block, index & chunkMask);
+	}
+
+	int getZone(int index) {
+		return (int) INTS.getVolatile(chunk(index).zone, index & chunkMask);
+	}
+
+	void setZone(int index, int zone) {
+		INTS.setVolatile(chunk(index).zone, index & chunkMask, zone);
+	}
+
+	Driver.Status getStatus(int index) {
+		return STATUSES[(byte) BYTES.getVolatile(chunk(index).status, index & chunkMask)];
+	}
+
+	void setStatus(int index, Driver.Status status) {
+		synchronized (lock(index)) {
+			BYTES.setVolatile(chunk(index).status, index & chunkMask, (byte) status.ordinal());
+		}
+	}
+
+	boolean compareAndSetStatus(int index, Driver.Status expected, Driver.Status status) {
+		synchronized (lock(index)) {
+			if (getStatus(index) != expected)
+				return false;
+			BYTES.setVolatile(chunk(index).status, index & chunkMask, (byte) status.ordinal());
+			return true;
+		}
+	}
+
+	long getWallet(int index) {
+		return (long) LONGS.getVolatile(chunk(index).wallet, index & chunkMask);
+	}
+
+	void setWallet(int index, long wallet) {
+		LONGS.setVolatile(chunk(index).wallet, index & chunkMask, wallet);
+	}
+
+	void pay(int index, long fee) {
+		synchronized (lock(index)) {
+			setWallet(index, getWallet(index) + fee);
+		}
+	}
+
+	TMUberService getTmuberService(int index) {
+		return (TMUberService) SERVICES.getVolatile(chunk(index).service, index & chunkMask);
+	}
+
+	void setTmuberService(int index, TMUberService service) {
+		SERVICES.setVolatile(chunk(index).service, index & chunkMask, service);
+	}
+
+	/*
+	 * Links of the DriverPool lists, changed holding the lock of the pool bucket
+	 */
+
+	// Bucket of the pool the driver is in, -1 if none
+	int getPoolBucket(int index) {
+		return (int) INTS.getVolatile(chunk(index).poolBucket, index & chunkMask) - 1;
+	}
+
+	void setPoolBucket(int index, int bucket) {
+		INTS.setVolatile(chunk(index).poolBucket, index & chunkMask, bucket + 1);
+	}
+
+	int getPoolNext(int index) {
+		return chunk(index).poolNext[index & chunkMask];
+	}
+
+	void setPoolNext(int index, int next) {
+		chunk(index).poolNext[index & chunkMask] = next;
+	}
+
+	int getPoolPrev(int index) {
+		return chunk(index).poolPrev[index & chunkMask];
+	}
+
+	void setPoolPrev(int index, int prev) {
+		chunk(index).poolPrev[index & chunkMask] = prev;
+	}
+
+	/*
+	 * Whole fleet operations, one column at a time
+	 */
+
+	// Number of drivers with the given status, read without locking
+	public int count(Driver.Status status) {
+		byte wanted = (byte) status.ordinal();
+		Chunk[] all = chunks;
+		int n = size;
+		int count = 0;
+		for (int c = 0; c < all.length && n > 0; c++) {
+			byte[] column = all[c].status;
+			int end = Math.min(column.length, n);
+			for (int i = 0; i < end; i++) {
+				if (column[i] == wanted)
+					count++;
+			}
+			n -= end;
+		}
+		return count;
+	}
+
+	// Set the zone of every driver from the block of its address in new zones, e.g. after the
+	// system was rezoned. Drivers must not be added or move meanwhile
+	public void updateZones(CityMap.Zones zones) {
+		this.zones = zones;
+		Chunk[] all = chunks;
+		int n = size;
+		for (int c = 0; c < all.length && n > 0; c++) {
+			Chunk chunk = all[c];
+			int end = Math.min(chunk.block.length, n);
+			for (int i = 0; i < end; i++)
+				INTS.setVolatile(chunk.zone, i, chunk.block[i] < 0 ? -1 : zones.getZoneOfBlockIndex(chunk.block[i]));
+			n -= end;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ *
+ * Keeps track of the AVAILABLE drivers on each city block so that the
+ * driver nearest to a pickup address can be assigned without going through
+ * every registered driver.
+ *
+ * The drivers of a block are a doubly linked list threaded through the
+ * DriverFleet of the drivers (the pool columns), by index: adding and removing
+ * a driver allocates nothing and a pool of a million drivers is a few ints
+ * per driver. A driver is in at most one block, the one of the address it had
+ * when it was last added: adding it again after it moved moves it. Drivers
+ * without a valid address are kept apart and only assigned when there is no
+ * other driver.
+ *
+ * Finding the nearest driver looks at the blocks around the pickup block, one
+ * ring of blocks at the same distance after the other, and stops at the
+ * first ring with a driver: usually a few steps, at most one per block of the
+ * city. The size of each block is read without locking to skip the empty
+ * ones. Blocks at the same distance are looked at in block index order.
+ *
+ * Each block is locked on its own, so threads working on different blocks
+ * do not contend. A driver is only handed out by take() after its status was
+ * switched from AVAILABLE to DRIVING, so it can never be assigned twice.
+ *
+ * The number of drivers in each zone of the city is counted as drivers come
+ * and go, for surge pricing. The zones must not change while drivers are
+ * added or taken: after rezoning the system, call recountZones.
+ */
+public class DriverPool {
+	// The drivers of one block, the longest waiting first
+	private static class Bucket {
+		private int head = -1; // fleet index of the first driver, -1 if none
+		private int tail = -1;
+		private volatile int size; // changed holding the bucket lock
+		private int zone; // zone of the block, -1 for the drivers without a valid address
+	}
+
+	// The drivers that can be pooled, and that hold the links of the lists
+	private final DriverFleet fleet;
+
+	// One bucket per city block, the extra last bucket holds drivers without a valid address
+	private Bucket[] buckets;
+	private int avenues;
+	private int streets;
+
+	// Number of drivers in all buckets
+	private final AtomicInteger count = new AtomicInteger();
+
+	// Number of drivers in the buckets of each zone
+	private volatile AtomicIntegerArray zoneSizes;
+
+	// A pool of drivers of the fleet, sized for the city as configured in CityMap
+	// A fleet is used by one pool at a time
+	public DriverPool(DriverFleet fleet) {
+		this.fleet = fleet;
+		avenues = CityMap.getAvenues();
+		streets = CityMap.getStreets();
+		buckets = new Bucket[avenues * streets + 1];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new Bucket();
+		}
+		recountZones(CityMap.getZones());
+	}
+
+	// Count the drivers of each of new zones, e.g. after the system was rezoned
+	// Drivers must not be added or taken meanwhile
+	public void recountZones(CityMap.Zones zones) {
+		AtomicIntegerArray sizes = new AtomicIntegerArray(zones.getNumZones());
+		for (int i = 0; i < buckets.length; i++) {
+			Bucket bucket = buckets[i];
+			bucket.zone = i < buckets.length - 1 ? zones.getZoneOfBlockIndex(i) : -1;
+			if (bucket.zone >= 0)
+				sizes.addAndGet(bucket.zone, bucket.size);
+		}
+		zoneSizes = sizes;
+	}
+
+	// A bucket gained (delta 1) or lost (delta -1) a driver, must hold the bucket lock
+	private void resized(Bucket bucket, int delta) {
+		bucket.size += delta;
+		count.addAndGet(delta);
+		if (bucket.zone >= 0)
+			zoneSizes.addAndGet(bucket.zone, delta);
+	}
+
+	// Index of the bucket of a driver, from the block of its current address
+	private int bucketOf(int driver) {
+		int block = fleet.getBlock(driver);
+		return block < 0 ? buckets.length - 1 : block;
+	}
+
+	// Index of a driver of the fleet of the pool
+	private int indexOf(Driver driver) {
+		if (driver.getFleet() != fleet)
+			throw new IllegalArgumentException("Driver " + driver.getId() + " is not in the fleet of the pool");
+		return driver.getIndex();
+	}
+
+	// Link a driver at the end of a bucket, must hold the bucket lock
+	private void link(int b, int driver) {
+		Bucket bucket = buckets[b];
+		fleet.setPoolPrev(driver, bucket.tail);
+		fleet.setPoolNext(driver, -1);
+		if (bucket.tail < 0)
+			bucket.head = driver;
+		else
+			fleet.setPoolNext(bucket.tail, driver);
+		bucket.tail = driver;
+		fleet.setPoolBucket(driver, b);
+		resized(bucket, 1);
+	}
+
+	// Unlink a driver from its bucket, must hold the bucket lock
+	private void unlink(int b, int driver) {
+		Bucket bucket = buckets[b];
+		int prev = fleet.getPoolPrev(driver);
+		int next = fleet.getPoolNext(driver);
+		if (prev < 0)
+			bucket.head = next;
+		else
+			fleet.setPoolNext(prev, next);
+		if (next < 0)
+			bucket.tail = prev;
+		else
+			fleet.setPoolPrev(next, prev);
+		fleet.setPoolPrev(driver, -1);
+		fleet.setPoolNext(driver, -1);
+		fleet.setPoolBucket(driver, -1);
+		resized(bucket, -1);
+	}
+
+	// Add an available driver to the bucket of its block, moving it there if it was in another one
+	// The status is checked under the bucket lock: a driver claimed in the meantime is not added
+	public void add(Driver driver) {
+		int index = indexOf(driver);
+		int b = bucketOf(index);
+		while (true) {
+			int current = fleet.getPoolBucket(index);
+			if (current >= 0 && current != b) {
+				remove(index);
+				continue;
+			}
+			synchronized (buckets[b]) {
+				current = fleet.getPoolBucket(index);
+				if (current == b)
+					return;
+				if (current < 0) {
+					if (fleet.getStatus(index) == Driver.Status.AVAILABLE)
+						link(b, index);
+					return;
+				}
+			}
+			// added to another bucket meanwhile
+		}
+	}
+
+	// Remove a driver from the bucket it is in
+	public void remove(Driver driver) {
+		remove(indexOf(driver));
+	}
+
+	private void remove(int driver) {
+		while (true) {
+			int b = fleet.getPoolBucket(driver);
+			if (b < 0)
+				return;
+			synchronized (buckets[b]) {
+				if (fleet.getPoolBucket(driver) == b) {
+					unlink(b, driver);
+					return;
+				}
+			}
+		}
+	}
+
+	// Number of available drivers
+	public int size() {
+		return count.get();
+	}
+
+	// Check if there is no available driver at all
+	public boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	// Remove and return the available driver nearest to the given (pickup) address,
+	// the longest waiting one if several are on the same block. A null address takes
+	// any driver. Returns null if there is none. The driver returned has been set to DRIVING.
+	public Driver take(Address pickup) {
+		int avenue = pickup == null ? 1 : pickup.getAvenue();
+		int street = pickup == null ? 1 : pickup.getStreet();
+		int maxDistance = avenues + streets - 2;
+		for (int distance = 0; distance <= maxDistance && count.get() > 0; distance++) {
+			// The blocks at this distance, by avenue then street, i.e. in block index order
+			int fromAvenue = Math.max(1, avenue - distance);
+			int toAvenue = Math.min(avenues, avenue + distance);
+			for (int a = fromAvenue; a <= toAvenue; a++) {
+				int rest = distance - Math.abs(a - avenue);
+				Driver driver = takeFrom(a, street - rest);
+				if (driver == null && rest > 0)
+					driver = takeFrom(a, street + rest);
+				if (driver != null)
+					return driver;
+			}
+		}
+		return takeFrom(buckets.length - 1);
+	}
+
+	// Take a driver from the bucket of a block, null if the block is empty or outside of the city
+	private Driver takeFrom(int avenue, int street) {
+		if (street < 1 || street > streets)
+			return null;
+		int b = (avenue - 1) * streets + street - 1;
+		if (buckets[b].size == 0)
+			return null;
+		return takeFrom(b);
+	}
+
+	private Driver takeFrom(int b) {
+		Bucket bucket = buckets[b];
+		synchronized (bucket) {
+			while (bucket.head >= 0) {
+				int driver = bucket.head;
+				unlink(b, driver);
+				// skip a driver that was claimed by id but not yet removed from the pool
+				if (fleet.compareAndSetStatus(driver, Driver.Status.AVAILABLE, Driver.Status.DRIVING))
+					return fleet.get(driver);
+			}
+		}
+		return null;
+	}
+
+	// Number of buckets: one per city block and the bucket of the drivers without a valid address
+	public int numBuckets() {
+		return buckets.length;
+	}
+
+	// Number of available drivers in a zone of the city, in O(1)
+	public int zoneSize(int zone) {
+		return zoneSizes.get(zone);
+	}
+
+	// Number of drivers in a bucket, read without locking
+	public int size(int index) {
+		return buckets[index].size;
+	}
+
+	// Copy of the drivers of a bucket, the longest waiting first
+	public ArrayList<Driver> list(int index) {
+		Bucket bucket = buckets[index];
+		synchronized (bucket) {
+			ArrayList<Driver> list = new ArrayList<Driver>(bucket.size);
+			for (int driver = bucket.head; driver >= 0; driver = fleet.getPoolNext(driver))
+				list.add(fleet.get(driver));
+			return list;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *
+ * The users as User objects on the heap, in a map by account id and in a
+ * list in registration order. This is the default store.
+ *
+ * Account ids made by TMUberIds are looked up by their number in a
+ * LongHashMap, without hashing or comparing strings. Other account ids
+ * (e.g. of a user list given to setUsers) are kept in a map by string.
+ */
+public class HeapUserStore implements UserStore {
+	private final TMUberIds ids = new TMUberIds(TMUberIds.USER_PREFIX);
+	private final LongHashMap<User> users = new LongHashMap<User>();
+	private final Map<String, User> otherUsers = new ConcurrentHashMap<String, User>();
+	private final ArrayList<User> usersList = new ArrayList<User>();
+
+	public int size() {
+		return usersList.size();
+	}
+
+	public User get(String accountId) {
+		long id = ids.parse(accountId);
+		if (id >= 0)
+			return users.get(id);
+		return accountId == null ? null : otherUsers.get(accountId);
+	}
+
+	public User get(int index) {
+		return usersList.get(index);
+	}
+
+	// The user itself is stored
+	public User add(User user) {
+		String accountId = user.getAccountId();
+		long id = ids.parse(accountId);
+		if (id >= 0)
+			users.put(id, user);
+		else
+			otherUsers.put(accountId, user);
+		usersList.add(user);
+		return user;
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.function.Consumer;
+
+/*
+ *
+ * Prints the records of a listing as they come, numbered from 1, the way
+ * the USERS, DRIVERS and REQUESTS commands show them. It is the sink given
+ * to the paginated listings of TMUberSystemManager (listUsers, listDrivers,
+ * listServiceRequests): one printer is used for all the pages of a listing,
+ * so the numbers go on from one page to the next.
+ *
+ * Any other Consumer can take its place, e.g. to write the records to a
+ * file or to count them.
+ */
+public class ListingPrinter<T> implements Consumer<T> {
+	// Records asked for at a time by the listing commands
+	public static final int PAGE_SIZE = 256;
+
+	private final Consumer<? super T> printInfo;
+	private final boolean separator;
+	private int index = 0;
+
+	private ListingPrinter(Consumer<? super T> printInfo, boolean separator) {
+		this.printInfo = printInfo;
+		this.separator = separator;
+	}
+
+	// Users and drivers: "1 . " and the info of the record on its line
+	public static ListingPrinter<User> users() {
+		return new ListingPrinter<User>(User::printInfo, false);
+	}
+
+	public static ListingPrinter<Driver> drivers() {
+		return new ListingPrinter<Driver>(Driver::printInfo, false);
+	}
+
+	// Requests: "1. " and a line of dashes before the info of the request
+	public static ListingPrinter<TMUberService> requests() {
+		return new ListingPrinter<TMUberService>(TMUberService::printInfo, true);
+	}
+
+	// Number of records printed so far
+	public int count() {
+		return index;
+	}
+
+	public void accept(T record) {
+		index++;
+		if (separator) {
+			System.out.println();
+			System.out.print(index + ". ");
+			for (int j = 0; j < 60; j++)
+				System.out.print("-");
+		} else {
+			System.out.printf("%-2s. ", index);
+		}
+		printInfo.accept(record);
+		System.out.println();
+	}
+}
@@ -0,0 +1,138 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/*
+ *
+ * A map from non-negative long keys (e.g. the ids of TMUberIds) to objects,
+ * with open addressing: a long and a reference per slot in two arrays,
+ * instead of a HashMap entry and a boxed or String key per mapping. A
+ * lookup hashes the long with one multiplication and reads the slots that
+ * follow, no key object is made or compared.
+ *
+ * put and remove are synchronized, get is not: a slot is filled by writing
+ * its value and then its key with release semantics, and get reads the key
+ * with acquire semantics, so a key seen by get always comes with its value.
+ * A key never moves within a table: remove only clears the value of its slot,
+ * which get then reports as no mapping, and the slot is kept for the key
+ * until the table is rebuilt. A new table (bigger, or the same size without
+ * the removed keys) is published once it holds all the mappings of the old
+ * one.
+ */
+public class LongHashMap<V> {
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle OBJECTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private static class Table {
+		final long[] keys; // key + 1 of each slot, 0 for an empty slot
+		final Object[] values;
+		final int shift; // 64 - log2 of the number of slots
+
+		Table(int bits) {
+			keys = new long[1 << bits];
+			values = new Object[1 << bits];
+			shift = 64 - bits;
+		}
+	}
+
+	// At most half full, counting the slots of removed keys
+	private volatile Table table = new Table(4);
+	private int size;
+	private int removed; // slots of removed keys in table
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// The value of a key, null if there is none
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Table t = table;
+		long stored = key + 1;
+		int mask = t.keys.length - 1;
+		for (int slot = hash(key, t.shift);; slot = (slot + 1) & mask) {
+			long k = (long) LONGS.getAcquire(t.keys, slot);
+			if (k == stored)
+				return (V) OBJECTS.getVolatile(t.values, slot);
+			if (k == 0)
+				return null;
+		}
+	}
+
+	// Map a key to a value, returns the value it had or null
+	@SuppressWarnings("unchecked")
+	public synchronized V put(long key, V value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Negative key " + key);
+		if (value == null)
+			throw new NullPointerException("null value for key " + key);
+		Table t = table;
+		long stored = key + 1;
+		int mask = t.keys.length - 1;
+		int slot = hash(key, t.shift);
+		for (long k; (k = t.keys[slot]) != 0; slot = (slot + 1) & mask) {
+			if (k == stored) {
+				V old = (V) t.values[slot];
+				OBJECTS.setVolatile(t.values, slot, value);
+				if (old == null) {
+					// the key was removed
+					size++;
+					removed--;
+				}
+				return old;
+			}
+		}
+		t.values[slot] = value;
+		LONGS.setRelease(t.keys, slot, stored);
+		size++;
+		if (2 * (size + removed) > t.keys.length) {
+			// double the table if it is more than a quarter full of mappings, else only drop the removed keys
+			table = rehash(t, 4 * size > t.keys.length ? 65 - t.shift : 64 - t.shift);
+			removed = 0;
+		}
+		return null;
+	}
+
+	// Remove the mapping of a key, returns the value it had or null
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		Table t = table;
+		long stored = key + 1;
+		int mask = t.keys.length - 1;
+		for (int slot = hash(key, t.shift);; slot = (slot + 1) & mask) {
+			long k = t.keys[slot];
+			if (k == stored) {
+				V old = (V) t.values[slot];
+				if (old != null) {
+					OBJECTS.setVolatile(t.values, slot, null);
+					size--;
+					removed++;
+				}
+				return old;
+			}
+			if (k == 0)
+				return null;
+		}
+	}
+
+	// Copy the mappings of a table into a new table with 2^bits slots
+	private static Table rehash(Table old, int bits) {
+		Table t = new Table(bits);
+		int mask = t.keys.length - 1;
+		for (int i = 0; i < old.keys.length; i++) {
+			long stored = old.keys[i];
+			if (stored == 0 || old.values[i] == null)
+				continue;
+			int slot = hash(stored - 1, t.shift);
+			while (t.keys[slot] != 0)
+				slot = (slot + 1) & mask;
+			t.keys[slot] = stored;
+			t.values[slot] = old.values[i];
+		}
+		return t;
+	}
+
+	// The high bits of the key times the golden ratio (Fibonacci hashing), consecutive keys spread out
+	private static int hash(long key, int shift) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+}
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+/*
+ *
+ * A map from non-negative long keys to non-negative int values, e.g. from
+ * request ids to the slots of a ServiceQueue, with open addressing in two
+ * arrays like LongHashMap: nothing is boxed when a mapping is added, looked
+ * up or removed.
+ *
+ * Unlike LongHashMap it is not thread safe, it is used under the lock of its
+ * owner. A removed mapping is not left behind as a marker: the mappings that
+ * follow it in the table are moved back (backward shift deletion), so a map
+ * where keys keep coming and going does not fill up with removed slots.
+ */
+public class LongIntMap {
+	private long[] keys; // key + 1 of each slot, 0 for an empty slot
+	private int[] values;
+	private int shift;   // 64 - log2 of the number of slots
+	private int size;    // at most half the slots
+
+	public LongIntMap() {
+		resize(4);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// The value of a key, -1 if there is none
+	public int get(long key) {
+		long stored = key + 1;
+		int mask = keys.length - 1;
+		for (int slot = hash(key, shift);; slot = (slot + 1) & mask) {
+			long k = keys[slot];
+			if (k == stored)
+				return values[slot];
+			if (k == 0)
+				return -1;
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) >= 0;
+	}
+
+	// Map a key to a value, returns the value it had or -1
+	public int put(long key, int value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Negative key " + key);
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value " + value + " for key " + key);
+		long stored = key + 1;
+		int mask = keys.length - 1;
+		int slot = hash(key, shift);
+		for (long k; (k = keys[slot]) != 0; slot = (slot + 1) & mask) {
+			if (k == stored) {
+				int old = values[slot];
+				values[slot] = value;
+				return old;
+			}
+		}
+		keys[slot] = stored;
+		values[slot] = value;
+		size++;
+		if (2 * size > keys.length)
+			resize(65 - shift);
+		return -1;
+	}
+
+	// Remove the mapping of a key, returns the value it had or -1
+	public int remove(long key) {
+		long stored = key + 1;
+		int mask = keys.length - 1;
+		int slot = hash(key, shift);
+		for (long k; (k = keys[slot]) != stored; slot = (slot + 1) & mask) {
+			if (k == 0)
+				return -1;
+		}
+		int old = values[slot];
+		// Move back the following mappings that would not be found past the emptied slot
+		int empty = slot;
+		for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys[next] - 1, shift);
+			// the mapping stays if its home slot is cyclically in (empty, next]
+			if (((next - home) & mask) < ((next - empty) & mask))
+				continue;
+			keys[empty] = keys[next];
+			values[empty] = values[next];
+			empty = next;
+		}
+		keys[empty] = 0;
+		size--;
+		return old;
+	}
+
+	// Remove all the mappings, keeping the table
+	public void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+	}
+
+	// Copy the mappings into a new table with 2^bits slots
+	private void resize(int bits) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[1 << bits];
+		values = new int[1 << bits];
+		shift = 64 - bits;
+		if (oldKeys == null)
+			return;
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long stored = oldKeys[i];
+			if (stored == 0)
+				continue;
+			int slot = hash(stored - 1, shift);
+			while (keys[slot] != 0)
+				slot = (slot + 1) & mask;
+			keys[slot] = stored;
+			values[slot] = oldValues[i];
+		}
+	}
+
+	// Fibonacci hashing like LongHashMap: consecutive keys spread out, so that
+	// removing the oldest of consecutive keys does not walk a run of all the others
+	private static int hash(long key, int shift) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+}
@@ -0,0 +1,68 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/*
+ *
+ * Amounts of money are kept as a long number of cents: wallets, costs and
+ * revenues. Adding and subtracting cents is exact, unlike adding doubles,
+ * where 0.1 + 0.2 is not 0.3 and a total drifts away from the sum of the
+ * amounts over millions of trips.
+ *
+ * The only rounding is when a percentage of an amount is taken (driver fee,
+ * surge), to the nearest cent, and it is done once per amount: the
+ * rest is computed by subtraction so the parts always add up to the whole.
+ * An amount that does not fit in a long throws ArithmeticException instead
+ * of wrapping around.
+ *
+ * toBigDecimal gives an amount in dollars, e.g. for reports; the system
+ * itself never computes with BigDecimal.
+ */
+public final class Money {
+	public static final long CENTS_PER_DOLLAR = 100;
+
+	private Money() {
+	}
+
+	// Cents in an amount of dollars given as text, e.g. "12.5" is 1250 cents
+	// Fractions of a cent are rounded half up
+	public static long parse(String dollars) {
+		return of(new BigDecimal(dollars.trim()));
+	}
+
+	public static long of(BigDecimal dollars) {
+		try {
+			return dollars.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+		} catch (ArithmeticException e) {
+			throw new NumberFormatException("Amount out of range " + dollars);
+		}
+	}
+
+	// Cents in an amount of dollars, rounded to the nearest cent
+	public static long ofDollars(double dollars) {
+		if (Double.isNaN(dollars) || Math.abs(dollars) >= Long.MAX_VALUE / CENTS_PER_DOLLAR)
+			throw new ArithmeticException("Amount out of range " + dollars);
+		return Math.round(dollars * CENTS_PER_DOLLAR);
+	}
+
+	// percent % of an amount of cents, rounded to the nearest cent (half away from zero)
+	public static long percent(long cents, long percent) {
+		long product = Math.multiplyExact(cents, percent);
+		long half = product < 0 ? -50 : 50;
+		return Math.addExact(product, half) / 100;
+	}
+
+	// Cost of distance units at rate cents per unit
+	public static long times(long cents, int count) {
+		return Math.multiplyExact(cents, (long) count);
+	}
+
+	// An amount of cents in dollars, exact
+	public static BigDecimal toBigDecimal(long cents) {
+		return BigDecimal.valueOf(cents, 2);
+	}
+
+	// An amount of cents as dollars with 2 decimals, e.g. "12.50" or "-0.05"
+	public static String format(long cents) {
+		return toBigDecimal(cents).toPlainString();
+	}
+}
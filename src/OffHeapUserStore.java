@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ *
+ * A user store for very large numbers of users, kept outside of the Java
+ * heap so that the garbage collector has nothing to go through however
+ * many users are registered: no User object, string or map entry per user.
+ *
+ * Each user is a fixed-width record of 48 bytes (wallet, ride and delivery
+ * counters, account id, name and address) in segments of direct memory, or
+ * of a file mapped in memory that the operating system can page out. The
+ * strings are stored as UTF-8 in segments of their own, except for account
+ * ids of up to 11 bytes (e.g. "90012345678") which are in the record. The
+ * account ids are indexed by an open addressing table of ints, also off the
+ * heap: a lookup reads an entry of the table and the record it points to,
+ * and allocates nothing but the User returned.
+ *
+ * get returns a User that reads and writes the record of the user: its
+ * wallet and counters are changed with atomic operations on the record, so
+ * the Users returned for the same account are all the same user (and equal).
+ * The account id of a stored user cannot change.
+ *
+ * A string is stored in a block of its UTF-8 length rounded up to 8 bytes
+ * (at least 8), after a header of 8 bytes. Setting a name or an address
+ * overwrites its block when the new string fits. Otherwise the string moves
+ * to a block of its own size, and the old block goes to a free list by size,
+ * to be reused by the next string of that size. Strings are read without a
+ * lock: the version of the record (a seqlock) is odd while one of its strings
+ * changes, and a read that saw the version change is done again. Changing
+ * names and addresses thus takes no more room than the largest set of
+ * strings of each size held at a time, it does not grow the store.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize (by default the heap
+ * size); a mapped file is not. The file is only used while the store is, it
+ * is not a way to save the users (see TMUberSystemManager.saveSnapshot).
+ * The index is in direct memory either way, 8 bytes per entry. It has at
+ * most 2^27 entries (1 GB, and 1.5 GB while it is copied to grow to that)
+ * and is kept at most half full, so a store holds up to 67 million users.
+ * The strings have no limit of their own: segments of 4 MB are added as
+ * needed, e.g. 67 million users with a name and an address of up to 24
+ * bytes each take 4.3 GB of strings (32 bytes per string).
+ */
+public class OffHeapUserStore implements UserStore {
+	// Fields of a record
+	private static final int WALLET = 0;      // long, in cents (see Money)
+	private static final int RIDES = 8;       // int
+	private static final int DELIVERIES = 12; // int
+	private static final int VERSION = 16;    // int, odd while a string of the record changes
+	private static final int ID_LENGTH = 20;  // byte, length of the account id, -1 if it is not in the record
+	private static final int ID_BYTES = 21;   // the bytes of the account id if it is in the record
+	private static final int ID_OFFSET = 24;  // long, offset of the string of the account id if it is not
+	private static final int NAME = 32;       // long, offset of the string, -1 for null
+	private static final int ADDRESS = 40;    // long, offset of the string, -1 for null
+	private static final int RECORD_BYTES = 48;
+	private static final int MAX_RECORD_ID = ID_OFFSET + 8 - ID_BYTES;
+
+	// Records per segment and bytes per string segment are 1 << bits
+	private static final int RECORD_BITS = 16;
+	private static final int STRING_BITS = 22;
+	private static final int MAX_INDEX_BITS = 27;
+
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	// Index of the account ids, 8 bytes per entry: the slot + 1 (0 for an empty entry) and the hash of the id
+	private static class Index {
+		final ByteBuffer entries;
+		final int bits;
+		final int mask;
+
+		Index(int bits) {
+			this.bits = bits;
+			mask = (1 << bits) - 1;
+			entries = ByteBuffer.allocateDirect((8 << bits) + 8).alignedSlice(8).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	private final FileChannel file; // null for direct memory
+	private long fileSize;
+
+	private volatile ByteBuffer[] records = new ByteBuffer[0];
+	private volatile ByteBuffer[] strings = new ByteBuffer[0];
+	private int stringEnd; // end of the strings in the last string segment
+	// Offset of the first free string block of each capacity, the next one is in the block
+	private final HashMap<Integer, Long> freeStrings = new HashMap<Integer, Long>();
+	private volatile int size;
+	private volatile Index index = new Index(4);
+
+	// Records in direct memory
+	public OffHeapUserStore() {
+		file = null;
+	}
+
+	// Records in a file mapped in memory. The file is created or overwritten
+	public OffHeapUserStore(String filename) throws IOException {
+		file = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	// Close the mapped file, the memory already mapped stays usable
+	public void close() throws IOException {
+		if (file != null)
+			file.close();
+	}
+
+	// A segment of memory, aligned for the atomic operations on longs
+	private ByteBuffer allocate(int bytes) {
+		ByteBuffer buffer;
+		if (file == null) {
+			buffer = ByteBuffer.allocateDirect(bytes + 8).alignedSlice(8);
+		} else {
+			try {
+				buffer = file.map(FileChannel.MapMode.READ_WRITE, fileSize, bytes);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot map the user store file", e);
+			}
+			fileSize += bytes;
+		}
+		return buffer.order(ByteOrder.nativeOrder());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public User get(String accountId) {
+		int slot = find(accountId);
+		return slot < 0 ? null : new StoredUser(slot);
+	}
+
+	public User get(int position) {
+		if (position < 0 || position >= size)
+			throw new IndexOutOfBoundsException("No user " + position + " in a store of " + size);
+		return new StoredUser(position);
+	}
+
+	// The user is copied in a new record
+	public synchronized User add(User user) {
+		int slot = size;
+		if ((slot >>> RECORD_BITS) == records.length) {
+			ByteBuffer[] grown = Arrays.copyOf(records, records.length + 1);
+			grown[records.length] = allocate(RECORD_BYTES << RECORD_BITS);
+			records = grown;
+		}
+		if (2L * (slot + 1) > 1L << index.bits)
+			reindex(index.bits + 1);
+		String id = user.getAccountId();
+		int hash = hash(id);
+		ByteBuffer record = record(slot);
+		int base = base(slot);
+		record.putLong(base + WALLET, user.getWallet());
+		record.putInt(base + RIDES, user.getRides());
+		record.putInt(base + DELIVERIES, user.getDeliveries());
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_RECORD_ID) {
+			record.put(base + ID_LENGTH, (byte) bytes.length);
+			record.put(base + ID_BYTES, bytes);
+		} else {
+			record.put(base + ID_LENGTH, (byte) -1);
+			record.putLong(base + ID_OFFSET, putString(bytes));
+		}
+		record.putLong(base + NAME, putString(user.getName()));
+		record.putLong(base + ADDRESS, putString(user.getAddress()));
+		put(index, slot, hash);
+		size = slot + 1;
+		return new StoredUser(slot);
+	}
+
+	private ByteBuffer record(int slot) {
+		return records[slot >>> RECORD_BITS];
+	}
+
+	private static int base(int slot) {
+		return (slot & ((1 << RECORD_BITS) - 1)) * RECORD_BYTES;
+	}
+
+	/*
+	 * The index of the account ids
+	 */
+
+	// Slot of the user with an account id, -1 if there is none
+	private int find(String accountId) {
+		if (accountId == null)
+			return -1;
+		int hash = hash(accountId);
+		Index current = index;
+		for (int i = hash & current.mask;; i = (i + 1) & current.mask) {
+			int slot = (int) INT.getVolatile(current.entries, 8 * i) - 1;
+			if (slot < 0)
+				return -1;
+			if (current.entries.getInt(8 * i + 4) == hash && sameId(slot, accountId))
+				return slot;
+		}
+	}
+
+	// Index the account id of a slot, replacing the slot of a user with the same id
+	private void put(Index into, int slot, int hash) {
+		for (int i = hash & into.mask;; i = (i + 1) & into.mask) {
+			int other = into.entries.getInt(8 * i) - 1;
+			if (other < 0 || (into.entries.getInt(8 * i + 4) == hash && sameId(other, slot))) {
+				into.entries.putInt(8 * i + 4, hash);
+				INT.setVolatile(into.entries, 8 * i, slot + 1);
+				return;
+			}
+		}
+	}
+
+	// Index all the users again in a bigger index
+	private void reindex(int bits) {
+		if (bits > MAX_INDEX_BITS)
+			throw new IllegalStateException("User store full with " + size + " users");
+		Index bigger = new Index(bits);
+		for (int slot = 0; slot < size; slot++)
+			put(bigger, slot, hash(accountId(slot)));
+		index = bigger;
+	}
+
+	// From the hash code of the string, which the string keeps
+	private static int hash(String id) {
+		int h = id.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		return h ^ (h >>> 13);
+	}
+
+	// Check if the account id of a slot is the given one
+	// The UTF-8 bytes of ASCII characters are the characters, so ids are usually compared without encoding them
+	private boolean sameId(int slot, String id) {
+		ByteBuffer record = record(slot);
+		int base = base(slot);
+		int length = record.get(base + ID_LENGTH);
+		if (length < 0)
+			return Arrays.equals(idBytes(slot), id.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c >= 0x80)
+				return Arrays.equals(idBytes(slot), id.getBytes(StandardCharsets.UTF_8));
+			if (i >= length || record.get(base + ID_BYTES + i) != c)
+				return false;
+		}
+		return length == id.length();
+	}
+
+	// Check if two slots have the same account id
+	private boolean sameId(int slot, int other) {
+		return Arrays.equals(idBytes(slot), idBytes(other));
+	}
+
+	private byte[] idBytes(int slot) {
+		ByteBuffer record = record(slot);
+		int base = base(slot);
+		int length = record.get(base + ID_LENGTH);
+		if (length < 0)
+			return bytes(record.getLong(base + ID_OFFSET));
+		byte[] bytes = new byte[length];
+		record.get(base + ID_BYTES, bytes);
+		return bytes;
+	}
+
+	private String accountId(int slot) {
+		return new String(idBytes(slot), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * The strings: a block of an int capacity, an int length and the UTF-8 bytes,
+	 * never across two segments. Blocks start at multiples of 8
+	 */
+
+	private long putString(String s) {
+		return s == null ? -1 : putString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Capacity of the block of a string of length bytes
+	private static int capacity(int length) {
+		return Math.max(8, (length + 7) & ~7);
+	}
+
+	// Offset of a new block holding a string, must hold the lock of the store
+	private long putString(byte[] bytes) {
+		int capacity = capacity(bytes.length);
+		if (8 + capacity > 1 << STRING_BITS)
+			throw new IllegalArgumentException("String of " + bytes.length + " bytes too long for the user store");
+		long offset;
+		Long free = freeStrings.remove(capacity);
+		if (free != null) {
+			offset = free;
+			long next = segment(offset).getLong(position(offset) + 8);
+			if (next >= 0)
+				freeStrings.put(capacity, next);
+		} else {
+			ByteBuffer[] segments = strings;
+			if (segments.length == 0 || stringEnd + 8 + capacity > 1 << STRING_BITS) {
+				segments = Arrays.copyOf(segments, segments.length + 1);
+				segments[segments.length - 1] = allocate(1 << STRING_BITS);
+				strings = segments;
+				stringEnd = 0;
+			}
+			offset = ((long) (segments.length - 1) << STRING_BITS) | stringEnd;
+			segments[segments.length - 1].putInt(stringEnd, capacity);
+			stringEnd += 8 + capacity;
+		}
+		writeString(offset, bytes);
+		return offset;
+	}
+
+	private void writeString(long offset, byte[] bytes) {
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		segment.putInt(position + 4, bytes.length);
+		segment.put(position + 8, bytes);
+	}
+
+	// Put a block on the free list of its capacity, must hold the lock of the store
+	private void freeString(long offset) {
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		int capacity = segment.getInt(position);
+		Long next = freeStrings.put(capacity, offset);
+		segment.putLong(position + 8, next == null ? -1 : next);
+	}
+
+	private ByteBuffer segment(long offset) {
+		return strings[(int) (offset >>> STRING_BITS)];
+	}
+
+	private static int position(long offset) {
+		return (int) offset & ((1 << STRING_BITS) - 1);
+	}
+
+	// The bytes of a block, null if its length is not valid (it is being changed)
+	private byte[] bytes(long offset) {
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		int length = segment.getInt(position + 4);
+		if (length < 0 || length > segment.getInt(position))
+			return null;
+		byte[] bytes = new byte[length];
+		segment.get(position + 8, bytes);
+		return bytes;
+	}
+
+	// The string of a field, read again if it changed meanwhile (see the version of the record)
+	private String getString(int slot, int field) {
+		ByteBuffer record = record(slot);
+		int base = base(slot);
+		while (true) {
+			int version = (int) INT.getAcquire(record, base + VERSION);
+			if ((version & 1) == 0) {
+				long offset = (long) LONG.getOpaque(record, base + field);
+				byte[] bytes = offset < 0 ? null : bytes(offset);
+				VarHandle.acquireFence();
+				if ((int) INT.getOpaque(record, base + VERSION) == version) {
+					if (offset < 0)
+						return null;
+					if (bytes != null)
+						return new String(bytes, StandardCharsets.UTF_8);
+				}
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	// Overwrite the string of a field if the new one fits in its block, else move it to a new block
+	private synchronized void setString(int slot, int field, String s) {
+		ByteBuffer record = record(slot);
+		int base = base(slot);
+		int version = record.getInt(base + VERSION);
+		INT.setVolatile(record, base + VERSION, version + 1);
+		VarHandle.storeStoreFence();
+		long offset = record.getLong(base + field);
+		byte[] bytes = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+		if (offset >= 0 && bytes != null && bytes.length <= segment(offset).getInt(position(offset))) {
+			writeString(offset, bytes);
+		} else {
+			if (offset >= 0)
+				freeString(offset);
+			LONG.setOpaque(record, base + field, bytes == null ? -1 : putString(bytes));
+		}
+		INT.setRelease(record, base + VERSION, version + 2);
+	}
+
+	// Bytes of string segments in use, freed blocks included
+	synchronized long stringBytes() {
+		return strings.length == 0 ? 0 : ((long) (strings.length - 1) << STRING_BITS) + stringEnd;
+	}
+
+	// A user of the store, reading and writing its record
+	private class StoredUser extends User {
+		private final int slot;
+
+		StoredUser(int slot) {
+			this.slot = slot;
+		}
+
+		public String getAccountId() {
+			return accountId(slot);
+		}
+
+		public void setAccountId(String accountId) {
+			throw new UnsupportedOperationException("The account id of a stored user cannot change");
+		}
+
+		public String getName() {
+			return getString(slot, NAME);
+		}
+
+		public void setName(String name) {
+			setString(slot, NAME, name);
+		}
+
+		public String getAddress() {
+			return getString(slot, ADDRESS);
+		}
+
+		public void setAddress(String address) {
+			setString(slot, ADDRESS, address);
+		}
+
+		public long getWallet() {
+			return (long) LONG.getVolatile(record(slot), base(slot) + WALLET);
+		}
+
+		public void setWallet(long wallet) {
+			LONG.setVolatile(record(slot), base(slot) + WALLET, wallet);
+		}
+
+		public void payForService(long cost) {
+			LONG.getAndAdd(record(slot), base(slot) + WALLET, -cost);
+		}
+
+		public int getRides() {
+			return (int) INT.getVolatile(record(slot), base(slot) + RIDES);
+		}
+
+		public void setRides(int rides) {
+			INT.setVolatile(record(slot), base(slot) + RIDES, rides);
+		}
+
+		public void addRide() {
+			INT.getAndAdd(record(slot), base(slot) + RIDES, 1);
+		}
+
+		public int getDeliveries() {
+			return (int) INT.getVolatile(record(slot), base(slot) + DELIVERIES);
+		}
+
+		public void setDeliveries(int deliveries) {
+			INT.setVolatile(record(slot), base(slot) + DELIVERIES, deliveries);
+		}
+
+		public void addDelivery() {
+			INT.getAndAdd(record(slot), base(slot) + DELIVERIES, 1);
+		}
+	}
+}
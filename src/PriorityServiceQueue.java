@@ -0,0 +1,339 @@
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ *
+ * Bounded queue of service requests for one city zone, ordered by urgency:
+ * poll() returns the request with the earliest due time (see ServicePriority),
+ * the one with the smallest request id if several are due at the same time.
+ *
+ * The requests are kept in a binary heap, with the due time of each request
+ * computed once when it is added, so offer() and poll() are O(log n).
+ *
+ * A request cancelled by its id is only dropped from the index of request ids
+ * (a LongHashMap, nothing boxed) and stays in the heap until it comes up to
+ * the top, where it is thrown away. This keeps the heap free of any position
+ * bookkeeping. When more than half of the heap is cancelled requests, the
+ * heap is rebuilt without them.
+ *
+ * Iterating, get(index), removeAt(index) and copyTo go through the requests
+ * in the order they will be picked up, from a sorted copy of the heap. The
+ * copy is made in O(n log n) when it is first needed and then kept while the
+ * queue only changes at its ends: poll() takes from its front, and a request
+ * added less urgent than all the others goes at its back. Any other change
+ * (a cancellation other than of the first request, a request more urgent
+ * than the last one) drops it, and the next listing sorts the queue again.
+ * Paging through a queue that does not change in between thus costs
+ * O(n log n) for the first page and O(page) for each next one; a queue that
+ * changes in the middle between every two pages is sorted for every page.
+ */
+public class PriorityServiceQueue extends AbstractQueue<TMUberService> implements ZoneQueue {
+	private ServicePriority priority;
+	private TMUberService[] heap; // the queued requests and the cancelled ones not thrown away yet
+	private long[] due;           // due time of the request at the same heap position
+	private int heapSize;
+	private int capacity;         // maximum number of requests
+	private LongHashMap<TMUberService> requestsById; // the queued requests only
+	// The queued requests from the most urgent one, in sorted[sortedStart..sortedEnd) with their
+	// due times, null when the queue must be sorted again. Only grows at sortedEnd, an iterator
+	// keeps reading the requests it started with
+	private TMUberService[] sorted;
+	private long[] sortedDue;
+	private int sortedStart;
+	private int sortedEnd;
+
+	// Capacity is rounded up to a power of two, like ServiceQueue
+	public PriorityServiceQueue(int capacity, ServicePriority priority) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid queue capacity " + capacity);
+		if (priority == null)
+			throw new NullPointerException();
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity)
+			slots <<= 1;
+		this.capacity = slots;
+		this.priority = priority;
+		// grown as needed up to capacity
+		int initial = Math.min(slots, 16);
+		heap = new TMUberService[initial];
+		due = new long[initial];
+		requestsById = new LongHashMap<TMUberService>();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	public int size() {
+		return requestsById.size();
+	}
+
+	// Add a request, false if the queue is full
+	public boolean offer(TMUberService service) {
+		if (service == null)
+			throw new NullPointerException();
+		if (size() == capacity)
+			return false;
+		if (heapSize == heap.length) {
+			if (heap.length < capacity) {
+				int length = Math.min(capacity, heap.length * 2);
+				heap = Arrays.copyOf(heap, length);
+				due = Arrays.copyOf(due, length);
+			} else {
+				// full of cancelled requests
+				rebuild();
+			}
+		}
+		requestsById.put(service.getRequestId(), service);
+		long dueTime = priority.dueTime(service);
+		heap[heapSize] = service;
+		due[heapSize] = dueTime;
+		heapSize++;
+		siftUp(heapSize - 1);
+		if (sorted != null)
+			appendSorted(service, dueTime);
+		return true;
+	}
+
+	// Remove the most urgent request, null if the queue is empty
+	public TMUberService poll() {
+		TMUberService service = peek();
+		if (service == null)
+			return null;
+		requestsById.remove(service.getRequestId());
+		removeTop();
+		removedSorted(service);
+		return service;
+	}
+
+	public TMUberService peek() {
+		// throw away the cancelled requests at the top
+		while (heapSize > 0 && !isQueued(0))
+			removeTop();
+		if (heapSize == 0)
+			return null;
+		return heap[0];
+	}
+
+	public TMUberService get(int index) {
+		checkIndex(index);
+		return sorted()[sortedStart + index];
+	}
+
+	public TMUberService removeAt(int index) {
+		checkIndex(index);
+		TMUberService service = sorted()[sortedStart + index];
+		return removeById(service.getRequestId());
+	}
+
+	public TMUberService removeById(long requestId) {
+		TMUberService service = requestsById.remove(requestId);
+		if (service == null)
+			return null;
+		removedSorted(service);
+		if (heapSize > 2 * size() + 16)
+			rebuild();
+		return service;
+	}
+
+	public boolean containsId(long requestId) {
+		return requestsById.get(requestId) != null;
+	}
+
+	public int copyTo(int from, TMUberService[] page, int offset) {
+		if (from < 0)
+			throw new IndexOutOfBoundsException("Invalid queue position " + from);
+		if (from >= size())
+			return 0;
+		TMUberService[] all = sorted();
+		int count = Math.min(size() - from, page.length - offset);
+		System.arraycopy(all, sortedStart + from, page, offset, count);
+		return count;
+	}
+
+	public void clear() {
+		Arrays.fill(heap, 0, heapSize, null);
+		heapSize = 0;
+		requestsById = new LongHashMap<TMUberService>();
+		sorted = null;
+	}
+
+	// Iterates from the most urgent to the least urgent request
+	public Iterator<TMUberService> iterator() {
+		final TMUberService[] requests = sorted();
+		final int end = sortedEnd;
+		return new Iterator<TMUberService>() {
+			private int next = sortedStart;
+			private boolean removed = true;
+
+			public boolean hasNext() {
+				return next < end;
+			}
+
+			public TMUberService next() {
+				if (next >= end)
+					throw new NoSuchElementException();
+				removed = false;
+				return requests[next++];
+			}
+
+			public void remove() {
+				if (removed)
+					throw new IllegalStateException();
+				removeById(requests[next - 1].getRequestId());
+				removed = true;
+			}
+		};
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Invalid queue position " + index);
+		return index;
+	}
+
+	// Check the request at a heap position was not cancelled
+	private boolean isQueued(int position) {
+		return requestsById.get(heap[position].getRequestId()) == heap[position];
+	}
+
+	// The sorted copy of the queued requests, sorting them if it was dropped
+	private TMUberService[] sorted() {
+		if (sorted != null)
+			return sorted;
+		if (heapSize > size())
+			rebuild();
+		// pop a copy of the heap, O(n log n) without boxing anything
+		TMUberService[] copy = Arrays.copyOf(heap, heapSize);
+		long[] copyDue = Arrays.copyOf(due, heapSize);
+		TMUberService[] requests = new TMUberService[heapSize + 16];
+		long[] requestsDue = new long[heapSize + 16];
+		for (int n = heapSize, i = 0; n > 0; i++) {
+			requests[i] = copy[0];
+			requestsDue[i] = copyDue[0];
+			n--;
+			copy[0] = copy[n];
+			copyDue[0] = copyDue[n];
+			copy[n] = null;
+			siftDown(copy, copyDue, n, 0);
+		}
+		sorted = requests;
+		sortedDue = requestsDue;
+		sortedStart = 0;
+		sortedEnd = heapSize;
+		return requests;
+	}
+
+	// A request was added: it goes at the back of the sorted copy if it is the least urgent, else the copy is dropped
+	private void appendSorted(TMUberService service, long dueTime) {
+		if (sortedEnd > sortedStart && compare(dueTime, service, sortedDue[sortedEnd - 1], sorted[sortedEnd - 1]) < 0) {
+			sorted = null;
+			return;
+		}
+		if (sortedEnd == sorted.length) {
+			// a new array: iterators keep reading the old one
+			int length = Math.max(16, 2 * (sortedEnd - sortedStart));
+			sorted = Arrays.copyOfRange(sorted, sortedStart, sortedStart + length);
+			sortedDue = Arrays.copyOfRange(sortedDue, sortedStart, sortedStart + length);
+			sortedEnd -= sortedStart;
+			sortedStart = 0;
+		}
+		sorted[sortedEnd] = service;
+		sortedDue[sortedEnd] = dueTime;
+		sortedEnd++;
+	}
+
+	// A request was taken out: the sorted copy is kept if it was the first one, else it is dropped
+	private void removedSorted(TMUberService service) {
+		if (sorted == null)
+			return;
+		if (sorted[sortedStart] == service)
+			sortedStart++;
+		else
+			sorted = null;
+	}
+
+	private void removeTop() {
+		heapSize--;
+		heap[0] = heap[heapSize];
+		due[0] = due[heapSize];
+		heap[heapSize] = null;
+		if (heapSize > 0)
+			siftDown(0);
+	}
+
+	// Drop the cancelled requests and heapify the rest, O(n)
+	private void rebuild() {
+		// A request cancelled and then added again is in the heap twice, only one is kept
+		IdentityHashMap<TMUberService, Boolean> kept = null;
+		if (heapSize > size())
+			kept = new IdentityHashMap<TMUberService, Boolean>(size());
+		int n = 0;
+		for (int i = 0; i < heapSize; i++) {
+			if (isQueued(i) && (kept == null || kept.put(heap[i], Boolean.TRUE) == null)) {
+				heap[n] = heap[i];
+				due[n] = due[i];
+				n++;
+			}
+		}
+		Arrays.fill(heap, n, heapSize, null);
+		heapSize = n;
+		for (int i = heapSize / 2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	// Negative if request a (due at dueA) is more urgent than request b (due at dueB)
+	private static int compare(long dueA, TMUberService a, long dueB, TMUberService b) {
+		if (dueA != dueB)
+			return Long.compare(dueA, dueB);
+		return Long.compare(a.getRequestId(), b.getRequestId());
+	}
+
+	// The request at position moves up while it is more urgent than its parent.
+	// The parents move down into the hole and the request is only stored once at its place
+	private void siftUp(int position) {
+		TMUberService service = heap[position];
+		long dueTime = due[position];
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (compare(dueTime, service, due[parent], heap[parent]) >= 0)
+				break;
+			heap[position] = heap[parent];
+			due[position] = due[parent];
+			position = parent;
+		}
+		heap[position] = service;
+		due[position] = dueTime;
+	}
+
+	private void siftDown(int position) {
+		siftDown(heap, due, heapSize, position);
+	}
+
+	// The request at position of the heap of size requests moves down while a child is more urgent
+	private static void siftDown(TMUberService[] heap, long[] due, int size, int position) {
+		TMUberService service = heap[position];
+		long dueTime = due[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && compare(due[child + 1], heap[child + 1], due[child], heap[child]) < 0)
+				child++;
+			if (compare(due[child], heap[child], dueTime, service) >= 0)
+				break;
+			heap[position] = heap[child];
+			due[position] = due[child];
+			position = child;
+		}
+		heap[position] = service;
+		due[position] = dueTime;
+	}
+}
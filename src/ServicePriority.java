@@ -0,0 +1,47 @@
+/*
+ *
+ * Decides how urgent a queued service request is, for PriorityServiceQueue.
+ *
+ * Every request gets a due time: the time it was queued plus how long that
+ * kind of request may wait. The request due first is picked up first, so an
+ * XL ride or a delivery (the food gets cold) can go ahead of a ride queued a
+ * little earlier, but never ahead of one that has already waited longer than
+ * the difference between their allowed waits. The due time of a request
+ * does not change while it waits, which is what lets the queue be a heap,
+ * and an old request always ends up first: nothing starves.
+ *
+ * With the same wait for every kind of request the order is plain FIFO.
+ * Subclasses can override dueTime to rank requests some other way.
+ */
+public class ServicePriority {
+	// Default allowed waits, in milliseconds
+	public static final long RIDE_WAIT = 10 * 60 * 1000;
+	public static final long XL_RIDE_WAIT = 5 * 60 * 1000;
+	public static final long DELIVERY_WAIT = 3 * 60 * 1000;
+
+	private long rideWait;
+	private long xlRideWait;
+	private long deliveryWait;
+
+	public ServicePriority() {
+		this(RIDE_WAIT, XL_RIDE_WAIT, DELIVERY_WAIT);
+	}
+
+	// Allowed waits in milliseconds for a ride, an XL ride and a delivery
+	public ServicePriority(long rideWait, long xlRideWait, long deliveryWait) {
+		if (rideWait < 0 || xlRideWait < 0 || deliveryWait < 0)
+			throw new IllegalArgumentException("Invalid wait " + rideWait + ", " + xlRideWait + ", " + deliveryWait);
+		this.rideWait = rideWait;
+		this.xlRideWait = xlRideWait;
+		this.deliveryWait = deliveryWait;
+	}
+
+	// Time (in milliseconds, like TMUberService.getQueuedAt) by which the request should be picked up
+	public long dueTime(TMUberService service) {
+		if (service instanceof TMUberDelivery)
+			return service.getQueuedAt() + deliveryWait;
+		if (service instanceof TMUberRide && ((TMUberRide) service).isRequestedXL())
+			return service.getQueuedAt() + xlRideWait;
+		return service.getQueuedAt() + rideWait;
+	}
+}
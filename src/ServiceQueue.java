@@ -0,0 +1,282 @@
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ *
+ * Bounded FIFO queue of service requests for one city zone.
+ *
+ * The requests are kept in a ring buffer, so adding a request does not
+ * allocate a list node. The ring starts small and doubles when it fills up,
+ * up to twice the capacity: a city of thousands of zones only pays for the
+ * requests actually queued, not for the capacity of every zone. When the
+ * queue is full offer() returns false and add() throws
+ * IllegalStateException, which lets the caller push back on new requests for
+ * that zone.
+ *
+ * A request can be cancelled by its request id or by its position without
+ * moving the other requests: its slot is simply emptied. An index from
+ * request id to slot (a LongIntMap, nothing boxed) makes cancel by id O(1),
+ * and a Fenwick tree counting the occupied slots finds the slot of a
+ * position in O(log n). A full ring where at most half the slots hold
+ * requests is compacted instead of grown, so empty slots left by
+ * cancellations are only compacted away after at least half a ring of
+ * cancellations.
+ *
+ * This is the default zone queue, see PriorityServiceQueue for a queue
+ * ordered by urgency.
+ */
+public class ServiceQueue extends AbstractQueue<TMUberService> implements ZoneQueue {
+	private TMUberService[] items;
+	private int[] tree;   // Fenwick tree over the slots, counts the occupied slots
+	private int mask;     // number of slots - 1, the number of slots is a power of two
+	private int capacity; // maximum number of requests
+	private int head;     // slot of the first (oldest) request
+	private int used;     // slots from head up to the last request, including emptied ones
+	private int size;     // number of requests
+	private LongIntMap slotByRequestId;
+
+	// Slots of a new queue, the ring grows from there
+	private static final int INITIAL_SLOTS = 16;
+
+	// Capacity is rounded up to a power of two
+	public ServiceQueue(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid queue capacity " + capacity);
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity)
+			slots <<= 1;
+		this.capacity = slots;
+		int length = Math.min(slots * 2, INITIAL_SLOTS);
+		items = new TMUberService[length];
+		tree = new int[length + 1];
+		mask = length - 1;
+		slotByRequestId = new LongIntMap();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int remainingCapacity() {
+		return capacity - size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Add a request at the end of the queue, false if the queue is full
+	public boolean offer(TMUberService service) {
+		if (service == null)
+			throw new NullPointerException();
+		if (size == capacity)
+			return false;
+		if (used == items.length) {
+			// grow when more than half the slots hold requests, otherwise the emptied slots make room
+			if (2 * size > items.length && items.length < 2 * capacity)
+				compact(items.length * 2);
+			else
+				compact(items.length);
+		}
+		int slot = (head + used) & mask;
+		items[slot] = service;
+		treeAdd(slot, 1);
+		slotByRequestId.put(service.getRequestId(), slot);
+		used++;
+		size++;
+		return true;
+	}
+
+	// Remove the first request, null if the queue is empty
+	public TMUberService poll() {
+		if (size == 0)
+			return null;
+		return removeSlot(head);
+	}
+
+	public TMUberService peek() {
+		if (size == 0)
+			return null;
+		return items[head];
+	}
+
+	// Request at the given position, 0 is the first request
+	public TMUberService get(int index) {
+		return items[slotOf(index)];
+	}
+
+	// Remove and return the request at the given position
+	public TMUberService removeAt(int index) {
+		return removeSlot(slotOf(index));
+	}
+
+	// Remove and return the request with the given request id, null if it is not in this queue
+	public TMUberService removeById(long requestId) {
+		int slot = slotByRequestId.get(requestId);
+		if (slot < 0)
+			return null;
+		return removeSlot(slot);
+	}
+
+	// Check if the request with the given request id is in this queue
+	public boolean containsId(long requestId) {
+		return slotByRequestId.containsKey(requestId);
+	}
+
+	// Copy the requests from position from on into page, O(log n) to find the first one
+	public int copyTo(int from, TMUberService[] page, int offset) {
+		if (from < 0)
+			throw new IndexOutOfBoundsException("Invalid queue position " + from);
+		if (from >= size)
+			return 0;
+		int count = 0;
+		for (int i = (slotOf(from) - head) & mask; i < used && offset + count < page.length; i++) {
+			TMUberService service = items[(head + i) & mask];
+			if (service != null)
+				page[offset + count++] = service;
+		}
+		return count;
+	}
+
+	// Remove the first request equal to the given one
+	public boolean remove(Object o) {
+		for (int i = 0; i < used; i++) {
+			int slot = (head + i) & mask;
+			if (items[slot] != null && items[slot].equals(o)) {
+				removeSlot(slot);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		while (size > 0)
+			poll();
+	}
+
+	// Iterates from the first to the last request
+	public Iterator<TMUberService> iterator() {
+		return new Iterator<TMUberService>() {
+			private int next = skip(0);  // offset from head of the next request
+			private int last = -1;
+
+			private int skip(int offset) {
+				while (offset < used && items[(head + offset) & mask] == null)
+					offset++;
+				return offset;
+			}
+
+			public boolean hasNext() {
+				return next < used;
+			}
+
+			public TMUberService next() {
+				if (next >= used)
+					throw new NoSuchElementException();
+				last = (head + next) & mask;
+				TMUberService service = items[last];
+				next = skip(next + 1);
+				return service;
+			}
+
+			public void remove() {
+				if (last < 0)
+					throw new IllegalStateException();
+				int oldHead = head;
+				removeSlot(last);
+				// removing the first request moves head forward
+				next = skip(Math.max(0, next - ((head - oldHead) & mask)));
+				last = -1;
+			}
+		};
+	}
+
+	// Slot of the request at the given position, using the Fenwick tree
+	private int slotOf(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Invalid queue position " + index);
+		// Requests before head in the array come after the ones from head to the end of the array
+		int before = treeCount(head);
+		int fromHead = size - before;
+		if (index < fromHead)
+			return treeFind(before + index);
+		return treeFind(index - fromHead);
+	}
+
+	private TMUberService removeSlot(int slot) {
+		TMUberService service = items[slot];
+		items[slot] = null;
+		treeAdd(slot, -1);
+		slotByRequestId.remove(service.getRequestId());
+		size--;
+		// Drop emptied slots at both ends
+		while (used > 0 && items[head] == null) {
+			head = (head + 1) & mask;
+			used--;
+		}
+		while (used > 0 && items[(head + used - 1) & mask] == null)
+			used--;
+		if (used == 0)
+			head = 0;
+		return service;
+	}
+
+	// Move all requests to the start of an array of length slots, in order, dropping the emptied slots
+	private void compact(int length) {
+		TMUberService[] old = items;
+		int oldMask = mask;
+		items = new TMUberService[length];
+		tree = new int[length + 1];
+		mask = length - 1;
+		slotByRequestId.clear();
+		int n = 0;
+		for (int i = 0; i < used; i++) {
+			TMUberService service = old[(head + i) & oldMask];
+			if (service != null) {
+				items[n] = service;
+				slotByRequestId.put(service.getRequestId(), n);
+				n++;
+			}
+		}
+		// Build the Fenwick tree in linear time
+		for (int i = 1; i < tree.length; i++) {
+			if (i <= n)
+				tree[i]++;
+			int parent = i + (i & -i);
+			if (parent < tree.length)
+				tree[parent] += tree[i];
+		}
+		head = 0;
+		used = n;
+	}
+
+	// Fenwick tree: add delta to the count of a slot
+	private void treeAdd(int slot, int delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+
+	// Fenwick tree: number of occupied slots before the given slot
+	private int treeCount(int slot) {
+		int count = 0;
+		for (int i = slot; i > 0; i -= i & -i)
+			count += tree[i];
+		return count;
+	}
+
+	// Fenwick tree: slot of the k-th (0 based) occupied slot
+	private int treeFind(int k) {
+		int pos = 0;
+		int remaining = k + 1;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = pos + step;
+			if (next < tree.length && tree[next] < remaining) {
+				pos = next;
+				remaining -= tree[next];
+			}
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,348 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ToLongFunction;
+
+/*
+ *
+ * The users of a TMUberSystemManager kept sorted by a key (e.g. their name
+ * or wallet), so that listing them in order does not sort all the users
+ * again.
+ *
+ * The key is a long, kept in arrays: a wallet, or for a name the first
+ * characters of the name (see prefix) with a comparator for the users whose
+ * keys are the same.
+ *
+ * The users are in sorted chunks of up to CHUNK_SIZE users, the chunks in
+ * order one after the other: a user is found with a binary search on the
+ * chunks and one in its chunk, and added or removed by moving the users
+ * after it in its chunk only. A full chunk is split in two, an empty one is
+ * dropped. Adding a user or moving it after its key changed takes O(log n)
+ * comparisons and a copy of less than a chunk, going through the first k
+ * users in order, from either end, O(log n + k) and copies nothing but the
+ * users returned. Unlike a tree or a skip list, a search reads a few arrays
+ * of longs instead of following references: about 1 microsecond to move a
+ * user among a million.
+ *
+ * The key of a user is read when it is added or updated and kept with it,
+ * so update must be called after every change of the key (the comparator
+ * of the users with the same key reads them, what it compares must not
+ * change). Users that are still the same are in account id order: by
+ * number for the ids made by TMUberIds, which is the registration order on
+ * a node.
+ *
+ * All the methods are synchronized: updates of a user are done one at a
+ * time and each reads the key again, so the last update of a user leaves it
+ * at its current key. Iterators copy PAGE_SIZE users at a time and then go
+ * on after the last user they returned, like the iterators of the queues
+ * they are weakly consistent: a user updated meanwhile can be returned at
+ * its old place, at its new one, at both or not at all.
+ */
+public class SortedUsers {
+	// Users per chunk, a full chunk is split in two
+	private static final int CHUNK_SIZE = 512;
+	// Users copied at a time by an iterator
+	private static final int PAGE_SIZE = 256;
+
+	// Users in order, with their keys and the numbers of their account ids
+	private static class Chunk {
+		final long[] keys = new long[CHUNK_SIZE];
+		final long[] numbers = new long[CHUNK_SIZE]; // id of the account id, -1 if it is not one of TMUberIds
+		final User[] users = new User[CHUNK_SIZE];
+		int size;
+	}
+
+	private final ToLongFunction<? super User> key;
+	private final Comparator<? super User> ties; // null if users with the same key are not compared
+	private final TMUberIds ids;
+	// There is always a chunk, a chunk is only empty if it is the only one
+	private Chunk[] chunks = { new Chunk() };
+	// Key of the last user of each chunk, to find a chunk without reading the chunks
+	private long[] lastKeys = new long[1];
+	private int numChunks = 1;
+	// Key of each user, by account id
+	private final HashMap<String, Long> keys = new HashMap<String, Long>();
+
+	// Users sorted by the given key, ids parses their account ids
+	public SortedUsers(ToLongFunction<? super User> key, TMUberIds ids) {
+		this(key, null, ids);
+	}
+
+	// Users sorted by the given key, and by ties if they have the same key
+	public SortedUsers(ToLongFunction<? super User> key, Comparator<? super User> ties, TMUberIds ids) {
+		this.key = key;
+		this.ties = ties;
+		this.ids = ids;
+	}
+
+	// A key in the order of the strings (String.compareTo) from their first four characters:
+	// a string with a lower key is lower, strings with the same key need to be compared.
+	// null is the lowest
+	public static long prefix(String s) {
+		if (s == null)
+			return Long.MIN_VALUE;
+		long prefix = 0;
+		for (int i = 0; i < 4; i++)
+			prefix = prefix << 16 | (i < s.length() ? s.charAt(i) : 0);
+		// unsigned to signed order
+		return prefix ^ Long.MIN_VALUE;
+	}
+
+	// Number of users
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	// Add a user, or move it to its current key if it is already there
+	public synchronized void update(User user) {
+		String accountId = user.getAccountId();
+		long number = ids.parse(accountId);
+		Long old = keys.get(accountId);
+		if (old != null)
+			remove(old, number, user);
+		long k = key.applyAsLong(user);
+		keys.put(accountId, k);
+		insert(k, number, user);
+	}
+
+	// Add users that are not there yet: added to an empty SortedUsers, they are sorted all
+	// at once and put in chunks 3/4 full, which is faster than adding them one at a time
+	public synchronized void addAll(User[] users) {
+		if (keys.size() > 0) {
+			for (int i = 0; i < users.length; i++)
+				update(users[i]);
+			return;
+		}
+		final long[] sortKeys = new long[users.length];
+		final long[] numbers = new long[users.length];
+		Integer[] order = new Integer[users.length];
+		for (int i = 0; i < users.length; i++) {
+			sortKeys[i] = key.applyAsLong(users[i]);
+			numbers[i] = ids.parse(users[i].getAccountId());
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> {
+			int c = Long.compare(sortKeys[a], sortKeys[b]);
+			if (c == 0 && ties != null)
+				c = ties.compare(users[a], users[b]);
+			if (c == 0)
+				c = Long.compare(numbers[a], numbers[b]);
+			if (c == 0 && numbers[a] < 0)
+				c = users[a].getAccountId().compareTo(users[b].getAccountId());
+			return c;
+		});
+		int perChunk = CHUNK_SIZE * 3 / 4;
+		numChunks = Math.max(1, (users.length + perChunk - 1) / perChunk);
+		chunks = new Chunk[numChunks];
+		lastKeys = new long[numChunks];
+		chunks[0] = new Chunk();
+		for (int j = 0; j < users.length; j++) {
+			int i = order[j];
+			Chunk chunk = chunks[j / perChunk];
+			if (chunk == null)
+				chunk = chunks[j / perChunk] = new Chunk();
+			chunk.keys[chunk.size] = sortKeys[i];
+			chunk.numbers[chunk.size] = numbers[i];
+			chunk.users[chunk.size++] = users[i];
+			lastKeys[j / perChunk] = sortKeys[i];
+			keys.put(users[i].getAccountId(), sortKeys[i]);
+		}
+	}
+
+	// The users, the lowest key first
+	public Iterator<User> iterator() {
+		return new Pages(false);
+	}
+
+	// The users, the highest key first
+	public Iterator<User> descendingIterator() {
+		return new Pages(true);
+	}
+
+	// Compare a user with its key and number with the user at an index of a chunk, once
+	// their keys are the same
+	private int compareTies(long number, User user, Chunk chunk, int i) {
+		int c;
+		if (ties != null) {
+			c = ties.compare(user, chunk.users[i]);
+			if (c != 0)
+				return c;
+		}
+		c = Long.compare(number, chunk.numbers[i]);
+		if (c != 0 || number >= 0)
+			return c;
+		return user.getAccountId().compareTo(chunk.users[i].getAccountId());
+	}
+
+	private int compare(long k, long number, User user, Chunk chunk, int i) {
+		int c = Long.compare(k, chunk.keys[i]);
+		return c != 0 ? c : compareTies(number, user, chunk, i);
+	}
+
+	// Index of the chunk to look in: the first chunk whose last user is not below the
+	// given one, the last chunk if there is none
+	private int findChunk(long k, long number, User user) {
+		int low = 0;
+		int high = numChunks - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int c = Long.compare(k, lastKeys[mid]);
+			if (c == 0)
+				c = compareTies(number, user, chunks[mid], chunks[mid].size - 1);
+			if (c > 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	// Index of the first user of a chunk not below the given one, size if there is none
+	private int find(Chunk chunk, long k, long number, User user) {
+		int low = 0;
+		int high = chunk.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(k, number, user, chunk, mid) > 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private void insert(long k, long number, User user) {
+		int c = findChunk(k, number, user);
+		if (chunks[c].size == CHUNK_SIZE) {
+			split(c);
+			if (compare(k, number, user, chunks[c], chunks[c].size - 1) > 0)
+				c++;
+		}
+		Chunk chunk = chunks[c];
+		int i = find(chunk, k, number, user);
+		int moved = chunk.size - i;
+		System.arraycopy(chunk.keys, i, chunk.keys, i + 1, moved);
+		System.arraycopy(chunk.numbers, i, chunk.numbers, i + 1, moved);
+		System.arraycopy(chunk.users, i, chunk.users, i + 1, moved);
+		chunk.keys[i] = k;
+		chunk.numbers[i] = number;
+		chunk.users[i] = user;
+		chunk.size++;
+		lastKeys[c] = chunk.keys[chunk.size - 1];
+	}
+
+	private void remove(long k, long number, User user) {
+		int c = findChunk(k, number, user);
+		Chunk chunk = chunks[c];
+		int i = find(chunk, k, number, user);
+		if (i == chunk.size || compare(k, number, user, chunk, i) != 0)
+			throw new IllegalStateException("User " + user.getAccountId() + " is not at its key");
+		int moved = chunk.size - i - 1;
+		System.arraycopy(chunk.keys, i + 1, chunk.keys, i, moved);
+		System.arraycopy(chunk.numbers, i + 1, chunk.numbers, i, moved);
+		System.arraycopy(chunk.users, i + 1, chunk.users, i, moved);
+		chunk.size--;
+		chunk.users[chunk.size] = null;
+		if (chunk.size > 0) {
+			lastKeys[c] = chunk.keys[chunk.size - 1];
+		} else if (numChunks > 1) {
+			System.arraycopy(chunks, c + 1, chunks, c, numChunks - c - 1);
+			System.arraycopy(lastKeys, c + 1, lastKeys, c, numChunks - c - 1);
+			chunks[--numChunks] = null;
+		}
+	}
+
+	// Move the second half of a full chunk to a new chunk after it
+	private void split(int c) {
+		if (numChunks == chunks.length) {
+			chunks = Arrays.copyOf(chunks, numChunks * 2);
+			lastKeys = Arrays.copyOf(lastKeys, numChunks * 2);
+		}
+		System.arraycopy(chunks, c + 1, chunks, c + 2, numChunks - c - 1);
+		System.arraycopy(lastKeys, c + 1, lastKeys, c + 2, numChunks - c - 1);
+		numChunks++;
+		Chunk full = chunks[c];
+		Chunk half = new Chunk();
+		int from = CHUNK_SIZE / 2;
+		half.size = CHUNK_SIZE - from;
+		System.arraycopy(full.keys, from, half.keys, 0, half.size);
+		System.arraycopy(full.numbers, from, half.numbers, 0, half.size);
+		System.arraycopy(full.users, from, half.users, 0, half.size);
+		Arrays.fill(full.users, from, CHUNK_SIZE, null);
+		full.size = from;
+		chunks[c + 1] = half;
+		lastKeys[c] = full.keys[from - 1];
+		lastKeys[c + 1] = half.keys[half.size - 1];
+	}
+
+	// Goes through the users a page at a time, each page starts after the last user returned
+	private class Pages implements Iterator<User> {
+		private final boolean descending;
+		private final User[] page = new User[PAGE_SIZE];
+		private int next;
+		private int count;
+		private boolean started;
+		private boolean last; // the last page was copied
+		// The last user copied
+		private long lastKey;
+		private long lastNumber;
+		private User lastUser;
+
+		Pages(boolean descending) {
+			this.descending = descending;
+		}
+
+		public boolean hasNext() {
+			if (next == count && !last)
+				fill();
+			return next < count;
+		}
+
+		public User next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			User user = page[next];
+			page[next++] = null;
+			return user;
+		}
+
+		private void fill() {
+			synchronized (SortedUsers.this) {
+				count = 0;
+				next = 0;
+				int c;
+				int i;
+				if (!started) {
+					c = descending ? numChunks - 1 : 0;
+					i = descending ? chunks[c].size - 1 : 0;
+					started = true;
+				} else {
+					c = findChunk(lastKey, lastNumber, lastUser);
+					i = find(chunks[c], lastKey, lastNumber, lastUser);
+					// i is the first user not below the last one copied
+					if (descending)
+						i--;
+					else if (i < chunks[c].size && compare(lastKey, lastNumber, lastUser, chunks[c], i) == 0)
+						i++;
+				}
+				while (count < PAGE_SIZE && c >= 0 && c < numChunks) {
+					Chunk chunk = chunks[c];
+					if (i < 0 || i >= chunk.size) {
+						c += descending ? -1 : 1;
+						if (c >= 0 && c < numChunks)
+							i = descending ? chunks[c].size - 1 : 0;
+						continue;
+					}
+					page[count++] = chunk.users[i];
+					lastKey = chunk.keys[i];
+					lastNumber = chunk.numbers[i];
+					lastUser = chunk.users[i];
+					i += descending ? -1 : 1;
+				}
+				last = count < PAGE_SIZE;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/*
+ *
+ * Interned strings numbered from 0, for column stores like DriverFleet that
+ * keep an int per string instead of a reference: the same car model or
+ * address used by many drivers is stored once.
+ *
+ * Strings are only ever added, a pool never shrinks. Adding is synchronized,
+ * getting a string by its number is not: the array of strings is only
+ * appended to and a bigger array is published once it holds all the strings
+ * of the old one. A number is only seen by other threads after it was
+ * returned by intern, so get always finds its string.
+ *
+ * Lookups by string go through an open addressing table of the numbers,
+ * which takes 8 bytes per string instead of a HashMap entry.
+ */
+public class StringPool {
+	private volatile String[] strings = new String[16];
+	private int size;
+	// Number + 1 of the string in each slot, 0 for an empty slot. At most half full
+	private int[] table = new int[32];
+
+	// Number of the string, adding it if it is not in the pool yet. null is -1
+	public synchronized int intern(String s) {
+		if (s == null)
+			return -1;
+		int mask = table.length - 1;
+		int slot = hash(s) & mask;
+		for (int number; (number = table[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+			if (strings[number].equals(s))
+				return number;
+		}
+		if (size == strings.length)
+			strings = Arrays.copyOf(strings, size * 2);
+		strings[size] = s;
+		table[slot] = size + 1;
+		size++;
+		if (2 * size > table.length)
+			rehash(table.length * 2);
+		return size - 1;
+	}
+
+	// The string of a number returned by intern, null for -1
+	public String get(int number) {
+		return number < 0 ? null : strings[number];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Put all the strings in a new table of the given size
+	private void rehash(int length) {
+		table = new int[length];
+		int mask = length - 1;
+		for (int number = 0; number < size; number++) {
+			int slot = hash(strings[number]) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = number + 1;
+		}
+	}
+
+	private static int hash(String s) {
+		int h = s.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ *
+ * Decides the surge multiplier of ride and delivery prices in a zone, from
+ * the requests waiting in the queue of the zone and the drivers available
+ * in the zone.
+ *
+ * As long as there are at least as many available drivers as waiting
+ * requests the price is the normal one. Past that, every waiting request
+ * without a driver adds step to the multiplier, shared by the available
+ * drivers plus one: 4 requests and 1 driver with the default step give
+ * 1 + 0.25 * 3 / 2 = 1.375, rounded down to 1.3. The multiplier is rounded
+ * down to a tenth so that the price does not move with every request, and
+ * never goes above maxMultiplier.
+ *
+ * Subclasses can override multiplier to price some other way. It is called
+ * on every ride and delivery request, so it must be quick.
+ */
+public class SurgePricing {
+	public static final double DEFAULT_STEP = 0.25;
+	public static final double DEFAULT_MAX_MULTIPLIER = 3.0;
+
+	private double step;
+	private double maxMultiplier;
+
+	public SurgePricing() {
+		this(DEFAULT_STEP, DEFAULT_MAX_MULTIPLIER);
+	}
+
+	public SurgePricing(double step, double maxMultiplier) {
+		if (!(step >= 0) || !(maxMultiplier >= 1))
+			throw new IllegalArgumentException("Invalid surge pricing " + step + ", " + maxMultiplier);
+		this.step = step;
+		this.maxMultiplier = maxMultiplier;
+	}
+
+	// Multiplier of the price with queued requests waiting and available drivers in the zone
+	public double multiplier(int queued, int available) {
+		if (queued <= available)
+			return 1.0;
+		double multiplier = 1 + step * (queued - available) / (available + 1);
+		return Math.min(maxMultiplier, Math.floor(multiplier * 10 + 1e-9) / 10);
+	}
+}
@@ -11,7 +11,7 @@ public class TMUberDelivery extends TMUberService
   private String restaurant; 
   private String foodOrderId;
       
-  public TMUberDelivery(String from, String to, User user, int distance, double cost,
+  public TMUberDelivery(String from, String to, User user, int distance, long cost,
                         String restaurant, String order)
   {
     super(from, to, user, distance, cost, TMUberDelivery.TYPENAME);
@@ -62,6 +62,13 @@ public class TMUberDelivery extends TMUberService
     return super.equals(other) && delivery.getRestaurant().equals(restaurant) && 
                                   delivery.getFoodOrderId().equals(foodOrderId);
   }
+  /*
+   * Consistent with equals: based on type and user, restaurant and food order id
+   */
+  public int hashCode()
+  {
+    return 31 * (31 * super.hashCode() + restaurant.hashCode()) + foodOrderId.hashCode();
+  }
   /*
    * Print Information about a Delivery Request
    */
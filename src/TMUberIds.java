@@ -0,0 +1,134 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *
+ * The user account ids and driver ids of a TMUberSystemManager. An id is a
+ * number: the node that registered it and a sequence number counted from 0
+ * on that node, packed in a long. It is only turned into a string (e.g.
+ * "9007") for the UI, the journal and the snapshots.
+ *
+ * The string of an id is the id prefix ("900" for users, "700" for
+ * drivers) followed by the sequence number on node 0, which is the id the
+ * system always gave, and by the node, a '-' and the sequence number on
+ * the other nodes: user 11 of node 1 is "9001-11" and cannot be mistaken
+ * for user 111 of node 0 ("900111"). Numbers are written without leading
+ * zeros, so each id has exactly one string and parse only accepts that
+ * string.
+ *
+ * The sequence numbers of a node only grow: the next id is one past the
+ * highest id of the node registered so far (see used), so an id is never
+ * given twice, also after restoring users and drivers from a snapshot or a
+ * journal. Ids of different nodes never collide, so several systems can
+ * register users and drivers at the same time and their ids can be merged.
+ */
+public final class TMUberIds {
+	public static final String USER_PREFIX = "900";
+	public static final String DRIVER_PREFIX = "700";
+
+	// The sequence number is the low SEQUENCE_BITS of an id, the node the bits above
+	static final int SEQUENCE_BITS = 47;
+	public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+	public static final int MAX_NODE = (1 << 16) - 1;
+
+	private final String prefix;
+	private final int node;
+	// Sequence number of the next id of this node
+	private final AtomicLong next = new AtomicLong();
+
+	// Ids of node 0
+	public TMUberIds(String prefix) {
+		this(prefix, 0);
+	}
+
+	public TMUberIds(String prefix, int node) {
+		if (node < 0 || node > MAX_NODE)
+			throw new IllegalArgumentException("Invalid node " + node);
+		this.prefix = prefix;
+		this.node = node;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	// The id of a node and sequence number
+	public static long id(int node, long sequence) {
+		return (long) node << SEQUENCE_BITS | sequence;
+	}
+
+	public static int nodeOf(long id) {
+		return (int) (id >>> SEQUENCE_BITS);
+	}
+
+	public static long sequenceOf(long id) {
+		return id & MAX_SEQUENCE;
+	}
+
+	// The id of this node with the given sequence number
+	public long id(long sequence) {
+		return id(node, sequence);
+	}
+
+	// Sequence number of the next id of this node
+	public long nextSequence() {
+		return next.get();
+	}
+
+	// String of the next id of this node. It stays the next one until it is used
+	public String nextId() {
+		return format(id(next.get()));
+	}
+
+	// An id was registered: the next id of this node is past it
+	// Ids of other nodes and strings that are not ids do not change the next id
+	public void used(String id) {
+		long number = parse(id);
+		if (number >= 0 && nodeOf(number) == node) {
+			long after = sequenceOf(number) + 1;
+			next.accumulateAndGet(after, Math::max);
+		}
+	}
+
+	// The string of an id
+	public String format(long id) {
+		int node = nodeOf(id);
+		if (node == 0)
+			return prefix + sequenceOf(id);
+		return prefix + node + "-" + sequenceOf(id);
+	}
+
+	// The id of a string, of any node, -1 if it is not the string of an id
+	public long parse(String id) {
+		if (id == null || !id.startsWith(prefix))
+			return -1;
+		int from = prefix.length();
+		int dash = id.indexOf('-', from);
+		if (dash < 0)
+			return parseNumber(id, from, id.length(), MAX_SEQUENCE);
+		long node = parseNumber(id, from, dash, MAX_NODE);
+		long sequence = parseNumber(id, dash + 1, id.length(), MAX_SEQUENCE);
+		// node 0 is written without a node
+		if (node <= 0 || sequence < 0)
+			return -1;
+		return id((int) node, sequence);
+	}
+
+	// The decimal number between from and to, -1 if it is not one, has leading zeros or is above max
+	private static long parseNumber(String s, int from, int to, long max) {
+		int length = to - from;
+		if (length < 1 || length > 18 || (length > 1 && s.charAt(from) == '0'))
+			return -1;
+		long number = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			number = number * 10 + (c - '0');
+		}
+		return number <= max ? number : -1;
+	}
+}
@@ -0,0 +1,622 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+ *
+ * Append-only journal of the changes made to a TMUberSystemManager, so that
+ * the system can be rebuilt after a crash from its last snapshot plus the
+ * journal records written after it (see TMUberSystemManager.recover).
+ *
+ * Every change is one record with a sequence number. A record holds the
+ * outcome of the operation, e.g. the request id and the driver a request got,
+ * so replaying it does not depend on the order concurrent operations ran in.
+ * Records are appended by the manager while it holds the lock that orders the
+ * change (zone lock, driver lock or registration lock).
+ *
+ * Records are collected in memory and written by a background thread, one
+ * batch at a time, which is how many operations share one fsync:
+ *   ALWAYS  an operation returns once its record is on disk (group commit)
+ *   BATCH   records are written and synced every sync interval, a crash loses
+ *           at most the last interval
+ *   NEVER   records are written every sync interval and never synced, the
+ *           operating system decides when they reach the disk
+ *
+ * Record layout (big endian): int length of the body, the body, int CRC32 of
+ * the body. The body is long sequence number, byte record type, then the
+ * fields of the record, strings as their length in UTF-8 bytes followed by the
+ * bytes. A record cut short by a crash fails its checksum and ends the journal.
+ *
+ * Saving a snapshot empties the journal (see truncate): it only holds the
+ * changes made since the last snapshot, and is read a buffer at a time, so its
+ * size is not limited by memory.
+ */
+public class TMUberJournal implements Closeable {
+	public static enum SyncPolicy {ALWAYS, BATCH, NEVER};
+
+	public static final long DEFAULT_SYNC_INTERVAL = 10; // milliseconds
+
+	// Record types
+	private static final byte USER = 1;
+	private static final byte DRIVER = 2;
+	private static final byte RIDE = 3;
+	private static final byte DELIVERY = 4;
+	private static final byte CANCEL = 5;
+	private static final byte PICKUP = 6;
+	private static final byte DROPOFF = 7;
+	private static final byte DRIVETO = 8;
+	private static final byte DRIVER_STATE = 9; // a driver added with its state, see driverRegistered(Driver)
+
+	private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+	private static final int READ_BUFFER_SIZE = 1 << 20; // read at a time when scanning a journal file
+
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final long syncInterval;
+	private final Thread writer;
+
+	// Guarded by this
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // records not written yet
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private long lastSequence;    // sequence number of the last appended record
+	private long writtenSequence; // all records up to this one are written (and synced unless NEVER)
+	private long syncRequested;   // ALWAYS: an operation waits for the records up to this one
+	private int recordStart;      // position in pending of the record being appended
+	private boolean closed;
+	private IOException failure;
+
+	private final CRC32 crc = new CRC32(); // guarded by this
+
+	/*
+	 * Open a journal file for appending, creating it if needed.
+	 * A record cut short at the end of the file (by a crash) is removed.
+	 */
+	public TMUberJournal(String filename, SyncPolicy policy, long syncInterval) throws IOException {
+		if (syncInterval <= 0)
+			throw new IllegalArgumentException("Invalid sync interval " + syncInterval);
+		this.policy = policy;
+		this.syncInterval = syncInterval;
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long[] end = scan(channel, 0, null);
+		channel.truncate(end[0]);
+		channel.position(end[0]);
+		lastSequence = end[1];
+		writtenSequence = end[1];
+		writer = new Thread(this::writeLoop, "TMUberJournal writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public TMUberJournal(String filename, SyncPolicy policy) throws IOException {
+		this(filename, policy, DEFAULT_SYNC_INTERVAL);
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return policy;
+	}
+
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	// Continue numbering after the given sequence number, e.g. the one of a restored snapshot
+	synchronized void advanceTo(long sequence) {
+		if (sequence > lastSequence) {
+			lastSequence = sequence;
+			if (sequence > writtenSequence)
+				writtenSequence = sequence;
+		}
+	}
+
+	// Records, appended by TMUberSystemManager
+
+	void userRegistered(User user) {
+		synchronized (this) {
+			begin(USER);
+			putString(user.getAccountId());
+			putString(user.getName());
+			putString(user.getAddress());
+			putLong(user.getWallet());
+			end();
+		}
+	}
+
+	// A driver added with the state DriverFleet.add(Driver) copies: type, zone, wallet, status and
+	// the service it is working on, with the account id of its user
+	void driverRegistered(Driver driver) {
+		synchronized (this) {
+			begin(DRIVER_STATE);
+			putString(driver.getId());
+			putString(driver.getName());
+			putString(driver.getCarModel());
+			putString(driver.getLicensePlate());
+			putString(driver.getAddress());
+			putString(driver.getType());
+			putInt(driver.getZone());
+			putLong(driver.getWallet());
+			putByte((byte) driver.getStatus().ordinal());
+			TMUberService service = driver.getTmuberService();
+			if (service == null) {
+				putByte((byte) 0);
+			} else {
+				boolean ride = service instanceof TMUberRide;
+				putByte(ride ? RIDE : DELIVERY);
+				putLong(service.getRequestId());
+				putLong(service.getQueuedAt());
+				putString(service.getUser().getAccountId());
+				putString(service.getFrom());
+				putString(service.getTo());
+				putInt(service.getDistance());
+				putLong(service.getCost());
+				if (ride) {
+					putInt(((TMUberRide) service).getNumPassengers());
+					putByte(((TMUberRide) service).isRequestedXL() ? (byte) 1 : (byte) 0);
+				} else {
+					putString(((TMUberDelivery) service).getRestaurant());
+					putString(((TMUberDelivery) service).getFoodOrderId());
+				}
+			}
+			end();
+		}
+	}
+
+	// A driver registered with these fields, journaled before the driver is added to the system
+	void driverRegistered(String id, String name, String carModel, String licensePlate, String address) {
+		synchronized (this) {
+			begin(DRIVER);
+			putString(id);
+			putString(name);
+			putString(carModel);
+			putString(licensePlate);
+			putString(address);
+			end();
+		}
+	}
+
+	// A request was queued, driver is the driver it took out of the available pool
+	void requestQueued(TMUberService service, Driver driver) {
+		synchronized (this) {
+			boolean ride = service instanceof TMUberRide;
+			begin(ride ? RIDE : DELIVERY);
+			putLong(service.getRequestId());
+			putLong(service.getQueuedAt());
+			putString(service.getUser().getAccountId());
+			putString(service.getFrom());
+			putString(service.getTo());
+			putInt(service.getDistance());
+			putLong(service.getCost());
+			putString(driver.getId());
+			if (ride) {
+				putInt(((TMUberRide) service).getNumPassengers());
+				putByte(((TMUberRide) service).isRequestedXL() ? (byte) 1 : (byte) 0);
+			} else {
+				putString(((TMUberDelivery) service).getRestaurant());
+				putString(((TMUberDelivery) service).getFoodOrderId());
+			}
+			end();
+		}
+	}
+
+	void requestCancelled(long requestId) {
+		synchronized (this) {
+			begin(CANCEL);
+			putLong(requestId);
+			end();
+		}
+	}
+
+	void pickedUp(Driver driver, TMUberService service) {
+		synchronized (this) {
+			begin(PICKUP);
+			putString(driver.getId());
+			putLong(service.getRequestId());
+			end();
+		}
+	}
+
+	void droppedOff(Driver driver) {
+		synchronized (this) {
+			begin(DROPOFF);
+			putString(driver.getId());
+			end();
+		}
+	}
+
+	void droveTo(Driver driver, String address) {
+		synchronized (this) {
+			begin(DRIVETO);
+			putString(driver.getId());
+			putString(address);
+			end();
+		}
+	}
+
+	/*
+	 * Wait until all the records appended so far are on disk, with the ALWAYS policy.
+	 * The other policies do not wait.
+	 */
+	public void sync() {
+		if (policy != SyncPolicy.ALWAYS)
+			return;
+		synchronized (this) {
+			long target = lastSequence;
+			if (target > syncRequested) {
+				syncRequested = target;
+				notifyAll(); // wake up the writer
+			}
+			boolean interrupted = false;
+			while (writtenSequence < target && failure == null && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			checkFailure();
+		}
+	}
+
+	/*
+	 * Remove all the records from the file, once a snapshot holds them (see
+	 * TMUberSystemManager.saveSnapshot). The records appended so far are written
+	 * first; no record may be appended meanwhile. Numbering goes on from the last
+	 * record, so the records appended next are replayed after the snapshot.
+	 */
+	synchronized void truncate() throws IOException {
+		if (closed)
+			throw new IllegalStateException("Journal is closed");
+		if (lastSequence > syncRequested)
+			syncRequested = lastSequence;
+		notifyAll(); // wake up the writer
+		boolean interrupted = false;
+		while (writtenSequence < lastSequence && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw failure;
+		// the writer is waiting for records, the file is not being written
+		channel.truncate(0);
+		channel.force(true);
+	}
+
+	// Write and sync all appended records, then close the file
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	// Start a record in the pending buffer, the length is filled in by end()
+	private void begin(byte type) {
+		if (closed)
+			throw new IllegalStateException("Journal is closed");
+		checkFailure();
+		reserve(13);
+		recordStart = pending.position();
+		pending.putInt(0);
+		pending.putLong(lastSequence + 1);
+		pending.put(type);
+	}
+
+	// Finish the record started by begin(): fill in its length and add its checksum
+	private void end() {
+		int bodyLength = pending.position() - recordStart - 4;
+		pending.putInt(recordStart, bodyLength);
+		crc.reset();
+		crc.update(pending.array(), pending.arrayOffset() + recordStart + 4, bodyLength);
+		reserve(4);
+		pending.putInt((int) crc.getValue());
+		lastSequence++;
+	}
+
+	// Make room for n more bytes in the pending buffer, positions in it stay the same
+	private void reserve(int n) {
+		if (pending.remaining() >= n)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + n));
+		pending.flip();
+		larger.put(pending);
+		pending = larger;
+	}
+
+	private void putByte(byte b) {
+		reserve(1);
+		pending.put(b);
+	}
+
+	private void putInt(int i) {
+		reserve(4);
+		pending.putInt(i);
+	}
+
+	private void putLong(long l) {
+		reserve(8);
+		pending.putLong(l);
+	}
+
+	private void putString(String s) {
+		if (s == null) {
+			putInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		putInt(bytes.length);
+		reserve(bytes.length);
+		pending.put(bytes);
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new UncheckedIOException("Journal write failed", failure);
+	}
+
+	// Background writer: writes the pending records in batches
+	private void writeLoop() {
+		try {
+			while (true) {
+				ByteBuffer batch;
+				long sequence;
+				boolean last;
+				synchronized (this) {
+					if (policy == SyncPolicy.ALWAYS) {
+						while (!closed && syncRequested <= writtenSequence)
+							wait();
+					} else if (!closed) {
+						wait(syncInterval);
+					}
+					last = closed;
+					if (pending.position() == 0 && !last) {
+						writtenSequence = lastSequence;
+						continue;
+					}
+					batch = pending;
+					pending = spare;
+					spare = null;
+					sequence = lastSequence;
+				}
+				batch.flip();
+				while (batch.hasRemaining())
+					channel.write(batch);
+				if (policy != SyncPolicy.NEVER || last)
+					channel.force(false);
+				synchronized (this) {
+					batch.clear();
+					spare = batch;
+					writtenSequence = sequence;
+					notifyAll();
+				}
+				if (last)
+					return;
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			// the writer is never interrupted
+		}
+	}
+
+	/*
+	 * Replay the records of a journal file with a sequence number after the given one
+	 * into a system. Returns the sequence number of the last record replayed, or
+	 * afterSequence if there is none. A missing journal file has no records.
+	 */
+	static long replay(String filename, long afterSequence, TMUberSystemManager tmuber) throws IOException {
+		Path path = Paths.get(filename);
+		if (!Files.exists(path))
+			return afterSequence;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long[] end = scan(channel, afterSequence, tmuber);
+			return Math.max(afterSequence, end[1]);
+		}
+	}
+
+	/*
+	 * Go through the valid records of a journal file, replaying the ones after the
+	 * given sequence number if tmuber is not null.
+	 * Returns the end of the last valid record and its sequence number.
+	 */
+	private static long[] scan(FileChannel channel, long afterSequence, TMUberSystemManager tmuber) throws IOException {
+		long size = channel.size();
+		// The file is read a buffer at a time, the buffer starts at the end of the last valid record
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		in.flip();
+		CRC32 crc = new CRC32();
+		long end = 0;
+		long sequence = 0;
+		while (true) {
+			in = fill(channel, in, end, 4);
+			if (in.remaining() < 4)
+				break;
+			int length = in.getInt(in.position());
+			if (length < 9 || length > size - end - 8)
+				break;
+			in = fill(channel, in, end, length + 8);
+			if (in.remaining() < length + 8)
+				break;
+			int bodyStart = in.position() + 4;
+			crc.reset();
+			crc.update(in.array(), in.arrayOffset() + bodyStart, length);
+			if (in.getInt(bodyStart + length) != (int) crc.getValue())
+				break;
+			ByteBuffer record = ByteBuffer.wrap(in.array(), in.arrayOffset() + bodyStart, length).slice();
+			in.position(bodyStart + length + 4);
+			end += length + 8;
+			long recordSequence = record.getLong();
+			if (tmuber != null && recordSequence > afterSequence) {
+				try {
+					apply(record, tmuber);
+				} catch (RuntimeException e) {
+					throw new IOException("Journal replay failed at record " + recordSequence + ": " + e.getMessage(), e);
+				}
+			}
+			sequence = recordSequence;
+		}
+		return new long[] {end, sequence};
+	}
+
+	/*
+	 * Make the next n bytes of the file available in the buffer, reading it from the file
+	 * after the bytes it holds. offset is the position in the file of the start of the
+	 * buffer. Returns the buffer, a larger one if n bytes do not fit; fewer than n bytes
+	 * remain in it at the end of the file.
+	 */
+	private static ByteBuffer fill(FileChannel channel, ByteBuffer in, long offset, int n) throws IOException {
+		if (in.remaining() >= n)
+			return in;
+		long readAt = offset + in.remaining();
+		if (in.capacity() < n) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(n, in.capacity() * 2));
+			larger.put(in);
+			in = larger;
+		} else {
+			in.compact();
+		}
+		while (in.hasRemaining()) {
+			int read = channel.read(in, readAt);
+			if (read < 0)
+				break;
+			readAt += read;
+		}
+		in.flip();
+		return in;
+	}
+
+	// Replay one record, positioned after its sequence number
+	private static void apply(ByteBuffer record, TMUberSystemManager tmuber) {
+		byte type = record.get();
+		switch (type) {
+		case USER:
+			tmuber.restoreUser(new User(getString(record), getString(record), getString(record), record.getLong()));
+			break;
+		case DRIVER: {
+			Driver driver = tmuber.restoreDriver(getString(record), getString(record), getString(record), getString(record),
+					getString(record));
+			tmuber.restoreAvailableDriver(driver);
+			break;
+		}
+		case DRIVER_STATE: {
+			Driver driver = tmuber.restoreDriver(getString(record), getString(record), getString(record), getString(record),
+					getString(record));
+			driver.setType(getString(record));
+			driver.setZone(record.getInt());
+			driver.setWallet(record.getLong());
+			driver.setStatus(Driver.Status.values()[record.get()]);
+			byte kind = record.get();
+			if (kind != 0) {
+				long requestId = record.getLong();
+				long queuedAt = record.getLong();
+				String accountId = getString(record);
+				User user = tmuber.getUser(accountId);
+				if (user == null)
+					throw new IllegalStateException("User Account Not Found " + accountId);
+				String from = getString(record);
+				String to = getString(record);
+				int distance = record.getInt();
+				long cost = record.getLong();
+				TMUberService service;
+				if (kind == RIDE) {
+					TMUberRide ride = new TMUberRide(from, to, user, distance, cost);
+					ride.setNumPassengers(record.getInt());
+					ride.setRequestedXL(record.get() != 0);
+					service = ride;
+				} else {
+					service = new TMUberDelivery(from, to, user, distance, cost, getString(record), getString(record));
+				}
+				service.setDistance(distance);
+				service.setRequestId(requestId);
+				service.setQueuedAt(queuedAt);
+				driver.setTmuberService(service);
+			}
+			tmuber.restoreAvailableDriver(driver);
+			break;
+		}
+		case RIDE:
+		case DELIVERY: {
+			long requestId = record.getLong();
+			long queuedAt = record.getLong();
+			String accountId = getString(record);
+			User user = tmuber.getUser(accountId);
+			if (user == null)
+				throw new IllegalStateException("User Account Not Found " + accountId);
+			String from = getString(record);
+			String to = getString(record);
+			int distance = record.getInt();
+			long cost = record.getLong();
+			String driverId = getString(record);
+			TMUberService service;
+			if (type == RIDE) {
+				TMUberRide ride = new TMUberRide(from, to, user, distance, cost);
+				ride.setNumPassengers(record.getInt());
+				ride.setRequestedXL(record.get() != 0);
+				service = ride;
+			} else {
+				service = new TMUberDelivery(from, to, user, distance, cost, getString(record), getString(record));
+			}
+			service.setDistance(distance);
+			service.setRequestId(requestId);
+			service.setQueuedAt(queuedAt);
+			tmuber.replayRequest(service, driverId);
+			break;
+		}
+		case CANCEL:
+			tmuber.cancelServiceRequest(record.getLong());
+			break;
+		case PICKUP:
+			tmuber.replayPickup(getString(record), record.getLong());
+			break;
+		case DROPOFF:
+			tmuber.dropOff(getString(record));
+			break;
+		case DRIVETO:
+			tmuber.driveTo(getString(record), getString(record));
+			break;
+		default:
+			throw new IllegalStateException("Invalid record type " + type);
+		}
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		if (length > in.remaining())
+			throw new BufferUnderflowException();
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+}
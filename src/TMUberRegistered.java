@@ -1,24 +1,63 @@
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.function.Consumer;
 
 public class TMUberRegistered
 {
-    // These variables are used to generate user account and driver ids
-    private static int firstUserAccountID = 900;
-    private static int firstDriverId = 700;
+    // Number of lines of a user record (name, address, wallet) and of a driver record
+    // (name, car model, licence plate, address) in the preregistered files
+    public static final int USER_RECORD_LINES = 3;
+    public static final int DRIVER_RECORD_LINES = 4;
 
-    // Generate a new user account id
-    public static String generateUserAccountId(ArrayList<User> current) {
-        return "" + firstUserAccountID + current.size();
+    /*
+     * Stream the records of a preregistered users or drivers file to the sink, in file order.
+     * Each record is linesPerRecord consecutive lines; blank lines between records are skipped.
+     * The file is read through a buffered reader, one record at a time, so nothing but the
+     * current record is kept in memory. Returns the number of records read.
+     */
+    public static int readRecords(String filename, int linesPerRecord, Consumer<String[]> sink) throws IOException {
+        int count = 0;
+        BufferedReader reader;
+        try {
+            reader = Files.newBufferedReader(Paths.get(filename), Charset.defaultCharset());
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename + " (No such file or directory)");
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] record = new String[linesPerRecord];
+                record[0] = line;
+                for (int i = 1; i < linesPerRecord; i++) {
+                    record[i] = reader.readLine();
+                    if (record[i] == null)
+                        throw new IOException("Incomplete record " + (count + 1) + " in " + filename);
+                }
+                sink.accept(record);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
     }
 
-    // Generate a new driver id
-    public static String generateDriverId(ArrayList<Driver> current)
-    {
-        return "" + firstDriverId + current.size();
+    // Create a user from a user record (name, address, wallet)
+    public static User createUser(String id, String[] record) {
+        return new User(id, record[0], record[1], Money.parse(record[2]));
+    }
+
+    // Create a driver from a driver record (name, car model, licence plate, address)
+    public static Driver createDriver(String id, String[] record) {
+        return new Driver(id, record[0], record[1], record[2], record[3]);
     }
 
     // Database of Preregistered users
@@ -27,27 +66,14 @@ public class TMUberRegistered
     // users and drivers below. You may want to work with these to test your code (i.e. check your output with the
     // sample output provided). 
     public static ArrayList<User> loadPreregisteredUsers(String filename) throws Exception {
-		ArrayList<User> usersList = new ArrayList<User>();
-		try {  
-			//the file to be opened for reading  
-			FileInputStream fis = new FileInputStream(filename);       
-			Scanner sc = new Scanner(fis);    
-			
-			while(sc.hasNextLine()) {
-				User user = new User(generateUserAccountId(usersList), sc.nextLine(), sc.nextLine(), sc.nextInt());
-				if(sc.hasNextLine()) {
-					sc.nextLine();
-				}
-				user.printInfo();
-				System.out.println();
-				usersList.add(user);
-			}  
-			sc.close();      
-		} catch(FileNotFoundException e) {  
-			throw e;  
-		} catch(IOException ioe) {  
-			throw ioe;  
-		}
+		final ArrayList<User> usersList = new ArrayList<User>();
+		final TMUberIds ids = new TMUberIds(TMUberIds.USER_PREFIX);
+		readRecords(filename, USER_RECORD_LINES, record -> {
+			User user = createUser(ids.format(ids.id(usersList.size())), record);
+			user.printInfo();
+			System.out.println();
+			usersList.add(user);
+		});
 		return usersList;
     }
 
@@ -55,28 +81,14 @@ public class TMUberRegistered
     // Database of Preregistered users
     // In Assignment 2 these will be loaded from a file
     public static ArrayList<Driver> loadPreregisteredDrivers(String filename) throws Exception {
-    	ArrayList<Driver> driversList = new ArrayList<Driver>();
-		try {  
-			//the file to be opened for reading  
-			FileInputStream fis = new FileInputStream(filename);       
-			Scanner sc = new Scanner(fis);    
-			
-			while(sc.hasNextLine()) {
-				Driver driver = new Driver(generateDriverId(driversList), sc.nextLine(), sc.nextLine(), sc.nextLine(), sc.nextLine());
-//				if(sc.hasNextLine()) {
-//					sc.nextLine();
-//				}
-				driver.printInfo();
-				System.out.println();
-				driversList.add(driver);
-			}  
-			sc.close();      
-		} catch(FileNotFoundException e) {  
-			throw e;  
-		} catch(IOException ioe) {  
-			throw ioe;  
-		}
+    	final ArrayList<Driver> driversList = new ArrayList<Driver>();
+		final TMUberIds ids = new TMUberIds(TMUberIds.DRIVER_PREFIX);
+		readRecords(filename, DRIVER_RECORD_LINES, record -> {
+			Driver driver = createDriver(ids.format(ids.id(driversList.size())), record);
+			driver.printInfo();
+			System.out.println();
+			driversList.add(driver);
+		});
 		return driversList;
     }
 }
-
@@ -11,7 +11,7 @@ public class TMUberRide extends TMUberService
   
   public static final String TYPENAME = "RIDE";
   
-  public TMUberRide(String from, String to, User user, int distance, double cost)
+  public TMUberRide(String from, String to, User user, int distance, long cost)
   {
     super(from, to, user, distance, cost, TMUberRide.TYPENAME);
     requestedXL = false;
@@ -11,9 +11,11 @@ abstract public class TMUberService implements Comparable<TMUberService>
   private User user;
   private String type;  // Currently Ride or Delivery but other services could be added      
   private int distance; // Units are City Blocks
-  private double cost;  // Cost of the service
+  private long cost;  // Cost of the service, in cents (see Money)
+  private long requestId; // Assigned by the system when the request is queued
+  private long queuedAt;  // Time the request was queued (milliseconds since the epoch)
   
-  public TMUberService(String from, String to, User user, int distance, double cost, String type)
+  public TMUberService(String from, String to, User user, int distance, long cost, String type)
   {
     //this.serviceNumber = serviceNum;
     this.from = from;
@@ -22,7 +24,6 @@ abstract public class TMUberService implements Comparable<TMUberService>
     this.distance = distance;
     this.cost = cost;
     this.type = type;
-    this.distance = 0;
   }
 
 
@@ -62,11 +63,27 @@ abstract public class TMUberService implements Comparable<TMUberService>
   {
     this.distance = distance;
   }
-  public double getCost()
+  public long getRequestId()
+  {
+    return requestId;
+  }
+  public void setRequestId(long requestId)
+  {
+    this.requestId = requestId;
+  }
+  public long getQueuedAt()
+  {
+    return queuedAt;
+  }
+  public void setQueuedAt(long queuedAt)
+  {
+    this.queuedAt = queuedAt;
+  }
+  public long getCost()
   {
     return cost;
   }
-  public void setCost(double cost)
+  public void setCost(long cost)
   {
     this.cost = cost;
   }
@@ -85,6 +102,12 @@ abstract public class TMUberService implements Comparable<TMUberService>
     return type.equals(otherService.type) && user.equals(otherService.user);
   }
   
+  // Consistent with equals: based on type and user
+  public int hashCode()
+  {
+    return 31 * type.hashCode() + user.hashCode();
+  }
+  
   // Print Information 
   public void printInfo()
   {
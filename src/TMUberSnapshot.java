@@ -0,0 +1,386 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/*
+ *
+ * Binary snapshot of a TMUberSystemManager: users, drivers, the zone queues,
+ * the services the drivers are working on, the available drivers and the
+ * revenues. Restoring a snapshot is much faster than loading the text files
+ * since nothing has to be parsed.
+ *
+ * The file is written through a FileChannel and read back by mapping it in
+ * memory. All numbers are big endian, a string is its length in UTF-8 bytes
+ * (-1 for null) followed by the bytes. Users, services and drivers are stored
+ * once and referred to by their index. Layout:
+ *
+ *   header    int MAGIC, int VERSION, int avenues, int streets (see CityMap),
+ *             int number of zones, int queue capacity,
+ *             long last request id, long last journal sequence number,
+ *             long total revenue in cents (see Money)
+ *   users     int count, then per user: id, name, address, long wallet,
+ *             int rides, int deliveries
+ *   services  int count, then per service: byte RIDE or DELIVERY, long request id,
+ *             long queued at, from, to, int user index, int distance, long cost,
+ *             byte active,
+ *             then for a ride: int passengers, byte XL
+ *             or for a delivery: restaurant, food order id
+ *   drivers   int count, then per driver: id, name, car model, licence plate,
+ *             address, type, int zone, long wallet, byte status,
+ *             int service index (-1 for none)
+ *   queues    per zone: int count, then the service indexes from first to last.
+ *             A request is restored in the zone of its pickup address, the city
+ *             must have the same size but may be split in zones differently:
+ *             the restored system starts with the zones of the city, like a
+ *             new system, and drivers get the zone of their address there
+ *   pools     int number of available driver lists (one per block, see
+ *             DriverPool), then per list: int count, then the driver indexes
+ *             from longest waiting to last
+ *
+ * A snapshot is written to a temporary file which then replaces the old one,
+ * so a failed write never leaves a half written snapshot behind.
+ */
+public class TMUberSnapshot {
+	public static final int MAGIC = 0x544D5542; // "TMUB"
+	public static final int VERSION = 5;
+
+	private static final byte RIDE = 0;
+	private static final byte DELIVERY = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Write a snapshot of a system, the caller makes sure the system does not change meanwhile
+	static void write(TMUberSystemManager tmuber, String filename) throws IOException {
+		Path path = Paths.get(filename);
+		Path tmp = Paths.get(filename + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			Writer out = new Writer(channel);
+			writeState(tmuber, out);
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeState(TMUberSystemManager tmuber, Writer out) throws IOException {
+		int numZones = tmuber.getNumZones();
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(CityMap.getAvenues());
+		out.putInt(CityMap.getStreets());
+		out.putInt(numZones);
+		out.putInt(tmuber.getQueueCapacity());
+		out.putLong(tmuber.getLastRequestId());
+		out.putLong(tmuber.getJournalSequence());
+		out.putLong(tmuber.getTotalRevenue());
+
+		// The services are the queued ones and the ones the drivers are working on
+		ArrayList<TMUberService> services = new ArrayList<TMUberService>();
+		IdentityHashMap<TMUberService, Integer> serviceIndex = new IdentityHashMap<TMUberService, Integer>();
+		for (int zone = 0; zone < numZones; zone++) {
+			for (TMUberService service : tmuber.getQueue(zone))
+				addService(services, serviceIndex, service);
+		}
+		List<Driver> drivers = tmuber.getDriversList();
+		for (int i = 0; i < drivers.size(); i++) {
+			TMUberService service = drivers.get(i).getTmuberService();
+			if (service != null)
+				addService(services, serviceIndex, service);
+		}
+
+		// The index of the users of the services is found by account id while the users are written,
+		// the users of a store may not be kept as objects
+		UserStore users = tmuber.getUsers();
+		HashMap<String, Integer> userIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < services.size(); i++)
+			userIndex.put(services.get(i).getUser().getAccountId(), -1);
+		out.putInt(users.size());
+		for (int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			String accountId = user.getAccountId();
+			if (userIndex.containsKey(accountId))
+				userIndex.put(accountId, i);
+			out.putString(accountId);
+			out.putString(user.getName());
+			out.putString(user.getAddress());
+			out.putLong(user.getWallet());
+			out.putInt(user.getRides());
+			out.putInt(user.getDeliveries());
+		}
+
+		out.putInt(services.size());
+		for (int i = 0; i < services.size(); i++) {
+			TMUberService service = services.get(i);
+			out.putByte(service instanceof TMUberRide ? RIDE : DELIVERY);
+			out.putLong(service.getRequestId());
+			out.putLong(service.getQueuedAt());
+			out.putString(service.getFrom());
+			out.putString(service.getTo());
+			out.putInt(userIndex.get(service.getUser().getAccountId()));
+			out.putInt(service.getDistance());
+			out.putLong(service.getCost());
+			out.putByte(tmuber.isActiveRequest(service) ? (byte) 1 : (byte) 0);
+			if (service instanceof TMUberRide) {
+				TMUberRide ride = (TMUberRide) service;
+				out.putInt(ride.getNumPassengers());
+				out.putByte(ride.isRequestedXL() ? (byte) 1 : (byte) 0);
+			} else {
+				TMUberDelivery delivery = (TMUberDelivery) service;
+				out.putString(delivery.getRestaurant());
+				out.putString(delivery.getFoodOrderId());
+			}
+		}
+
+		// A driver is stored at its index in the fleet, the index the pool lists refer to
+		out.putInt(drivers.size());
+		for (int i = 0; i < drivers.size(); i++) {
+			Driver driver = drivers.get(i);
+			out.putString(driver.getId());
+			out.putString(driver.getName());
+			out.putString(driver.getCarModel());
+			out.putString(driver.getLicensePlate());
+			out.putString(driver.getAddress());
+			out.putString(driver.getType());
+			out.putInt(driver.getZone());
+			out.putLong(driver.getWallet());
+			out.putByte((byte) driver.getStatus().ordinal());
+			TMUberService service = driver.getTmuberService();
+			out.putInt(service == null ? -1 : serviceIndex.get(service));
+		}
+
+		for (int zone = 0; zone < numZones; zone++) {
+			ZoneQueue queue = tmuber.getQueue(zone);
+			out.putInt(queue.size());
+			for (TMUberService service : queue)
+				out.putInt(serviceIndex.get(service));
+		}
+
+		DriverPool pool = tmuber.getAvailableDrivers();
+		out.putInt(pool.numBuckets());
+		for (int i = 0; i < pool.numBuckets(); i++) {
+			ArrayList<Driver> available = pool.list(i);
+			out.putInt(available.size());
+			for (int j = 0; j < available.size(); j++)
+				out.putInt(available.get(j).getIndex());
+		}
+	}
+
+	private static void addService(ArrayList<TMUberService> services, IdentityHashMap<TMUberService, Integer> serviceIndex,
+			TMUberService service) {
+		if (!serviceIndex.containsKey(service)) {
+			serviceIndex.put(service, services.size());
+			services.add(service);
+		}
+	}
+
+	// Create a system from a snapshot file, giving the ids of node
+	// The users are kept in the given empty store
+	static TMUberSystemManager read(String filename, UserStore users, int node) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot file " + filename + " is too large");
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return readState(new Reader(in), filename, users, node);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(filename + " (No such file or directory)");
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException("Snapshot file " + filename + " is truncated or corrupt");
+		}
+	}
+
+	private static TMUberSystemManager readState(Reader in, String filename, UserStore store, int node) throws IOException {
+		if (in.getInt() != MAGIC)
+			throw new IOException(filename + " is not a snapshot file");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version + " in " + filename);
+		int avenues = in.getInt();
+		int streets = in.getInt();
+		if (avenues != CityMap.getAvenues() || streets != CityMap.getStreets())
+			throw new IOException("Snapshot " + filename + " is for a city of " + avenues + " x " + streets + " blocks, not "
+					+ CityMap.getAvenues() + " x " + CityMap.getStreets());
+		int numZones = in.getInt();
+		TMUberSystemManager tmuber = new TMUberSystemManager(in.getInt(), store, node);
+		long lastRequestId = in.getLong();
+		long journalSequence = in.getLong();
+		long totalRevenue = in.getLong();
+		tmuber.restoreCounters(lastRequestId, journalSequence, totalRevenue);
+
+		User[] users = new User[in.getInt()];
+		for (int i = 0; i < users.length; i++) {
+			User user = new User(in.getString(), in.getString(), in.getString(), in.getLong());
+			user.setRides(in.getInt());
+			user.setDeliveries(in.getInt());
+			users[i] = tmuber.restoreUser(user);
+		}
+
+		TMUberService[] services = new TMUberService[in.getInt()];
+		boolean[] active = new boolean[services.length];
+		for (int i = 0; i < services.length; i++) {
+			byte kind = in.get();
+			long requestId = in.getLong();
+			long queuedAt = in.getLong();
+			String from = in.getString();
+			String to = in.getString();
+			User user = users[in.getInt()];
+			int distance = in.getInt();
+			long cost = in.getLong();
+			active[i] = in.get() != 0;
+			TMUberService service;
+			if (kind == RIDE) {
+				TMUberRide ride = new TMUberRide(from, to, user, distance, cost);
+				ride.setNumPassengers(in.getInt());
+				ride.setRequestedXL(in.get() != 0);
+				service = ride;
+			} else if (kind == DELIVERY) {
+				service = new TMUberDelivery(from, to, user, distance, cost, in.getString(), in.getString());
+			} else {
+				throw new IOException("Invalid service type " + kind + " in snapshot " + filename);
+			}
+			service.setDistance(distance);
+			service.setRequestId(requestId);
+			service.setQueuedAt(queuedAt);
+			services[i] = service;
+		}
+
+		Driver[] drivers = new Driver[in.getInt()];
+		Driver.Status[] statuses = Driver.Status.values();
+		for (int i = 0; i < drivers.length; i++) {
+			Driver driver = tmuber.restoreDriver(in.getString(), in.getString(), in.getString(), in.getString(), in.getString());
+			driver.setType(in.getString());
+			in.getInt(); // the zone, which follows from the address in the zones of the restored system
+			driver.setWallet(in.getLong());
+			driver.setStatus(statuses[in.get()]);
+			int service = in.getInt();
+			if (service >= 0)
+				driver.setTmuberService(services[service]);
+			drivers[i] = driver;
+		}
+
+		// Queue the requests in their order, the other services are only held by drivers
+		boolean[] queued = new boolean[services.length];
+		for (int zone = 0; zone < numZones; zone++) {
+			int count = in.getInt();
+			for (int j = 0; j < count; j++) {
+				int service = in.getInt();
+				queued[service] = true;
+				tmuber.restoreRequest(services[service], tmuber.getZones().getZone(services[service].getFrom()), active[service]);
+			}
+		}
+		for (int i = 0; i < services.length; i++) {
+			if (!queued[i])
+				tmuber.restoreRequest(services[i], -1, active[i]);
+		}
+
+		int numLists = in.getInt();
+		for (int i = 0; i < numLists; i++) {
+			int count = in.getInt();
+			for (int j = 0; j < count; j++)
+				tmuber.restoreAvailableDriver(drivers[in.getInt()]);
+		}
+		return tmuber;
+	}
+
+	// Reads from the mapped snapshot file
+	private static class Reader {
+		private final ByteBuffer buffer;
+		private byte[] bytes = new byte[64]; // reused to decode strings
+
+		Reader(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		byte get() {
+			return buffer.get();
+		}
+
+		int getInt() {
+			return buffer.getInt();
+		}
+
+		long getLong() {
+			return buffer.getLong();
+		}
+
+		String getString() {
+			int length = buffer.getInt();
+			if (length < 0)
+				return null;
+			if (length > bytes.length)
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			buffer.get(bytes, 0, length);
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	// Buffered writes to a file channel
+	private static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		// Make room for n more bytes in the buffer
+		private void reserve(int n) throws IOException {
+			if (buffer.remaining() < n)
+				flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		void putByte(byte b) throws IOException {
+			reserve(1);
+			buffer.put(b);
+		}
+
+		void putInt(int i) throws IOException {
+			reserve(4);
+			buffer.putInt(i);
+		}
+
+		void putLong(long l) throws IOException {
+			reserve(8);
+			buffer.putLong(l);
+		}
+
+		void putString(String s) throws IOException {
+			if (s == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			if (bytes.length > buffer.capacity()) {
+				flush();
+				ByteBuffer large = ByteBuffer.wrap(bytes);
+				while (large.hasRemaining())
+					channel.write(large);
+				return;
+			}
+			reserve(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+}
@@ -1,11 +1,25 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /*
  * 
@@ -13,576 +27,1817 @@ import java.util.Queue;
  * 
  *  It keeps track of all users, drivers and service requests (RIDE or DELIVERY)
  * 
+ *  The system can be used from several threads at once. Locking is striped by
+ *  city zone: each zone queue has its own lock, so requests, pickups and
+ *  cancellations in different zones do not contend. Driver status changes are
+ *  atomic (see Driver.compareAndSetStatus) and a driver is locked while it is
+ *  being dropped off. Locks are always taken in the order zone, driver pool,
+ *  driver.
+ *
+ *  The whole state can be saved to a binary snapshot file and restored from it
+ *  (see TMUberSnapshot). Changes can also be written to a journal, so that the
+ *  system can be recovered from the last snapshot and the journal after a crash
+ *  (see TMUberJournal).
+ * 
  */
 public class TMUberSystemManager {
-	private Map<String, User> users;
-	private Map<String, Driver> drivers;
-	
-	private ArrayList<User> usersList;
-	private ArrayList<Driver> driversList;
-	private ArrayList<TMUberService> serviceRequests;
+	// The registered users, by account id and in registration order (see UserStore).
+	// Users are registered and listed holding the lock of the store
+	private UserStore users;
+	// The users sorted by name and by wallet, null until first listed (see SortedUsers)
+	private volatile SortedUsers usersByName;
+	private volatile SortedUsers usersByWallet;
+	// The registered drivers by column (see DriverFleet), in registration order.
+	// Drivers are registered holding the lock of the fleet
+	private DriverFleet drivers;
+
+	// How the city is split in zones in this system, one queue per zone. It starts as the
+	// zones of the city (see CityMap.getZones) and is replaced by rezone
+	private CityMap.Zones cityZones;
 			
-	@SuppressWarnings("unchecked")
-	private Queue<TMUberService>[] queues = null;
+	private ZoneQueue[] queues = null;
+
+	// Maximum number of waiting requests per zone queue
+	public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+
+	// One lock per zone, guards the queue of that zone
+	private Object[] zoneLocks;
+
+	// Bit z is set when the queue of zone z is not empty, so that work stealing
+	// only looks at those zones however many zones the city has
+	private AtomicLongArray nonEmptyQueues;
+
+	// Number of requests in the queue of each zone, readable without the zone lock
+	private AtomicIntegerArray queueDepths;
+
+	// Number of changes made to the queue of each zone, guarded by the zone lock: rezone
+	// tells which queues changed while it was making the new ones
+	private long[] queueVersions;
+
+	// Held by rezone, so that a single rezone runs at a time
+	private final Object rezoneLock = new Object();
+
+	// Surge pricing of rides and deliveries, null for the normal rates
+	private volatile SurgePricing surgePricing;
+
+	// Active requests (queued or being driven), keyed by the request itself so that equal
+	// requests (see TMUberService.equals) are found with one hash lookup
+	private Map<TMUberService, TMUberService> activeRequests;
 
-	public double totalRevenue; // Total revenues accumulated via rides and deliveries
+	// Queued requests by request id, nothing boxed per request. Request ids are never reused
+	private LongHashMap<TMUberService> pendingRequests;
+	// Queued requests by distance, then request id
+	private final ConcurrentSkipListSet<TMUberService> requestsByDistance = new ConcurrentSkipListSet<TMUberService>(
+			Comparator.comparingInt(TMUberService::getDistance).thenComparingLong(TMUberService::getRequestId));
+	private AtomicLong lastRequestId = new AtomicLong();
 
-	// Rates per city block
-	private static final double DELIVERYRATE = 1.2;
-	private static final double RIDERATE = 1.5;
+	// Available drivers kept per city block
+	private DriverPool availableDrivers;
 
-	// Portion of a ride/delivery cost paid to the driver
-	private static final double PAYRATE = 0.1;
+	// Order of the zone queues, null for first come first served
+	private volatile ServicePriority queuePriority;
 
-	// These variables are used to generate user account and driver ids
-	int userAccountId = 900;
-	int driverId = 700;
+	// Work stealing: when the queue of its zone is empty, a driver picks up in another zone
+	// at most stealDistance away (see CityMap.Zones.getZoneDistance) whose queue has at least
+	// stealMinQueue requests. A distance of 0 turns it off
+	private volatile int stealDistance = 1;
+	private volatile int stealMinQueue = 1;
+
+	// Runs rebalanceZones in the background, null if not started
+	private ScheduledExecutorService rezoner;
+
+	// Runs matchQueuedRequests in the background, null if not started
+	private ScheduledExecutorService matcher;
+
+	// Total revenues accumulated via rides and deliveries, in cents (see Money)
+	private final AtomicLong totalRevenue = new AtomicLong();
+
+	// Every operation that changes the system holds the read lock, so they still run
+	// concurrently. Saving a snapshot holds the write lock to see a consistent state
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+	// Journal of the changes, null if there is none. Only set holding the write lock
+	private TMUberJournal journal;
+	// Sequence number of the last journal record included in the state when there is no journal
+	private long journalSequence;
+
+	// Rates per city block, in cents
+	private static final long DELIVERYRATE = 120;
+	private static final long RIDERATE = 150;
+
+	// Percentage of a ride/delivery cost paid to the driver
+	private static final long PAYRATE = 10;
+
+	// The user account ids and driver ids given by this system
+	private final TMUberIds userIds;
+	private final TMUberIds driverIds;
 
 	public TMUberSystemManager() {
-		users = new HashMap<String, User>();
-		drivers = new HashMap<String, Driver>();
-		usersList = new ArrayList<User>();
-		driversList = new ArrayList<Driver>();
-		initializeQueues();
-		totalRevenue = 0;
+		this(DEFAULT_QUEUE_CAPACITY);
 	}
 
-	@SuppressWarnings("unchecked")
-	private void initializeQueues() {
-		queues = new LinkedList[4];
+	// Each zone queue holds up to queueCapacity waiting requests (rounded up to a power of two)
+	public TMUberSystemManager(int queueCapacity) {
+		this(queueCapacity, new HeapUserStore());
+	}
+
+	// The users are kept in the given store, which must be empty (e.g. an OffHeapUserStore for
+	// tens of millions of users)
+	public TMUberSystemManager(int queueCapacity, UserStore users) {
+		this(queueCapacity, users, 0);
+	}
+
+	// The ids given by the system are the ids of node (see TMUberIds): systems with different
+	// nodes never give the same id
+	public TMUberSystemManager(int queueCapacity, UserStore users, int node) {
+		if (users.size() != 0)
+			throw new IllegalArgumentException("The user store of a new system must be empty");
+		this.users = users;
+		userIds = new TMUberIds(TMUberIds.USER_PREFIX, node);
+		driverIds = new TMUberIds(TMUberIds.DRIVER_PREFIX, node);
+		pendingRequests = new LongHashMap<TMUberService>();
+		activeRequests = new ConcurrentHashMap<TMUberService, TMUberService>();
+		drivers = new DriverFleet(driverIds);
+		cityZones = CityMap.getZones();
+		initializeQueues(queueCapacity);
+		availableDrivers = new DriverPool(drivers);
+	}
+
+	// One queue per zone of the city, ordered by queuePriority
+	private void initializeQueues(int queueCapacity) {
+		queues = new ZoneQueue[cityZones.getNumZones()];
+		zoneLocks = new Object[queues.length];
 		for (int i = 0; i < queues.length; i++) {
-			this.queues[i] = new LinkedList<TMUberService>();
+			this.queues[i] = newQueue(queueCapacity, queuePriority);
+			this.zoneLocks[i] = new Object();
 		}
+		nonEmptyQueues = new AtomicLongArray((queues.length + 63) / 64);
+		queueDepths = new AtomicIntegerArray(queues.length);
+		queueVersions = new long[queues.length];
 	}
-	// Generate a new user account id
-	private String generateUserAccountId() {
-		return "" + userAccountId + users.size();
+
+	// Record the length of the queue of a zone and whether it is empty now
+	// Must be called holding the lock of the zone, after the queue changed
+	private void queueChanged(int zone) {
+		queueVersions[zone]++;
+		queueDepths.set(zone, queues[zone].size());
+		long bit = 1L << zone;
+		if (queues[zone].isEmpty())
+			nonEmptyQueues.getAndAccumulate(zone / 64, ~bit, (word, mask) -> word & mask);
+		else
+			nonEmptyQueues.getAndAccumulate(zone / 64, bit, (word, set) -> word | set);
+	}
+
+	// A FIFO zone queue, or a queue ordered by the given priority if it is not null
+	private static ZoneQueue newQueue(int queueCapacity, ServicePriority priority) {
+		if (priority == null)
+			return new ServiceQueue(queueCapacity);
+		return new PriorityServiceQueue(queueCapacity, priority);
 	}
 
-	// Generate a new driver id
-	private String generateDriverId() {
-		return "" + driverId + drivers.size();
+	/*
+	 * Choose the order requests are picked up in: by the given priority (see
+	 * ServicePriority), or first come first served if priority is null, which
+	 * is the default. The requests already waiting are moved to the new queues.
+	 */
+	public void setQueuePriority(ServicePriority priority) {
+		stateLock.writeLock().lock();
+		try {
+			for (int i = 0; i < queues.length; i++) {
+				ZoneQueue queue = newQueue(queues[i].capacity(), priority);
+				queue.addAll(queues[i]);
+				queues[i] = queue;
+			}
+			queuePriority = priority;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+
+	// Total revenues accumulated via rides and deliveries, in cents
+	public long getTotalRevenue() {
+		return totalRevenue.get();
+	}
+	// Add a user to the users, its id is not given again. Returns the user as stored
+	// Must hold the lock of the users
+	private User addUser(User user) {
+		user = users.add(user);
+		userIds.used(user.getAccountId());
+		if (usersByName != null)
+			usersByName.update(user);
+		if (usersByWallet != null)
+			usersByWallet.update(user);
+		return user;
 	}
 
-	public ArrayList<User> loadPreregisteredUsers(String filename) throws Exception {
-		ArrayList<User> usersLst = TMUberRegistered.loadPreregisteredUsers(filename);
-		setUsers(usersLst);
-		return usersLst;
+	// A driver was added to the fleet: its id is not given again. Returns the driver
+	// Must hold the lock of the drivers
+	private Driver addDriver(Driver driver) {
+		driverIds.used(driver.getId());
+		return driver;
+	}
+
+	// Number of records loaded and registered together by the bulk loaders
+	private static final int LOAD_CHUNK_SIZE = 4096;
+
+	// Load and register the users of a file, printing each one
+	// Returns the number of users loaded
+	public int loadPreregisteredUsers(String filename) throws Exception {
+		return loadPreregisteredUsers(filename, false, false);
 	}
 	
+	/*
+	 * Load and register the users of a file (see TMUberRegistered for the format).
+	 * The file is streamed: users are registered in chunks as they are read, without
+	 * building a full list first. silent turns off printing each user, and parallel
+	 * creates the users of each chunk in parallel. Returns the number of users loaded.
+	 */
+	public int loadPreregisteredUsers(String filename, final boolean silent, final boolean parallel) throws Exception {
+		stateLock.readLock().lock();
+		try {
+			final ArrayList<String[]> chunk = new ArrayList<String[]>(LOAD_CHUNK_SIZE);
+			int count = TMUberRegistered.readRecords(filename, TMUberRegistered.USER_RECORD_LINES, record -> {
+				chunk.add(record);
+				if (chunk.size() == LOAD_CHUNK_SIZE) {
+					registerUsers(chunk, silent, parallel);
+					chunk.clear();
+				}
+			});
+			registerUsers(chunk, silent, parallel);
+			syncJournal();
+			return count;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	// Create and register the users of a chunk of user records, ids follow the registration order
+	private void registerUsers(final ArrayList<String[]> records, boolean silent, boolean parallel) {
+		if (records.isEmpty())
+			return;
+		synchronized (users) {
+			final long first = userIds.nextSequence();
+			final User[] created = new User[records.size()];
+			IntStream indexes = IntStream.range(0, created.length);
+			if (parallel)
+				indexes = indexes.parallel();
+			indexes.forEach(i -> created[i] = TMUberRegistered.createUser(userIds.format(userIds.id(first + i)), records.get(i)));
+			for (int i = 0; i < created.length; i++) {
+				// journaled before the user can be found, see registerNewUser
+				if (journal != null)
+					journal.userRegistered(created[i]);
+				User user = addUser(created[i]);
+				if (!silent) {
+					user.printInfo();
+					System.out.println();
+				}
+			}
+		}
+	}
 	
-	public ArrayList<Driver> loadPreregisteredDrivers(String filename) throws Exception {
-		ArrayList<Driver> driversLst = TMUberRegistered.loadPreregisteredDrivers(filename);
-		setDrivers(driversLst);
-		return driversLst;
+	// Load and register the drivers of a file, printing each one
+	// Returns the number of drivers loaded
+	public int loadPreregisteredDrivers(String filename) throws Exception {
+		return loadPreregisteredDrivers(filename, false, false);
+	}
+
+	/*
+	 * Load and register the drivers of a file (see TMUberRegistered for the format).
+	 * Streams the file like loadPreregisteredUsers. Returns the number of drivers loaded.
+	 */
+	public int loadPreregisteredDrivers(String filename, final boolean silent, final boolean parallel) throws Exception {
+		stateLock.readLock().lock();
+		try {
+			final ArrayList<String[]> chunk = new ArrayList<String[]>(LOAD_CHUNK_SIZE);
+			int count = TMUberRegistered.readRecords(filename, TMUberRegistered.DRIVER_RECORD_LINES, record -> {
+				chunk.add(record);
+				if (chunk.size() == LOAD_CHUNK_SIZE) {
+					registerDrivers(chunk, silent, parallel);
+					chunk.clear();
+				}
+			});
+			registerDrivers(chunk, silent, parallel);
+			syncJournal();
+			return count;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	// Create and register the drivers of a chunk of driver records, ids follow the registration order
+	private void registerDrivers(final ArrayList<String[]> records, boolean silent, boolean parallel) {
+		if (records.isEmpty())
+			return;
+		// The addresses are looked up first, the drivers are then added one after the other
+		final Address[] addresses = new Address[records.size()];
+		IntStream indexes = IntStream.range(0, addresses.length);
+		if (parallel)
+			indexes = indexes.parallel();
+		indexes.forEach(i -> addresses[i] = CityMap.getAddress(records.get(i)[3]));
+		synchronized (drivers) {
+			for (int i = 0; i < addresses.length; i++) {
+				String[] record = records.get(i);
+				String id = driverIds.nextId();
+				// journaled before the driver can be found, see registerNewDriver
+				if (journal != null)
+					journal.driverRegistered(id, record[0], record[1], record[2], record[3]);
+				Driver driver = addDriver(drivers.add(id, record[0], record[1], record[2], record[3], addresses[i]));
+				availableDrivers.add(driver);
+				if (!silent) {
+					driver.printInfo();
+					System.out.println();
+				}
+			}
+		}
 	}
 	
 	public void setUsers(ArrayList<User> userList) {
-		for (int i = 0; i < userList.size(); i++) {
-			users.put(userList.get(i).getAccountId(), userList.get(i));
+		stateLock.readLock().lock();
+		try {
+			synchronized (users) {
+				for (int i = 0; i < userList.size(); i++) {
+					// journaled before the user can be found, see registerNewUser
+					if (journal != null)
+						journal.userRegistered(userList.get(i));
+					addUser(userList.get(i));
+				}
+			}
+			syncJournal();
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		this.usersList.addAll(userList);
 	}
 	
+	// The drivers are copied in the fleet of the system, with their current state
 	public void setDrivers(ArrayList<Driver> driverList) {
-		for (int i = 0; i < driverList.size(); i++) {
-			drivers.put(driverList.get(i).getId(), driverList.get(i));
+		stateLock.readLock().lock();
+		try {
+			synchronized (drivers) {
+				for (int i = 0; i < driverList.size(); i++) {
+					// journaled before the driver can be found, see registerNewDriver
+					if (journal != null)
+						journal.driverRegistered(driverList.get(i));
+					Driver driver = addDriver(drivers.add(driverList.get(i)));
+					availableDrivers.add(driver);
+				}
+			}
+			syncJournal();
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		this.driversList.addAll(driverList);
 	}
 
-	public void populateTMUberServicesArray() {
-		this.serviceRequests = new ArrayList<TMUberService>();
-		for (int i = 0; i < queues.length; i++) {	
-			Queue<TMUberService> queue = queues[i];
-			if(queue != null && !queue.isEmpty()) {
-				Iterator<TMUberService> qIterator = queue.iterator(); 
-				while (qIterator.hasNext()) { 
-					this.serviceRequests.add(qIterator.next());
-				} 
-			}
-		}		
-	}
-	
 	// Given user account id, find user in list of users
 	public User getUser(String accountId) {
-		for (Map.Entry<String, User> e : users.entrySet()) {
-			if (e.getKey().equals(accountId)) {
-				System.out.println(e.getKey() + " " + e.getValue());
-				return e.getValue();
-			}
-		}    
-		return null;
+		if (accountId == null) {
+			return null;
+		}
+		return users.get(accountId);
 	}
 
 	// Check for duplicate user
 	private boolean userExists(User user) {
-		for (Map.Entry<String, User> e : users.entrySet()) {
-			if (e.getKey().equals(user.getAccountId())) {
-				return true;
-			}
-		}    
-		return false;
-	}
-
-	// Check for duplicate driver
-	private boolean driverExists(Driver driver) {
-		for (Map.Entry<String, Driver> e : drivers.entrySet()) {
-			if (e.getKey().equals(driver.getId())) {
-				return true;
-			}
-		}    		
-		return false;
+		return users.get(user.getAccountId()) != null;
 	}
 
 	// Given a user, check if user ride/delivery request already exists in service
-	// requests
+	// requests and if not, register this one as active.
+	// The check covers all zones: a request is active from the time it is queued until it is
+	// cancelled or dropped off
 	private boolean existingRequest(TMUberService req) {
-		int zone = CityMap.getCityZone(req.getFrom());		
-		
-		if(zone != -1) {
-			Queue<TMUberService> queue = queues[zone];
-			if(queue != null) {
-				Iterator<TMUberService> qIterator = queue.iterator(); 
-			       
-				while (qIterator.hasNext()) { 
-					if (qIterator.next().equals(req))
-						return true;
-				} 					
+		return activeRequests.putIfAbsent(req, req) != null;
+	}
+
+	// A request is no longer active (cancelled or dropped off)
+	// Only this exact request is removed, not another request equal to it
+	private void removeActiveRequest(TMUberService req) {
+		activeRequests.remove(req, req);
+	}
+
+	// Calculate the cost in cents of a ride or of a delivery based on distance and on the
+	// surge multiplier of the pickup zone
+	private long getDeliveryCost(int distance, int zone) {
+		return surgeCost(Money.times(DELIVERYRATE, distance), zone);
+	}
+
+	private long getRideCost(int distance, int zone) {
+		return surgeCost(Money.times(RIDERATE, distance), zone);
+	}
+
+	// A cost with the surge multiplier of a zone applied, rounded to the cent
+	private long surgeCost(long cost, int zone) {
+		if (surgePricing == null)
+			return cost;
+		return Money.percent(cost, Math.round(surgeMultiplier(zone) * 100));
+	}
+
+	// Use the given surge pricing for new requests, or the normal rates if pricing is null (the default)
+	public void setSurgePricing(SurgePricing pricing) {
+		surgePricing = pricing;
+	}
+
+	/*
+	 * Surge multiplier of the prices in a zone right now, 1 without surge pricing.
+	 * Computed from the number of requests in the queue of the zone and of drivers
+	 * available in the zone, which are both counted as they change: no queue or
+	 * driver is looked at, so this takes the same time whatever their number.
+	 */
+	public double getSurgeMultiplier(int zone) {
+		stateLock.readLock().lock();
+		try {
+			if (zone < 0 || zone >= queues.length) {
+				throw new InvalidZoneNumberException("Invalid Zone # " + zone);
 			}
+			return surgeMultiplier(zone);
+		} finally {
+			stateLock.readLock().unlock();
 		}
+	}
+
+	// Must be called holding the read lock, so that the zones do not change
+	private double surgeMultiplier(int zone) {
+		SurgePricing pricing = surgePricing;
+		if (pricing == null)
+			return 1.0;
+		return pricing.multiplier(queueDepths.get(zone), availableDrivers.zoneSize(zone));
+	}
+
+	// Give a request a new request id and add it to the queue of its zone
+	// Must be called holding the lock of the zone
+	private void enqueueRequest(TMUberService service, int zone) {
+		service.setRequestId(lastRequestId.incrementAndGet());
+		service.setQueuedAt(System.currentTimeMillis());
+		queues[zone].offer(service);
+		queueChanged(zone);
+		addPendingRequest(service);
+	}
 
-		return false;
+	// A request was queued, with its request id
+	private void addPendingRequest(TMUberService service) {
+		pendingRequests.put(service.getRequestId(), service);
+		requestsByDistance.add(service);
 	}
 
-	// Calculate the cost of a ride or of a delivery based on distance
-	private double getDeliveryCost(int distance) {
-		return distance * DELIVERYRATE;
+	// A request was taken out of its queue
+	private void removePendingRequest(TMUberService service) {
+		pendingRequests.remove(service.getRequestId());
+		requestsByDistance.remove(service);
 	}
 
-	private double getRideCost(int distance) {
-		return distance * RIDERATE;
+	// Take the available driver nearest to the pickup address out of the pool
+	// The driver is set to DRIVING
+	private Driver getAvailableDriver(Address pickup) {
+		return availableDrivers.take(pickup);
 	}
 
-	// Go through all drivers and see if one is available
-	// Choose the first available driver
-	private Driver getAvailableDriver() {
-		for (Map.Entry<String, Driver> e : drivers.entrySet()) {
-			if (e.getValue().getStatus() == Driver.Status.AVAILABLE) {
-				return e.getValue();
+	// Atomically switch a driver from AVAILABLE to DRIVING and take it out of the pool
+	// Returns false if the driver was not available (e.g. another thread claimed it first)
+	private boolean claimDriver(Driver driver) {
+		if (!driver.compareAndSetStatus(Driver.Status.AVAILABLE, Driver.Status.DRIVING))
+			return false;
+		availableDrivers.remove(driver);
+		return true;
+	}
+
+	// Atomically switch a driver from DRIVING back to AVAILABLE and put it in the pool at its address
+	// A driver must be released only after its address is final
+	private boolean releaseDriver(Driver driver) {
+		if (!driver.compareAndSetStatus(Driver.Status.DRIVING, Driver.Status.AVAILABLE))
+			return false;
+		availableDrivers.add(driver);
+		return true;
+	}
+
+	/*
+	 * Paginated listings. Each call gives one page of at most limit records to
+	 * sink, as they come, and returns the cursor of the next page: 0 asks for
+	 * the first page, -1 is returned once the last record was given. Nothing
+	 * is copied but the page, so the first page of a listing costs the same
+	 * with ten users or ten million, and no lock is held while sink runs:
+	 * a slow sink (e.g. a terminal) holds up neither registrations nor trips.
+	 *
+	 * A listing is weakly consistent, like SortedUsers: records added after a
+	 * page was taken come in a later page or not at all. The cursor of the
+	 * requests is a zone and a position in its queue (zone << 32 | position),
+	 * so a request taken out of a queue meanwhile moves the requests after it
+	 * up by one and one of them can be skipped, and a cursor taken before the
+	 * city was rezoned goes on in the new zones.
+	 */
+
+	// The registered users, in registration order. Each page is taken holding the lock of the users
+	public long listUsers(long cursor, int limit, Consumer<? super User> sink) {
+		checkPage(cursor, limit);
+		User[] page;
+		long next;
+		synchronized (users) {
+			int size = users.size();
+			int from = (int) Math.min(cursor, size);
+			page = new User[Math.min(limit, size - from)];
+			for (int i = 0; i < page.length; i++)
+				page[i] = users.get(from + i);
+			next = from + page.length < size ? from + page.length : -1;
+		}
+		for (int i = 0; i < page.length; i++)
+			sink.accept(page[i]);
+		return next;
+	}
+
+	// The registered drivers, in registration order. The fleet is read without a lock
+	public long listDrivers(long cursor, int limit, Consumer<? super Driver> sink) {
+		checkPage(cursor, limit);
+		int size = drivers.size();
+		int from = (int) Math.min(cursor, size);
+		int to = (int) Math.min(size, (long) from + limit);
+		for (int i = from; i < to; i++)
+			sink.accept(drivers.get(i));
+		return to < size ? to : -1;
+	}
+
+	// The waiting requests, zone by zone, each zone in the order its requests are picked up.
+	// Each zone queue is read holding its zone lock
+	public long listServiceRequests(long cursor, int limit, Consumer<? super TMUberService> sink) {
+		checkPage(cursor, limit);
+		int zone = (int) (cursor >>> 32);
+		int position = (int) cursor;
+		// no bigger than the number of waiting requests
+		TMUberService[] page = new TMUberService[Math.max(1, Math.min(limit, pendingRequests.size()))];
+		int count = 0;
+		long next;
+		stateLock.readLock().lock();
+		try {
+			while (zone < queues.length && count < page.length) {
+				int copied = 0;
+				synchronized (zoneLocks[zone]) {
+					if (queues[zone] != null)
+						copied = queues[zone].copyTo(position, page, count);
+				}
+				count += copied;
+				if (count < page.length) {
+					zone++;
+					position = 0;
+				} else {
+					position += copied;
+				}
 			}
-		}    		
-		return null;
+			next = zone < queues.length ? (long) zone << 32 | position : -1;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		for (int i = 0; i < count; i++)
+			sink.accept(page[i]);
+		return next;
+	}
+
+	private static void checkPage(long cursor, int limit) {
+		if (cursor < 0)
+			throw new IllegalArgumentException("Invalid cursor " + cursor);
+		if (limit < 1)
+			throw new IllegalArgumentException("Invalid page size " + limit);
 	}
 
 	// Print Information (printInfo()) about all registered users in the system
 	public void listAllUsers() {
 		System.out.println();
-
-		for (int i = 0; i < usersList.size(); i++) {
-			int index = i + 1;
-			System.out.printf("%-2s. ", index);
-			usersList.get(i).printInfo();
-			System.out.println();
-		}
-//		int index = 1;
-//		for (Map.Entry<String, User> e : users.entrySet()) {
-//			System.out.printf("%-2s. ", index);
-//			e.getValue().printInfo();
-//			System.out.println();	
-//			index++;
-//		}    
+		ListingPrinter<User> printer = ListingPrinter.users();
+		for (long page = 0; page >= 0;)
+			page = listUsers(page, ListingPrinter.PAGE_SIZE, printer);
 	}
 
 	// Print Information (printInfo()) about all registered drivers in the system
 	public void listAllDrivers() {
 		System.out.println();
-		
-		for (int i = 0; i < driversList.size(); i++) {
-			int index = i + 1;
-			System.out.printf("%-2s. ", index);
-			driversList.get(i).printInfo();
-			System.out.println();
-		}
-//		int index = 1;
-//		for (Map.Entry<String, Driver> e : drivers.entrySet()) {
-//			System.out.printf("%-2s. ", index);
-//			e.getValue().printInfo();
-//			System.out.println();
-//			index++;
-//		}    		
-
+		ListingPrinter<Driver> printer = ListingPrinter.drivers();
+		for (long page = 0; page >= 0;)
+			page = listDrivers(page, ListingPrinter.PAGE_SIZE, printer);
 	}
 
 	// Print Information (printInfo()) about all current service requests
 	public void listAllServiceRequests() {
-		populateTMUberServicesArray();
-		for (int i = 0; i < serviceRequests.size(); i++) {
-			int index = i + 1;
-			System.out.println();
-			System.out.print(index + ". ");
-			for (int j = 0; j < 60; j++)
-				System.out.print("-");
-			serviceRequests.get(i).printInfo();
-			System.out.println();
-		}
-//		for (int i = 0; i < queues.length; i++) {
-//			int index = i + 1;
-//		
-//			Queue<TMUberService> queue = queues[i];
-//			if(queue != null && !queue.isEmpty()) {
-//				Iterator<TMUberService> qIterator = queue.iterator(); 
-//			       
-//				while (qIterator.hasNext()) { 
-//					System.out.println();
-//					System.out.print(index + ". ");
-//					for (int j = 0; j < 60; j++)
-//						System.out.print("-");
-//					qIterator.next().printInfo();
-//					System.out.println();
-//				} 				
-//			}
-//		}
+		ListingPrinter<TMUberService> printer = ListingPrinter.requests();
+		for (long page = 0; page >= 0;)
+			page = listServiceRequests(page, ListingPrinter.PAGE_SIZE, printer);
 	}
 
 	// Add a new user to the system
-	public void registerNewUser(String name, String address, double wallet) throws RuntimeException {
-		// Check to ensure name is valid
-		if (name == null || name.equals("")) {
-			throw new InvalidUserNameException("Invalid User Name " + name);
-		}
-		// Check to ensure address is valid
-		if (!CityMap.validAddress(address)) {
-			throw new InvalidAddressException("Invalid User Address " + address);
-		}
-		// Check to ensure wallet amount is valid
-		if (wallet < 0) {
-			throw new InvalidMoneyInWalletException("Invalid Money in Wallet");
-		}
-		// Check for duplicate user
-		User user = new User(generateUserAccountId(), name, address, wallet);
-		if (userExists(user)) {
-			throw new UserExistException("User Already Exists in System");
+	// wallet is in cents (see Money)
+	public void registerNewUser(String name, String address, long wallet) throws RuntimeException {
+		stateLock.readLock().lock();
+		try {
+			// Check to ensure name is valid
+			if (name == null || name.equals("")) {
+				throw new InvalidUserNameException("Invalid User Name " + name);
+			}
+			// Check to ensure address is valid
+			if (!CityMap.validAddress(address)) {
+				throw new InvalidAddressException("Invalid User Address " + address);
+			}
+			// Check to ensure wallet amount is valid
+			if (wallet < 0) {
+				throw new InvalidMoneyInWalletException("Invalid Money in Wallet");
+			}
+			// Check for duplicate user
+			// The id is the next id, used once the user is added, so registrations are done one at a time
+			synchronized (users) {
+				User user = new User(userIds.nextId(), name, address, wallet);
+				if (userExists(user)) {
+					throw new UserExistException("User Already Exists in System");
+				}
+				// The user is journaled before it is added: once it can be found, a request
+				// for it can be journaled by another thread, and must come after the user
+				if (journal != null)
+					journal.userRegistered(user);
+				addUser(user);
+			}
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		users.put(user.getAccountId(), user);
-		this.usersList.add(user);
-		return;
 	}
 
 	// Add a new driver to the system
 	public void registerNewDriver(String name, String carModel, String carLicencePlate, String address) throws RuntimeException{
-		// Check to ensure name is valid
-		if (name == null || name.equals("")) {
-			throw new InvalidDriverNameException("Invalid Driver Name " + name);
-		}
-		// Check to ensure car models is valid
-		if (carModel == null || carModel.equals("")) {
-			throw new InvalidCarModelException("Invalid Car Model " + carModel);
-		}
-		// Check to ensure car licence plate is valid
-		// i.e. not null or empty string
-		if (carLicencePlate == null || carLicencePlate.equals("")) {
-			throw new InvalidLicencePlateException("Invalid Car Licence Plate " + carLicencePlate);
-		}
-		// Check for duplicate driver. If not a duplicate, add the driver to the drivers
-		// list
-		Driver driver = new Driver(generateDriverId(), name, carModel, carLicencePlate, address);
-		if (driverExists(driver)) {
-			throw new DriverExistException("Driver Already Exists in System");
-		}
-		//get the zone from the parameter address
-		int zone = CityMap.getCityZone(address);
-		//Set the driver zone
-		driver.setZone(zone);
-		//add the new driver to the drivers map
-		drivers.put(driver.getId(), driver);
-		//add the driver to the driversList
-		this.driversList.add(driver);
-		return;
+		stateLock.readLock().lock();
+		try {
+			// Check to ensure name is valid
+			if (name == null || name.equals("")) {
+				throw new InvalidDriverNameException("Invalid Driver Name " + name);
+			}
+			// Check to ensure car models is valid
+			if (carModel == null || carModel.equals("")) {
+				throw new InvalidCarModelException("Invalid Car Model " + carModel);
+			}
+			// Check to ensure car licence plate is valid
+			// i.e. not null or empty string
+			if (carLicencePlate == null || carLicencePlate.equals("")) {
+				throw new InvalidLicencePlateException("Invalid Car Licence Plate " + carLicencePlate);
+			}
+			// Check for duplicate driver. If not a duplicate, add the driver to the drivers
+			// list
+			synchronized (drivers) {
+				String id = driverIds.nextId();
+				if (drivers.find(id) >= 0) {
+					throw new DriverExistException("Driver Already Exists in System");
+				}
+				// The driver is journaled before it is added: once it can be found, a pickup
+				// by it can be journaled by another thread, and must come after the driver
+				if (journal != null)
+					journal.driverRegistered(id, name, carModel, carLicencePlate, address);
+				//add the new driver to the fleet, its zone is the zone of the address
+				Driver driver = addDriver(drivers.add(id, name, carModel, carLicencePlate, address));
+				//a new driver is available in its zone
+				availableDrivers.add(driver);
+			}
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
+		}
 	}
 
 	// Request a ride. User wallet will be reduced when drop off happens
-	public void requestRide(String accountId, String from, String to) throws RuntimeException {
+	// Returns the request id of the new request
+	public long requestRide(String accountId, String from, String to) throws RuntimeException {
+		stateLock.readLock().lock();
+		try {
+			Address fromAddress = CityMap.getAddress(from);
+			TMUberRide req = createRide(accountId, getUser(accountId), from, fromAddress, to, CityMap.getAddress(to));
+			int zone = cityZones.getZone(fromAddress);
+			synchronized (zoneLocks[zone]) {
+				submitRide(req, fromAddress, zone);
+			}
+			syncJournal();
+			return req.getRequestId();
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	// Check a ride request and create it, the request is not queued yet
+	// user is the user with the given account id and the addresses are the looked up from and to
+	private TMUberRide createRide(String accountId, User user, String from, Address fromAddress, String to, Address toAddress) {
 		// Check valid user account
-		User user = getUser(accountId);
 		if (user == null) {
 			throw new UserAccountNoFoundException("User Account Not Found " + accountId);
 		}
 		// Check for a valid from and to addresses
-		if (!CityMap.validAddress(from)) {
+		if (fromAddress == null) {
 			throw new InvalidAddressException("Invalid address " + from);
 		}
-		if (!CityMap.validAddress(to)) {
+		if (toAddress == null) {
 			throw new InvalidAddressException("Invalid address " + to);
 		}
 		// Get the distance for this ride
-		int distance = CityMap.getDistance(from, to); // city blocks
+		int distance = CityMap.getDistance(fromAddress.getBlock(), toAddress.getBlock()); // city blocks
 		// Distance == 0 or == 1 is not accepted - walk!
 		if (!(distance > 1)) {
 			throw new InsufficientTravelDistanceException("Insufficient Travel Distance");
 		}
+		//get the zone of the pickup address
+		int zone = cityZones.getZone(fromAddress);
+		if(zone == -1) {
+			//cannot find the zone based on the "from" address
+			throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + from);			
+		}		
 		// Check if user has enough money in wallet for this trip
-		double cost = getRideCost(distance);
+		long cost = getRideCost(distance, zone);
 		if (user.getWallet() < cost) {
 			throw new InsufficientFundsException("Insufficient Funds");
 		}
-		// Get an available driver
-		Driver driver = getAvailableDriver();
-		if (driver == null) {
+		// Check there is an available driver
+		if (availableDrivers.isEmpty()) {
 			throw new NoDriversAvailableException("No Drivers Available");
 		}
 		// Create the request
-		TMUberRide req = new TMUberRide(from, to, user, distance, cost);
+		return new TMUberRide(from, to, user, distance, cost);
+	}
 
+	// Assign a driver to a ride request and queue it in its zone, pickup is its looked up from address
+	// Must be called holding the lock of the zone
+	private void submitRide(TMUberRide req, Address pickup, int zone) {
+		// Check there is room left in the zone queue
+		if (queues[zone].remainingCapacity() == 0) {
+			throw new ZoneQueueFullException("Too many requests waiting in zone " + zone + ", try again later");
+		}
 		// Check if existing ride request for this user - only one ride request per user
 		// at a time
 		if (existingRequest(req)) {
 			throw new UserHasRideRequestException("User Already Has Ride Request");
 		}
-		//Set the driver status to DRIVING
-		driver.setStatus(Driver.Status.DRIVING);
+		// Get the available driver nearest to the pickup address. Driver is now DRIVING
+		Driver driver = getAvailableDriver(pickup);
+		if (driver == null) {
+			removeActiveRequest(req);
+			throw new NoDriversAvailableException("No Drivers Available");
+		}
+		//add the request to the proper queue using the zone
+		enqueueRequest(req, zone);
+		req.getUser().addRide();
+		if (journal != null)
+			journal.requestQueued(req, driver);
 		//Set the driver service to requested service
+		//only now the driver can be dropped off, so its drop off is journaled after the request
 		driver.setTmuberService(req);
-		//get the zone and then add the request to the proper queue using the zone
-		int zone = CityMap.getCityZone(from);
-		if(zone == -1) {
-			//cannot find the zone based on the "from" address
-			throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + from);			
-		}		
-		queues[zone].add(req);
-		user.addRide();
-		return;
 	}
 
 	// Request a food delivery. User wallet will be reduced when drop off happens
-	public void requestDelivery(String accountId, String from, String to, String restaurant, String foodOrderId) throws RuntimeException {
+	// Returns the request id of the new request
+	public long requestDelivery(String accountId, String from, String to, String restaurant, String foodOrderId) throws RuntimeException {
+		stateLock.readLock().lock();
+		try {
+			Address fromAddress = CityMap.getAddress(from);
+			TMUberDelivery delivery = createDelivery(accountId, getUser(accountId), from, fromAddress, to, CityMap.getAddress(to),
+					restaurant, foodOrderId);
+			int zone = cityZones.getZone(fromAddress);
+			synchronized (zoneLocks[zone]) {
+				submitDelivery(delivery, fromAddress, zone);
+			}
+			syncJournal();
+			return delivery.getRequestId();
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
 
+	// Check a delivery request and create it, the request is not queued yet
+	// user is the user with the given account id and the addresses are the looked up from and to
+	private TMUberDelivery createDelivery(String accountId, User user, String from, Address fromAddress, String to, Address toAddress,
+			String restaurant, String foodOrderId) {
 		// Check for valid user account
-		User user = getUser(accountId);
 		if (user == null) {
 			throw new UserAccountNoFoundException("User Account Not Found " + accountId);
 		}
 		// Check for valid from and to address
-		if (!CityMap.validAddress(from)) {
+		if (fromAddress == null) {
 			throw new InvalidAddressException("Invalid address " + from);
 		}
-		if (!CityMap.validAddress(to)) {
+		if (toAddress == null) {
 			throw new InvalidAddressException("Invalid address " + to);
 		}
 		// Get the distance to travel
-		int distance = CityMap.getDistance(from, to); // city blocks
+		int distance = CityMap.getDistance(fromAddress.getBlock(), toAddress.getBlock()); // city blocks
 		// Distance must be at least 1 city block
 		if (distance == 0) {
 			throw new InsufficientTravelDistanceException("Insufficient Travel Distance");
 		}
+		int zone = cityZones.getZone(fromAddress);
+		if(zone == -1) {
+			//cannot find the zone based on the "from" address
+			throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + from);			
+		}		
 		// Check if user has enough money in wallet for this delivery
-		double cost = getDeliveryCost(distance);
+		long cost = getDeliveryCost(distance, zone);
 		if (user.getWallet() < cost) {
 			throw new InsufficientFundsException("Insufficient Funds");
 		}
-		// Find an available driver, if any
-		Driver driver = getAvailableDriver();
-		if (driver == null) {
+		// Check there is an available driver
+		if (availableDrivers.isEmpty()) {
 			throw new NoDriversAvailableException("No Drivers Available");
 		}
-		TMUberDelivery delivery = new TMUberDelivery(from, to, user, distance, cost, restaurant, foodOrderId);
+		return new TMUberDelivery(from, to, user, distance, cost, restaurant, foodOrderId);
+	}
+
+	// Assign a driver to a delivery request and queue it in its zone, pickup is its looked up from address
+	// Must be called holding the lock of the zone
+	private void submitDelivery(TMUberDelivery delivery, Address pickup, int zone) {
+		// Check there is room left in the zone queue
+		if (queues[zone].remainingCapacity() == 0) {
+			throw new ZoneQueueFullException("Too many requests waiting in zone " + zone + ", try again later");
+		}
 		// Check if existing delivery request for this user for this restaurant and food
 		// order #
 		if (existingRequest(delivery)) {
 			throw new UserHasDeliveryException("User Already Has Delivery Request at Restaurant with this Food Order");
 		}
-		driver.setStatus(Driver.Status.DRIVING);
-		
-		int zone = CityMap.getCityZone(from);
-		if(zone == -1) {
-			//cannot find the zone based on the "from" address
-			throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + from);			
-		}		
-		queues[zone].add(delivery);
-		user.addDelivery();	
-		return;
+		// Take the available driver nearest to the pickup address. Driver is now DRIVING
+		Driver driver = getAvailableDriver(pickup);
+		if (driver == null) {
+			removeActiveRequest(delivery);
+			throw new NoDriversAvailableException("No Drivers Available");
+		}
+
+		enqueueRequest(delivery, zone);
+		delivery.getUser().addDelivery();	
+		if (journal != null)
+			journal.requestQueued(delivery, driver);
+	}
+
+	/*
+	 * Request a batch of rides and deliveries in one call.
+	 * 
+	 * All requests are checked first, looking up each user account and each address
+	 * only once for the whole batch. The valid requests are then queued zone by zone,
+	 * taking the lock of each zone once, in zone order. If the drivers run out part way,
+	 * requests in lower numbered zones are the ones that got a driver.
+	 * Nothing is thrown: the result at index i tells whether request i was queued
+	 * (and its request id) or why it was rejected.
+	 */
+	public BatchResult[] requestServices(List<BatchRequest> requests) {
+		stateLock.readLock().lock();
+		try {
+			int n = requests.size();
+			BatchResult[] results = new BatchResult[n];
+			TMUberService[] services = new TMUberService[n];
+			Address[] pickups = new Address[n];
+			int[] zones = new int[n];
+			int[] zoneCounts = new int[queues.length + 1];
+
+			// Check all requests, sharing the user and address lookups
+			HashMap<String, User> usersById = new HashMap<String, User>();
+			HashMap<String, Address> addresses = new HashMap<String, Address>();
+			for (int i = 0; i < n; i++) {
+				BatchRequest request = requests.get(i);
+				try {
+					String accountId = request.getAccountId();
+					User user = usersById.get(accountId);
+					if (user == null && !usersById.containsKey(accountId)) {
+						user = getUser(accountId);
+						usersById.put(accountId, user);
+					}
+					Address fromAddress = lookupAddress(addresses, request.getFrom());
+					Address toAddress = lookupAddress(addresses, request.getTo());
+					if (request.isRide()) {
+						services[i] = createRide(accountId, user, request.getFrom(), fromAddress, request.getTo(), toAddress);
+					} else {
+						services[i] = createDelivery(accountId, user, request.getFrom(), fromAddress, request.getTo(), toAddress,
+								request.getRestaurant(), request.getFoodOrderId());
+					}
+					pickups[i] = fromAddress;
+					zones[i] = cityZones.getZone(fromAddress);
+					zoneCounts[zones[i] + 1]++;
+				} catch (RuntimeException e) {
+					results[i] = new BatchResult(e);
+				}
+			}
+
+			// Order the valid requests by zone, keeping the batch order within a zone
+			for (int z = 1; z < zoneCounts.length; z++)
+				zoneCounts[z] += zoneCounts[z - 1];
+			int[] byZone = new int[zoneCounts[queues.length]];
+			int[] next = Arrays.copyOf(zoneCounts, queues.length);
+			for (int i = 0; i < n; i++) {
+				if (services[i] != null)
+					byZone[next[zones[i]]++] = i;
+			}
+
+			// Queue them, one zone at a time
+			for (int z = 0; z < queues.length; z++) {
+				if (zoneCounts[z] == zoneCounts[z + 1])
+					continue;
+				synchronized (zoneLocks[z]) {
+					for (int k = zoneCounts[z]; k < zoneCounts[z + 1]; k++) {
+						int i = byZone[k];
+						try {
+							if (services[i] instanceof TMUberRide)
+								submitRide((TMUberRide) services[i], pickups[i], z);
+							else
+								submitDelivery((TMUberDelivery) services[i], pickups[i], z);
+							results[i] = new BatchResult(services[i].getRequestId());
+						} catch (RuntimeException e) {
+							results[i] = new BatchResult(e);
+						}
+					}
+				}
+			}
+			syncJournal();
+			return results;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	// Look up an address through the cache of a batch
+	private Address lookupAddress(HashMap<String, Address> addresses, String address) {
+		Address addr = addresses.get(address);
+		if (addr == null && !addresses.containsKey(address)) {
+			addr = CityMap.getAddress(address);
+			addresses.put(address, addr);
+		}
+		return addr;
 	}
 
 	// cancel an existing service request.
 	// parameter request is the index in the serviceRequests array list
 	public void cancelServiceRequest(int zoneNum, int request) throws RuntimeException {
-		//check if valid zone #
-		if (zoneNum < 0 || zoneNum > 3) {
-			throw new InvalidZoneNumberException("Invalid Zone # " + zoneNum);
+		stateLock.readLock().lock();
+		try {
+			//check if valid zone #
+			if (zoneNum < 0 || zoneNum >= queues.length) {
+				throw new InvalidZoneNumberException("Invalid Zone # " + zoneNum);
+			}
+			synchronized (zoneLocks[zoneNum]) {
+				//check if valid request #
+				if (request < 1 || queues[zoneNum] == null || queues[zoneNum].isEmpty()) {
+					throw new InvalidRequestNumberException("Invalid Request # " + request);
+				}
+				TMUberService tmUberService = findRequestByRequestId(queues[zoneNum], request - 1);
+				if(tmUberService == null) {
+					throw new InvalidRequestNumberException("Invalid Request # " + request);
+				}
+				queueChanged(zoneNum);
+				removePendingRequest(tmUberService);
+				removeActiveRequest(tmUberService);
+				if (journal != null)
+					journal.requestCancelled(tmUberService.getRequestId());
+			}
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		//check if valid request #
-		if (request < 1 || queues[zoneNum] == null || queues[zoneNum].isEmpty()) {
-			throw new InvalidRequestNumberException("Invalid Request # " + request);
+	}
+
+	// cancel an existing service request given its request id
+	public void cancelServiceRequest(long requestId) throws RuntimeException {
+		stateLock.readLock().lock();
+		try {
+			TMUberService tmUberService = pendingRequests.get(requestId);
+			if (tmUberService == null) {
+				throw new InvalidRequestNumberException("Invalid Request Id " + requestId);
+			}
+			int zone = cityZones.getZone(tmUberService.getFrom());
+			synchronized (zoneLocks[zone]) {
+				//the request may have been picked up or cancelled in the meantime
+				if (queues[zone].removeById(requestId) == null) {
+					throw new InvalidRequestNumberException("Invalid Request Id " + requestId);
+				}
+				queueChanged(zone);
+				removePendingRequest(tmUberService);
+				removeActiveRequest(tmUberService);
+				if (journal != null)
+					journal.requestCancelled(requestId);
+			}
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		TMUberService tmUberService = findRequestByRequestId(queues[zoneNum], request - 1);
-		if(tmUberService != null)
-			queues[zoneNum].remove(tmUberService);
-		return;
 	}
-	//this method is to find the request id in the 4 queues
-	private TMUberService findRequestByRequestId(Queue<TMUberService> queue, int request) {
+	//this method is to find the request at the given position in a zone queue
+	//the request is removed from the queue, in O(log n)
+	private TMUberService findRequestByRequestId(ZoneQueue queue, int request) {
 		//return null if queue is null
-        if (queue == null) {
-            return null;
-        }
-
-        int numberOfQueues = queue.size();
-        //return null if the request is greater than the numberOfQueues
-        if (request < 0 || numberOfQueues < request + 1) {
-            return null;
-        }
-        //find the service based on the request id
-        TMUberService element = null;
-        for (int i = 0; i < numberOfQueues; i++) {
-            if (i == request) {
-                element = queue.remove();
-            } else {
-                queue.add(queue.remove());
-            }
-        }
-        return element;  		
+		if (queue == null) {
+			return null;
+		}
+		//return null if the request is greater than the number of requests in the queue
+		if (request < 0 || queue.size() < request + 1) {
+			return null;
+		}
+		return queue.removeAt(request);
 	}
 	
 	// Find driver by driverId
+	// The index of a regular id is read from the id itself (see DriverFleet.find),
+	// then the status of the driver found is checked
 	private Driver findDriverByDriverId(String driverId, Driver.Status status) {
-//		for (int i = 0; i < driversList.size(); i++) {
-//			if (driversList.get(i).getId().equals(driverId) && driversList.get(i).getStatus() == status)
-//				return driversList.get(i);
-//		}
-		//Iterate through the drivers map and find the driver
-		for (Map.Entry<String, Driver> e : drivers.entrySet()) {
-			if (e.getValue().getId().equals(driverId) && e.getValue().getStatus() == status) {
-				return e.getValue();
-			}
-		}    		
-		
-		return null;
+		Driver driver = findDriver(driverId);
+		if (driver == null || driver.getStatus() != status) {
+			return null;
+		}
+		return driver;
+	}
+
+	// The registered driver with an id, null if there is none
+	private Driver findDriver(String driverId) {
+		int index = drivers.find(driverId);
+		return index < 0 ? null : drivers.get(index);
 	}
 
 	// Drop off a ride or a delivery. This completes a service.
 	// parameter request is the index in the serviceRequests array list
 	public void dropOff(String driverId) throws RuntimeException {
-		//check if driverId is blank or null
-		if (driverId == null || "".equals(driverId)) {
-			throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
-		}
-		//find the driver by Id and has Driving Status
-		Driver driver = findDriverByDriverId(driverId, Driver.Status.DRIVING);
-		if(driver == null) {
-			//cannot find the driver with the given driver id and status driving
-			throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status driving");
-		}
-
-		//get the uber service from the driver object
-		TMUberService service = driver.getTmuberService();			
-		totalRevenue += service.getCost(); // add service cost to revenues
-		driver.pay(service.getCost()*PAYRATE);      // pay the driver
-		totalRevenue -= service.getCost() * PAYRATE; // deduct driver fee from total revenues
-		driver.setStatus(Driver.Status.AVAILABLE);  // driver is now available again
-		User user = service.getUser();
-		user.payForService(service.getCost()); // user pays for ride or delivery
-		//set the driver address to the service To address
-		driver.setAddress(service.getTo());
-		//remove the tmuberservice object from the driver
-		driver.setTmuberService(null);
-		//set the driver new zone.
-		driver.setZone(CityMap.getCityZone(driver.getAddress()));
-		return;
+		stateLock.readLock().lock();
+		try {
+			//check if driverId is blank or null
+			if (driverId == null || "".equals(driverId)) {
+				throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
+			}
+			//find the driver by Id and has Driving Status
+			Driver driver = findDriverByDriverId(driverId, Driver.Status.DRIVING);
+			if(driver == null) {
+				//cannot find the driver with the given driver id and status driving
+				throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status driving");
+			}
+
+			// The driver is locked so that the same service is never paid twice
+			synchronized (driver.lock()) {
+				if (driver.getStatus() != Driver.Status.DRIVING) {
+					//another thread dropped off this driver first
+					throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status driving");
+				}
+				//get the uber service from the driver object
+				TMUberService service = driver.getTmuberService();			
+				if (service == null) {
+					//driving without a service (e.g. after driveTo), or the service is not assigned yet
+					throw new DriverNotFoundException("Driver ID " + driverId + " has no service to drop off");
+				}
+				//the driver fee is the only amount rounded, the revenue is what is left of the cost
+				long cost = service.getCost();
+				long fee = Money.percent(cost, PAYRATE);
+				totalRevenue.addAndGet(cost - fee); // add service cost less the driver fee to revenues
+				driver.pay(fee);      // pay the driver
+				User user = service.getUser();
+				user.payForService(cost); // user pays for ride or delivery
+				if (usersByWallet != null)
+					usersByWallet.update(user);
+				//set the driver address to the service To address
+				driver.setAddress(service.getTo());
+				//remove the tmuberservice object from the driver
+				driver.setTmuberService(null);
+				//set the driver new zone.
+				driver.setZone(cityZones.getZone(driver.getAddress()));
+				if (journal != null)
+					journal.droppedOff(driver);
+				driver.setStatus(Driver.Status.AVAILABLE);  // driver is now available again in its new zone
+				//the service is complete, the user can make the same request again
+				removeActiveRequest(service);
+			}
+			availableDrivers.add(driver);
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
+		}
 	}
 
 	public void pickup(String driverId) throws RuntimeException {
-		//check if driverId is blank or null
-		if (driverId == null || "".equals(driverId)) {
-			throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
+		stateLock.readLock().lock();
+		try {
+			//check if driverId is blank or null
+			if (driverId == null || "".equals(driverId)) {
+				throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
+			}
+			//find the driver by Id and has Available Status
+			Driver driver = findDriverByDriverId(driverId, Driver.Status.AVAILABLE);
+			if(driver == null) {
+				//cannot find the driver with the given driver id and status available
+				throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");			
+			}
+
+			int zone = cityZones.getZone(driver.getAddress());
+			if(zone == -1) {
+				//cannot find the zone for the driver address
+				throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + driver.getAddress());			
+			}
+		
+			//set driver status to driving, this takes the driver out of the available pool
+			if (!claimDriver(driver)) {
+				//another thread took this driver first
+				throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");			
+			}
+			TMUberService service = null;
+			synchronized (zoneLocks[zone]) {
+				//check if valid request #
+				if (!queues[zone].isEmpty()) {
+					//remove the service from the queue
+					service = queues[zone].poll();		
+					queueChanged(zone);
+					removePendingRequest(service);
+					if (journal != null)
+						journal.pickedUp(driver, service);
+				}
+			}
+			if (service == null) {
+				//nothing to do in this zone, try to help a nearby zone
+				service = stealRequest(driver, zone);
+				if (service == null) {
+					//put the driver back in the available pool
+					releaseDriver(driver);
+					throw new NoServiceRequestInQueueException("No service request in the queue at zone " + zone);
+				}
+				zone = cityZones.getZone(service.getFrom());
+			}
+			// The driver is locked so that a concurrent drop off sees either no service or all of it
+			synchronized (driver.lock()) {
+				driver.setZone(zone);		
+				//set the driver new address
+				driver.setAddress(service.getFrom());				
+				//set the driver service to the request service
+				driver.setTmuberService(service);
+			}
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
 		}
-		//find the driver by Id and has Available Status
-		Driver driver = findDriverByDriverId(driverId, Driver.Status.AVAILABLE);
-		if(driver == null) {
-			//cannot find the driver with the given driver id and status available
-			throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");			
+	}
+	
+	// Set the work stealing thresholds used by pickup, a maxZoneDistance of 0 turns stealing off
+	public void setWorkStealing(int maxZoneDistance, int minQueueLength) {
+		if (maxZoneDistance < 0 || minQueueLength < 1) {
+			throw new IllegalArgumentException("Invalid work stealing thresholds " + maxZoneDistance + ", " + minQueueLength);
 		}
+		stealDistance = maxZoneDistance;
+		stealMinQueue = minQueueLength;
+	}
 
-		int zone = CityMap.getCityZone(driver.getAddress());
-		if(zone == -1) {
-			//cannot find the zone for the driver address
-			throw new InvalidZoneNumberException("Invalid Zone Number: " + zone + " for address: " + driver.getAddress());			
+	// Take the first request of the queue of another zone for a driver whose zone has none.
+	// The nearest zones are tried first and among zones at the same distance the longest queue.
+	// Returns null if no zone within the thresholds has enough requests
+	private TMUberService stealRequest(Driver driver, int zone) {
+		int maxDistance = stealDistance;
+		int minQueue = stealMinQueue;
+		// Queue sizes are read without the zone locks to order the zones, they are checked again
+		// under the lock
+		ArrayList<Integer> victims = new ArrayList<Integer>();
+		for (int word = 0; word < nonEmptyQueues.length(); word++) {
+			long bits = nonEmptyQueues.get(word);
+			while (bits != 0) {
+				int z = word * 64 + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (z != zone && queues[z].size() >= minQueue && cityZones.getZoneDistance(zone, z) <= maxDistance)
+					victims.add(z);
+			}
 		}
-		
-		driver.setZone(zone);		
-		//check if valid request #
-		if (queues[zone] == null || queues[zone].isEmpty()) {
-			throw new NoServiceRequestInQueueException("No service request in the queue at zone " + zone);
-		}
-		//remove the service from the queue
-		TMUberService service = queues[zone].remove();		
-		//set the driver service to the request service
-		driver.setTmuberService(service);
-		//set driver status to driving
-		driver.setStatus(Driver.Status.DRIVING);  // driver is now driving
-		//set the driver new address
-		driver.setAddress(driver.getTmuberService().getFrom());				
-		return;
+		victims.sort(Comparator.<Integer>comparingInt(z -> cityZones.getZoneDistance(zone, z)).thenComparing(z -> -queues[z].size()));
+		for (int i = 0; i < victims.size(); i++) {
+			int z = victims.get(i);
+			synchronized (zoneLocks[z]) {
+				if (queues[z].size() >= minQueue) {
+					TMUberService service = queues[z].poll();
+					queueChanged(z);
+					removePendingRequest(service);
+					if (journal != null)
+						journal.pickedUp(driver, service);
+					return service;
+				}
+			}
+		}
+		return null;
 	}
-	
+
 	public void driveTo(String driverId, String address) throws RuntimeException {
-		//check if driverid is null or blank
-		if (driverId == null || "".equals(driverId)) {
-			throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
-		}
-		//check if address is null or blank
-		if (address == null || "".equals(address)) {
-			throw new InvalidAddressException("Invalid address " + address);
-		}		
-		//check if address is valid
-		if (!CityMap.validAddress(address)) {
-			throw new InvalidAddressException("Invalid address " + address);
+		stateLock.readLock().lock();
+		try {
+			//check if driverid is null or blank
+			if (driverId == null || "".equals(driverId)) {
+				throw new InvalidDriverIdException("Invalid Driver ID " + driverId);
+			}
+			//check if address is null or blank
+			if (address == null || "".equals(address)) {
+				throw new InvalidAddressException("Invalid address " + address);
+			}		
+			//check if address is valid
+			if (!CityMap.validAddress(address)) {
+				throw new InvalidAddressException("Invalid address " + address);
+			}
+	
+			Driver driver = findDriverByDriverId(driverId, Driver.Status.AVAILABLE);
+			if(driver == null) {
+				//cannot find the driver with the given driver id and status available
+				throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");
+			}
+			if (!claimDriver(driver)) {
+				//another thread took this driver first
+				throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");
+			}
+			driver.setAddress(address);
+			driver.setZone(cityZones.getZone(driver.getAddress()));
+			if (journal != null)
+				journal.droveTo(driver, address);
+			syncJournal();
+			return;
+		} finally {
+			stateLock.readLock().unlock();
 		}
+	}
 	
-		Driver driver = findDriverByDriverId(driverId, Driver.Status.AVAILABLE);
-		if(driver == null) {
-			//cannot find the driver with the given driver id and status available
+	/*
+	 * Match the available drivers with the queued requests so that the total pickup
+	 * distance is the smallest (see DispatchMatcher), across zones. Each matched driver
+	 * picks up its request as if it had called pickup. When there are more requests than
+	 * drivers the oldest requests are matched. Returns the number of pickups made.
+	 */
+	public int matchQueuedRequests() {
+		stateLock.readLock().lock();
+		try {
+			// Available drivers of the blocks that have some, the longest waiting first
+			ArrayList<Integer> driverBlockList = new ArrayList<Integer>();
+			ArrayList<ArrayList<Driver>> driversByBlock = new ArrayList<ArrayList<Driver>>();
+			int numDrivers = 0;
+			for (int i = 0; i < CityMap.getNumBlocks(); i++) {
+				if (availableDrivers.size(i) == 0)
+					continue;
+				ArrayList<Driver> blockDrivers = availableDrivers.list(i);
+				if (!blockDrivers.isEmpty()) {
+					driverBlockList.add(CityMap.getBlock(i));
+					driversByBlock.add(blockDrivers);
+					numDrivers += blockDrivers.size();
+				}
+			}
+			if (numDrivers == 0)
+				return 0;
+
+			// Queued requests, the first to be picked up first, as many as there are drivers
+			ArrayList<TMUberService> requests = new ArrayList<TMUberService>();
+			for (int zone = 0; zone < queues.length; zone++) {
+				synchronized (zoneLocks[zone]) {
+					requests.addAll(queues[zone]);
+				}
+			}
+			if (requests.isEmpty())
+				return 0;
+			ServicePriority priority = queuePriority;
+			if (priority == null)
+				requests.sort(Comparator.comparingLong(TMUberService::getRequestId));
+			else
+				requests.sort(Comparator.comparingLong(priority::dueTime).thenComparingLong(TMUberService::getRequestId));
+			if (requests.size() > numDrivers)
+				requests.subList(numDrivers, requests.size()).clear();
+			// Requests of the blocks that have some, by block index
+			TreeMap<Integer, ArrayList<TMUberService>> requestsByIndex = new TreeMap<Integer, ArrayList<TMUberService>>();
+			for (int k = 0; k < requests.size(); k++) {
+				int index = CityMap.getAddress(requests.get(k).getFrom()).getIndex();
+				requestsByIndex.computeIfAbsent(index, i -> new ArrayList<TMUberService>()).add(requests.get(k));
+			}
+			ArrayList<ArrayList<TMUberService>> requestsByBlock = new ArrayList<ArrayList<TMUberService>>(requestsByIndex.values());
+
+			int[] driverBlocks = new int[driversByBlock.size()];
+			int[] driverCounts = new int[driversByBlock.size()];
+			for (int i = 0; i < driverBlocks.length; i++) {
+				driverBlocks[i] = driverBlockList.get(i);
+				driverCounts[i] = driversByBlock.get(i).size();
+			}
+			int[] requestBlocks = new int[requestsByBlock.size()];
+			int[] requestCounts = new int[requestsByBlock.size()];
+			int r = 0;
+			for (int index : requestsByIndex.keySet()) {
+				requestBlocks[r] = CityMap.getBlock(index);
+				requestCounts[r] = requestsByBlock.get(r).size();
+				r++;
+			}
+
+			int[][] flow = DispatchMatcher.solve(driverBlocks, driverCounts, requestBlocks, requestCounts);
+
+			// Make the pickups. Drivers and requests taken by other threads meanwhile are skipped
+			int[] nextDriver = new int[driverBlocks.length];
+			int[] nextRequest = new int[requestBlocks.length];
+			int pickups = 0;
+			for (int[] pair : flow) {
+				int i = pair[0], j = pair[1];
+				for (int f = 0; f < pair[2]; f++) {
+					Driver driver = driversByBlock.get(i).get(nextDriver[i]++);
+					TMUberService service = requestsByBlock.get(j).get(nextRequest[j]++);
+					if (assignRequest(driver, service))
+						pickups++;
+				}
+			}
+			syncJournal();
+			return pickups;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	// A given available driver picks up a given queued request, see pickup
+	// Returns false if the driver is no longer available or the request no longer queued
+	private boolean assignRequest(Driver driver, TMUberService service) {
+		if (!claimDriver(driver))
+			return false;
+		int zone = cityZones.getZone(service.getFrom());
+		synchronized (zoneLocks[zone]) {
+			if (queues[zone].removeById(service.getRequestId()) == null) {
+				//put the driver back in the available pool
+				releaseDriver(driver);
+				return false;
+			}
+			queueChanged(zone);
+			removePendingRequest(service);
+			if (journal != null)
+				journal.pickedUp(driver, service);
+		}
+		synchronized (driver.lock()) {
+			driver.setZone(zone);
+			driver.setAddress(service.getFrom());
+			driver.setTmuberService(service);
+		}
+		return true;
+	}
+
+	// Run matchQueuedRequests in the background every period milliseconds
+	public synchronized void startBatchMatching(long period) {
+		stopBatchMatching();
+		matcher = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "TMUber batch matcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		matcher.scheduleWithFixedDelay(() -> {
+			try {
+				matchQueuedRequests();
+			} catch (RuntimeException e) {
+				// a failed run must not stop the following ones
+				reportFailure(e);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopBatchMatching() {
+		if (matcher != null) {
+			matcher.shutdown();
+			matcher = null;
+		}
+	}
+
+	// Hand the failure of a background run to the uncaught exception handler of its thread (by
+	// default Thread.getDefaultUncaughtExceptionHandler, else the stack trace on System.err)
+	private static void reportFailure(RuntimeException e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/*
+	 * Split the city in numZones zones again (see CityMap.balancedZones), balanced
+	 * on the current load of each block: the requests queued there plus the drivers
+	 * available there. The queued requests move to the queue of their new zone,
+	 * oldest first. Only this system is rezoned, the zones of the city and of other
+	 * systems stay as they are.
+	 *
+	 * The new zones and queues are made from a copy of the queues while operations
+	 * go on. Operations then wait while the new queues are swapped in: only the
+	 * requests of the queues that changed meanwhile are moved again, plus one pass
+	 * over the blocks and the drivers to set their new zones.
+	 */
+	public void rezone(int numZones) {
+		if (numZones < 1 || numZones > CityMap.getNumBlocks())
+			throw new IllegalArgumentException("Invalid number of zones " + numZones);
+		synchronized (rezoneLock) {
+			while (!tryRezone(numZones)) {
+				// the queue priority changed meanwhile, make the queues again
+			}
+		}
+	}
+
+	// Rezone, false if the queue priority changed while the new queues were made
+	private boolean tryRezone(int numZones) {
+		// Copy the queued requests, one zone at a time
+		ZoneQueue[] oldQueues;
+		TMUberService[][] copies;
+		long[] versions;
+		ServicePriority priority;
+		int capacity;
+		stateLock.readLock().lock();
+		try {
+			oldQueues = queues;
+			priority = queuePriority;
+			capacity = queues[0].capacity();
+			copies = new TMUberService[oldQueues.length][];
+			versions = new long[oldQueues.length];
+			for (int z = 0; z < oldQueues.length; z++) {
+				synchronized (zoneLocks[z]) {
+					copies[z] = oldQueues[z].toArray(new TMUberService[0]);
+					versions[z] = queueVersions[z];
+				}
+			}
+		} finally {
+			stateLock.readLock().unlock();
+		}
+
+		// Make the new zones and queues from the copy, the oldest requests first
+		ArrayList<TMUberService> queued = new ArrayList<TMUberService>();
+		for (TMUberService[] copy : copies)
+			queued.addAll(Arrays.asList(copy));
+		queued.sort(Comparator.comparingLong(TMUberService::getRequestId));
+		// Pickup block of each queued request, the addresses are only parsed once
+		int[] blocks = new int[queued.size()];
+		long[] load = new long[CityMap.getNumBlocks()];
+		for (int i = 0; i < queued.size(); i++) {
+			blocks[i] = CityMap.getAddress(queued.get(i).getFrom()).getIndex();
+			load[blocks[i]]++;
+		}
+		for (int i = 0; i < load.length; i++)
+			load[i] += availableDrivers.size(i);
+		CityMap.Zones newZones = CityMap.balancedZones(numZones, load);
+		// A zone with more requests than the queues hold gets a larger queue
+		int[] counts = new int[numZones];
+		for (int i = 0; i < blocks.length; i++)
+			counts[newZones.getZoneOfBlockIndex(blocks[i])]++;
+		ZoneQueue[] newQueues = new ZoneQueue[numZones];
+		for (int i = 0; i < numZones; i++)
+			newQueues[i] = newQueue(Math.max(capacity, counts[i]), priority);
+		for (int i = 0; i < queued.size(); i++)
+			newQueues[newZones.getZoneOfBlockIndex(blocks[i])].offer(queued.get(i));
+
+		stateLock.writeLock().lock();
+		try {
+			if (queuePriority != priority)
+				return false;
+			// The requests of the queues that changed since the copy are moved again: the copied
+			// ones are taken out of the new queues, the current ones go to a list per new zone
+			ArrayList<ArrayList<TMUberService>> moved = new ArrayList<ArrayList<TMUberService>>();
+			for (int i = 0; i < numZones; i++)
+				moved.add(null);
+			for (int z = 0; z < oldQueues.length; z++) {
+				if (queueVersions[z] == versions[z])
+					continue;
+				for (TMUberService service : copies[z])
+					newQueues[newZones.getZone(service.getFrom())].removeById(service.getRequestId());
+				for (TMUberService service : queues[z]) {
+					int zone = newZones.getZone(service.getFrom());
+					if (moved.get(zone) == null)
+						moved.set(zone, new ArrayList<TMUberService>());
+					moved.get(zone).add(service);
+				}
+			}
+			// A new zone that gets moved requests is queued again, the oldest requests first
+			for (int i = 0; i < numZones; i++) {
+				ArrayList<TMUberService> services = moved.get(i);
+				if (services == null)
+					continue;
+				services.addAll(newQueues[i]);
+				services.sort(Comparator.comparingLong(TMUberService::getRequestId));
+				newQueues[i] = newQueue(Math.max(capacity, services.size()), priority);
+				newQueues[i].addAll(services);
+			}
+
+			cityZones = newZones;
+			queues = newQueues;
+			zoneLocks = new Object[numZones];
+			for (int i = 0; i < numZones; i++)
+				zoneLocks[i] = new Object();
+			nonEmptyQueues = new AtomicLongArray((numZones + 63) / 64);
+			queueDepths = new AtomicIntegerArray(numZones);
+			queueVersions = new long[numZones];
+			for (int i = 0; i < numZones; i++)
+				queueChanged(i);
+			availableDrivers.recountZones(newZones);
+			drivers.updateZones(newZones);
+			return true;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Rezone (see rezone) when the zone queues call for it, keeping between minZones
+	 * and maxZones zones:
+	 * - when one queue is much longer than the others while drivers wait with
+	 *   nothing to do in zones with an empty queue, zones are merged (half as many)
+	 *   so those drivers share the long queue, or if there cannot be fewer zones
+	 *   the zones are redrawn around the load
+	 * - when all queues are longer than targetQueueDepth, zones are split (twice
+	 *   as many) so that the requests are shared by more queues and locks
+	 * - when the queues hold less than a quarter of targetQueueDepth on average,
+	 *   zones are merged
+	 * Returns true if the system was rezoned.
+	 */
+	public boolean rebalanceZones(int minZones, int maxZones, int targetQueueDepth) {
+		if (minZones < 1 || maxZones < minZones || maxZones > CityMap.getNumBlocks() || targetQueueDepth < 1)
+			throw new IllegalArgumentException("Invalid zone limits " + minZones + ", " + maxZones + ", " + targetQueueDepth);
+		int numZones;
+		stateLock.readLock().lock();
+		try {
+			// Queue lengths are read without the zone locks, only to decide
+			numZones = queues.length;
+			long total = 0;
+			int longest = 0, shortest = Integer.MAX_VALUE;
+			for (int i = 0; i < numZones; i++) {
+				total += queues[i].size();
+				longest = Math.max(longest, queues[i].size());
+				shortest = Math.min(shortest, queues[i].size());
+			}
+			boolean idleDrivers = false;
+			for (int i = 0; i < CityMap.getNumBlocks() && !idleDrivers; i++)
+				idleDrivers = availableDrivers.size(i) > 0 && queues[cityZones.getZoneOfBlockIndex(i)].isEmpty();
+			boolean imbalanced = longest > targetQueueDepth && longest > 2 * total / numZones && idleDrivers;
+			if (imbalanced)
+				numZones = Math.max(minZones, numZones / 2);
+			else if (shortest > targetQueueDepth)
+				numZones = Math.min(maxZones, numZones * 2);
+			else if (total * 4 < (long) targetQueueDepth * numZones)
+				numZones = Math.max(minZones, numZones / 2);
+			numZones = Math.max(minZones, Math.min(maxZones, numZones));
+			if (numZones == queues.length && !imbalanced)
+				return false;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		rezone(numZones);
+		return true;
+	}
+
+	// Run rebalanceZones in the background every period milliseconds
+	public synchronized void startRezoning(long period, int minZones, int maxZones, int targetQueueDepth) {
+		stopRezoning();
+		rezoner = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "TMUber rezoner");
+			thread.setDaemon(true);
+			return thread;
+		});
+		rezoner.scheduleWithFixedDelay(() -> {
+			try {
+				rebalanceZones(minZones, maxZones, targetQueueDepth);
+			} catch (RuntimeException e) {
+				// a failed run must not stop the following ones
+				reportFailure(e);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopRezoning() {
+		if (rezoner != null) {
+			rezoner.shutdown();
+			rezoner = null;
+		}
+	}
+
+	// Save the whole system to a snapshot file, see TMUberSnapshot
+	// Operations that change the system wait until the snapshot is written.
+	// The journal is then emptied: recover from this snapshot and the journal
+	public void saveSnapshot(String filename) throws IOException {
+		stateLock.writeLock().lock();
+		try {
+			TMUberSnapshot.write(this, filename);
+			if (journal != null)
+				journal.truncate();
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+
+	// Create a system from a snapshot file written by saveSnapshot
+	public static TMUberSystemManager loadSnapshot(String filename) throws IOException {
+		return loadSnapshot(filename, new HeapUserStore());
+	}
+
+	// Same, keeping the users in the given empty store
+	public static TMUberSystemManager loadSnapshot(String filename, UserStore users) throws IOException {
+		return loadSnapshot(filename, users, 0);
+	}
+
+	// Same, the system then gives the ids of node (the node is not part of the snapshot)
+	public static TMUberSystemManager loadSnapshot(String filename, UserStore users, int node) throws IOException {
+		return TMUberSnapshot.read(filename, users, node);
+	}
+
+	/*
+	 * Rebuild a system after a crash: load the snapshot file (if there is one) and
+	 * replay the records of the journal file written after that snapshot.
+	 * Reopen the journal and pass it to setJournal to keep journaling.
+	 */
+	public static TMUberSystemManager recover(String snapshotFile, String journalFile) throws IOException {
+		return recover(snapshotFile, journalFile, new HeapUserStore());
+	}
+
+	// Same, keeping the users in the given empty store
+	public static TMUberSystemManager recover(String snapshotFile, String journalFile, UserStore users) throws IOException {
+		return recover(snapshotFile, journalFile, users, 0);
+	}
+
+	// Same, the system then gives the ids of node
+	public static TMUberSystemManager recover(String snapshotFile, String journalFile, UserStore users, int node) throws IOException {
+		TMUberSystemManager tmuber;
+		if (snapshotFile != null && Files.exists(Paths.get(snapshotFile)))
+			tmuber = loadSnapshot(snapshotFile, users, node);
+		else
+			tmuber = new TMUberSystemManager(DEFAULT_QUEUE_CAPACITY, users, node);
+		tmuber.journalSequence = TMUberJournal.replay(journalFile, tmuber.journalSequence, tmuber);
+		return tmuber;
+	}
+
+	// Start writing the changes to a journal, null to stop.
+	// The journal is not closed when it is replaced
+	public void setJournal(TMUberJournal journal) {
+		stateLock.writeLock().lock();
+		try {
+			if (this.journal != null)
+				journalSequence = this.journal.getLastSequence();
+			if (journal != null)
+				journal.advanceTo(journalSequence);
+			this.journal = journal;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+
+	// Wait for the journal records of an operation to be on disk, see TMUberJournal.sync
+	private void syncJournal() {
+		if (journal != null)
+			journal.sync();
+	}
+
+	// Snapshot support, used by TMUberSnapshot.
+	// The getters are called holding the write lock, the restore methods before the
+	// restored system is used by anyone
+	UserStore getUsers() {
+		return users;
+	}
+
+	// The drivers by fleet index
+	List<Driver> getDriversList() {
+		return drivers.asList();
+	}
+
+	int getNumZones() {
+		return queues.length;
+	}
+
+	CityMap.Zones getZones() {
+		return cityZones;
+	}
+
+	int getQueueCapacity() {
+		return queues[0].capacity();
+	}
+
+	ZoneQueue getQueue(int zone) {
+		return queues[zone];
+	}
+
+	DriverPool getAvailableDrivers() {
+		return availableDrivers;
+	}
+
+	boolean isActiveRequest(TMUberService req) {
+		return activeRequests.get(req) == req;
+	}
+
+	long getLastRequestId() {
+		return lastRequestId.get();
+	}
+
+	// Sequence number of the last journal record included in the state
+	long getJournalSequence() {
+		if (journal != null)
+			return journal.getLastSequence();
+		return journalSequence;
+	}
+
+	// Returns the user as stored
+	User restoreUser(User user) {
+		return addUser(user);
+	}
+
+	// Register an available driver with an empty wallet, returns it
+	// The driver is not put in the available pool, see restoreAvailableDriver
+	Driver restoreDriver(String id, String name, String carModel, String licensePlate, String address) {
+		return addDriver(drivers.add(id, name, carModel, licensePlate, address));
+	}
+
+	void restoreAvailableDriver(Driver driver) {
+		availableDrivers.add(driver);
+	}
+
+	// Restore a request, queued in the queue of zone or not queued if zone is -1
+	void restoreRequest(TMUberService req, int zone, boolean active) {
+		if (zone >= 0) {
+			queues[zone].offer(req);
+			queueChanged(zone);
+			addPendingRequest(req);
+		}
+		if (active)
+			activeRequests.put(req, req);
+	}
+
+	void restoreCounters(long lastRequestId, long journalSequence, long totalRevenue) {
+		this.lastRequestId.set(lastRequestId);
+		this.journalSequence = journalSequence;
+		this.totalRevenue.set(totalRevenue);
+	}
+
+	// Journal replay, used by TMUberJournal before the system is used by anyone
+
+	// Queue a request again with the driver it got
+	void replayRequest(TMUberService req, String driverId) {
+		Driver driver = findDriver(driverId);
+		if (driver == null || !claimDriver(driver)) {
 			throw new DriverNotFoundException("Driver not found with driver ID " + driverId + " and driver status available");
 		}
-		driver.setAddress(address);
-		driver.setZone(CityMap.getCityZone(driver.getAddress()));
-		driver.setStatus(Driver.Status.DRIVING); 
-		return;
+		if (req instanceof TMUberRide) {
+			driver.setTmuberService(req);
+			req.getUser().addRide();
+		} else {
+			req.getUser().addDelivery();
+		}
+		restoreRequest(req, cityZones.getZone(req.getFrom()), true);
+		if (req.getRequestId() > lastRequestId.get())
+			lastRequestId.set(req.getRequestId());
 	}
-	
-	// Sort users by name
+
+	// Pick up again, the driver gets the same request as the first time
+	void replayPickup(String driverId, long requestId) {
+		Driver driver = findDriver(driverId);
+		TMUberService service = pendingRequests.get(requestId);
+		if (driver == null || service == null || !assignRequest(driver, service)) {
+			throw new InvalidRequestNumberException("Driver ID " + driverId + " cannot pick up request id " + requestId);
+		}
+	}
+
+	// List the users by name
+	// The users are sorted the first time, then kept sorted as they are registered
 	public void sortByUserName() {
-		Collections.sort(usersList, new NameComparator());
-		listAllUsers();
+		stateLock.readLock().lock();
+		try {
+			synchronized (users) {
+				if (usersByName == null)
+					usersByName = sortUsers(new SortedUsers(user -> SortedUsers.prefix(user.getName()), new NameComparator(), userIds));
+			}
+			System.out.println();
+			usersByName.iterator().forEachRemaining(ListingPrinter.users());
+		} finally {
+			stateLock.readLock().unlock();
+		}
 	}
 
 	private class NameComparator implements Comparator<User> {
 		public int compare(User a, User b) {
+			if (a.getName() == null || b.getName() == null)
+				return a.getName() == null ? (b.getName() == null ? 0 : -1) : 1;
 			return a.getName().compareTo(b.getName());
 		}
 	}
 
-	// Sort users by number amount in wallet
+	// List the users by amount in wallet, the lowest first
+	// The users are sorted the first time, then kept sorted as they are registered and pay
 	public void sortByWallet() {
-		Collections.sort(usersList, new UserWalletComparator());
-		listAllUsers();
+		stateLock.readLock().lock();
+		try {
+			System.out.println();
+			usersByWallet().iterator().forEachRemaining(ListingPrinter.users());
+		} finally {
+			stateLock.readLock().unlock();
+		}
 	}
 
-	private class UserWalletComparator implements Comparator<User> {
-		public int compare(User a, User b) {
-			if (a.getWallet() > b.getWallet())
-				return 1;
-			if (a.getWallet() < b.getWallet())
-				return -1;
-			return 0;
+	// The k users with the most money in their wallet, the richest first, in O(log n + k)
+	public List<User> topUsersByWallet(int k) {
+		stateLock.readLock().lock();
+		try {
+			ArrayList<User> top = new ArrayList<User>(Math.min(k, 1024));
+			Iterator<User> richest = usersByWallet().descendingIterator();
+			while (top.size() < k && richest.hasNext())
+				top.add(richest.next());
+			return top;
+		} finally {
+			stateLock.readLock().unlock();
 		}
 	}
 
-	// Sort trips (rides or deliveries) by distance
-	// class TMUberService must implement Comparable
+	private SortedUsers usersByWallet() {
+		synchronized (users) {
+			if (usersByWallet == null) {
+				// published before it is filled so that payments made meanwhile update it
+				usersByWallet = new SortedUsers(User::getWallet, userIds);
+				sortUsers(usersByWallet);
+			}
+			return usersByWallet;
+		}
+	}
+
+	// Add all the users to a sorted view, must hold the lock of the users
+	private SortedUsers sortUsers(SortedUsers sorted) {
+		User[] all = new User[users.size()];
+		for (int i = 0; i < all.length; i++)
+			all[i] = users.get(i);
+		sorted.addAll(all);
+		return sorted;
+	}
+
+	// List the queued trips (rides or deliveries) by distance, the shortest first
+	// The requests are kept sorted as they are queued and taken out of the queues
 	public void sortByDistance() {
-		populateTMUberServicesArray();
-		Collections.sort(serviceRequests);
-		listAllServiceRequests();
+		requestsByDistance.iterator().forEachRemaining(ListingPrinter.requests());
 	}
 }
 
@@ -711,4 +1966,10 @@ class InvalidZoneNumberException extends RuntimeException {
     public InvalidZoneNumberException(String errorMessage) {
         super(errorMessage);
     }
+}
+class ZoneQueueFullException extends RuntimeException { 
+	private static final long serialVersionUID = 1L;
+    public ZoneQueueFullException(String errorMessage) {
+        super(errorMessage);
+    }
 }
\ No newline at end of file
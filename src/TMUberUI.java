@@ -1,4 +1,6 @@
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.Scanner;
 
 // Simulation of a Simple Command-line based Uber App 
@@ -28,17 +30,28 @@ try {
 		// Print all the registered drivers
 		else if (action.equalsIgnoreCase("DRIVERS")) // List all drivers
 		{
-			tmuber.listAllDrivers();
+			System.out.println();
+			// streamed a page at a time
+			ListingPrinter<Driver> printer = ListingPrinter.drivers();
+			for (long page = 0; page >= 0;)
+				page = tmuber.listDrivers(page, ListingPrinter.PAGE_SIZE, printer);
 		}
 		// Print all the registered users
 		else if (action.equalsIgnoreCase("USERS")) // List all users
 		{
-			tmuber.listAllUsers();
+			System.out.println();
+			// streamed a page at a time
+			ListingPrinter<User> printer = ListingPrinter.users();
+			for (long page = 0; page >= 0;)
+				page = tmuber.listUsers(page, ListingPrinter.PAGE_SIZE, printer);
 		}
 		// Print all current ride requests or delivery requests
 		else if (action.equalsIgnoreCase("REQUESTS")) // List all requests
 		{
-			tmuber.listAllServiceRequests();
+			// streamed a page at a time
+			ListingPrinter<TMUberService> printer = ListingPrinter.requests();
+			for (long page = 0; page >= 0;)
+				page = tmuber.listServiceRequests(page, ListingPrinter.PAGE_SIZE, printer);
 		}
 		// Register a new driver
 		else if (action.equalsIgnoreCase("REGDRIVER")) {
@@ -81,15 +94,16 @@ try {
 			if (scanner.hasNextLine()) {
 				address = scanner.nextLine();
 			}
-			double wallet = 0.0;
+			long wallet = 0; // cents
 			System.out.print("Wallet: ");
-			if (scanner.hasNextDouble()) {
-				wallet = scanner.nextDouble();
-				scanner.nextLine(); // consume nl
-			}
 			try {
+				if (scanner.hasNextBigDecimal()) {
+					BigDecimal dollars = scanner.nextBigDecimal();
+					scanner.nextLine(); // consume nl
+					wallet = Money.of(dollars);
+				}
 				tmuber.registerNewUser(name, address, wallet);
-				System.out.printf("User: %-15s Address: %-15s Wallet: %2.2f", name, address, wallet);
+				System.out.printf("User: %-15s Address: %-15s Wallet: %s", name, address, Money.format(wallet));
 			} catch(RuntimeException e) {
 				System.out.println(e.getMessage());
 			}			
@@ -112,9 +126,9 @@ try {
 				to = scanner.nextLine();
 			}
 			try {
-				tmuber.requestRide(account, from, to);
+				long requestId = tmuber.requestRide(account, from, to);
 				User user = tmuber.getUser(account);
-				System.out.printf("\nRIDE for: %-15s From: %-15s To: %-15s", user.getName(), from, to);
+				System.out.printf("\nRIDE for: %-15s From: %-15s To: %-15s Request Id: %d", user.getName(), from, to, requestId);
 			} catch(RuntimeException e) {
 				System.out.println(e.getMessage());
 			}			
@@ -147,9 +161,9 @@ try {
 				foodOrder = scanner.nextLine();
 			}
 			try {
-			    tmuber.requestDelivery(account, from, to, restaurant, foodOrder);
+			    long requestId = tmuber.requestDelivery(account, from, to, restaurant, foodOrder);
 				User user = tmuber.getUser(account);
-				System.out.printf("\nDELIVERY for: %-15s From: %-15s To: %-15s", user.getName(), from, to);
+				System.out.printf("\nDELIVERY for: %-15s From: %-15s To: %-15s Request Id: %d", user.getName(), from, to, requestId);
 			} catch(RuntimeException e) {
 				System.out.println(e.getMessage());
 			}			
@@ -188,6 +202,21 @@ try {
 				System.out.println(e.getMessage());
 			}
 		}
+		// Cancel a current service (ride or delivery) request given its request id
+		else if (action.equalsIgnoreCase("CANCELID")) {
+			long requestId = -1;
+			System.out.print("request id: ");
+			if (scanner.hasNextLong()) {
+				requestId = scanner.nextLong();
+				scanner.nextLine(); // consume nl character
+			}
+			try {
+				tmuber.cancelServiceRequest(requestId);
+				System.out.println("Service request id " + requestId + " cancelled");	
+			} catch(RuntimeException e) {
+				System.out.println(e.getMessage());
+			}
+		}
 		// Drop-off the user or the food delivery to the destination address
 		else if (action.equalsIgnoreCase("DROPOFF")) {
 			String driverId = "";
@@ -205,7 +234,7 @@ try {
 		}
 		// Get the Current Total Revenues
 		else if (action.equalsIgnoreCase("REVENUES")) {
-			System.out.println("Total Revenue: " + tmuber.totalRevenue);
+			System.out.println("Total Revenue: " + Money.format(tmuber.getTotalRevenue()));
 		}
 		// Unit Test of Valid City Address
 		else if (action.equalsIgnoreCase("ADDR")) {
@@ -250,6 +279,15 @@ try {
 				System.out.println(e.getMessage());
 			}
 		}
+		// Match all available drivers with the waiting requests, nearest first
+		else if (action.equalsIgnoreCase("MATCH")) {
+			try {
+				int pickups = tmuber.matchQueuedRequests();
+				System.out.println("Successful Pick Up - " + pickups + " requests matched with drivers");
+			} catch(RuntimeException e) {
+				System.out.println(e.getMessage());
+			}
+		}
 		// LOADUSERS the users
 		else if (action.equalsIgnoreCase("LOADUSERS")) {
 			String filename = "";
@@ -282,6 +320,38 @@ try {
 			}	
 		}
 
+		// Save the whole system to a snapshot file
+		else if (action.equalsIgnoreCase("SAVE")) {
+			String filename = "";
+			System.out.print("filename #: ");
+			if (scanner.hasNextLine()) {
+				filename = scanner.next();
+				scanner.nextLine(); // consume nl
+			}
+			try {
+				tmuber.saveSnapshot(filename);
+				System.out.println("Snapshot saved to " + filename);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+
+		// Replace the system with the one saved in a snapshot file
+		else if (action.equalsIgnoreCase("RESTORE")) {
+			String filename = "";
+			System.out.print("filename #: ");
+			if (scanner.hasNextLine()) {
+				filename = scanner.next();
+				scanner.nextLine(); // consume nl
+			}
+			try {
+				tmuber = TMUberSystemManager.loadSnapshot(filename);
+				System.out.println("Snapshot restored from " + filename);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+
 		// LOADDRIVERS the users
 		else if (action.equalsIgnoreCase("DRIVETO")) {
 			String driverId = "";
@@ -7,11 +7,11 @@ public class User
   private String accountId;  
   private String name;
   private String address;
-  private double wallet; // load up with money
-  private int rides;
-  private int deliveries;
+  private volatile long wallet; // load up with money, in cents (see Money)
+  private volatile int rides;
+  private volatile int deliveries;
   
-  public User(String id, String name, String address, double wallet)
+  public User(String id, String name, String address, long wallet)
   {
     this.accountId = id;
     this.name = name;
@@ -20,6 +20,10 @@ public class User
     this.rides = 0;
     this.deliveries = 0;
   } 
+  // For a user kept somewhere else, which overrides the getters and setters (see OffHeapUserStore)
+  User()
+  {
+  }
 
   // Getters and Setters
   public String getAccountId()
@@ -46,11 +50,11 @@ public class User
   {
     this.address = address;
   }
-  public double getWallet()
+  public long getWallet()
   {
     return wallet;
   }
-  public void setWallet(int wallet)
+  public synchronized void setWallet(long wallet)
   {
     this.wallet = wallet;
   }
@@ -58,11 +62,11 @@ public class User
   {
     return rides;
   }
-  public void addRide()
+  public synchronized void addRide()
   {
     this.rides++;
   }
-  public void addDelivery()
+  public synchronized void addDelivery()
   {
     this.deliveries++;
   }
@@ -70,10 +74,18 @@ public class User
   {
     return deliveries;
   }
+  public synchronized void setRides(int rides)
+  {
+    this.rides = rides;
+  }
+  public synchronized void setDeliveries(int deliveries)
+  {
+    this.deliveries = deliveries;
+  }
   
   // Pay for the cost of the service
   // This method assumes that there are sufficient funds in the wallet
-  public void payForService(double cost)
+  public synchronized void payForService(long cost)
   {
     wallet -= cost;
   }
@@ -81,7 +93,7 @@ public class User
   // Print Information about a User  
   public void printInfo()
   {
-    System.out.printf("Id: %-5s Name: %-15s Address: %-15s Wallet: %2.2f", accountId, name, address, wallet);
+    System.out.printf("Id: %-5s Name: %-15s Address: %-15s Wallet: %s", getAccountId(), getName(), getAddress(), Money.format(getWallet()));
   }
   
   /*
@@ -91,6 +103,12 @@ public class User
   public boolean equals(Object other)
   {
     User otherUser = (User) other;
-    return this.name.equals(otherUser.name) && this.address.equals(otherUser.address);
+    return this.getName().equals(otherUser.getName()) && this.getAddress().equals(otherUser.getAddress());
+  }
+  
+  // Consistent with equals: based on name and address
+  public int hashCode()
+  {
+    return 31 * getName().hashCode() + getAddress().hashCode();
   }
 }
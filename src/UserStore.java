@@ -0,0 +1,28 @@
+/*
+ *
+ * Where a TMUberSystemManager keeps its registered users: by account id for
+ * the lookups, and in registration order for listing them. Sorted listings
+ * are kept apart (see SortedUsers), the store is never reordered.
+ *
+ * The users can be plain User objects on the heap (HeapUserStore) or records
+ * in memory the garbage collector does not go through (OffHeapUserStore),
+ * which returns a User that reads and writes its record.
+ *
+ * get(accountId) can be called from any thread. The other methods are called
+ * holding the lock of the store (synchronized on it), registrations are
+ * done one at a time.
+ */
+public interface UserStore {
+	// Number of users
+	int size();
+
+	// The user with an account id, null if there is none
+	User get(String accountId);
+
+	// The user registered at a position, 0 is the first
+	User get(int index);
+
+	// Add a user after the others, with its wallet and counters.
+	// Returns the user as stored, which is the user itself or a copy of it
+	User add(User user);
+}
@@ -0,0 +1,38 @@
+import java.util.Queue;
+
+/*
+ *
+ * The queue of waiting service requests of one city zone.
+ *
+ * poll() returns the request to pick up next: the oldest one for a FIFO
+ * queue (ServiceQueue), the most urgent one for a priority queue
+ * (PriorityServiceQueue). Iterating and get(index) follow the same order, so
+ * the position shown when the queue is listed is the position removeAt()
+ * takes. copyTo(from, page, offset) lists one page of the queue from a position on
+ * without going through the requests before it.
+ *
+ * Implementations are not thread safe, TMUberSystemManager guards each zone
+ * queue with the lock of its zone.
+ */
+public interface ZoneQueue extends Queue<TMUberService> {
+	// Maximum number of requests
+	int capacity();
+
+	int remainingCapacity();
+
+	// Request at the given position, 0 is the next one to be picked up
+	TMUberService get(int index);
+
+	// Remove and return the request at the given position
+	TMUberService removeAt(int index);
+
+	// Remove and return the request with the given request id, null if it is not in this queue
+	TMUberService removeById(long requestId);
+
+	// Check if the request with the given request id is in this queue
+	boolean containsId(long requestId);
+
+	// Copy the requests from position from on into page from offset on, until page is full.
+	// Returns the number of requests copied, 0 if from is past the last request
+	int copyTo(int from, TMUberService[] page, int offset);
+}
@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/*
+ *
+ * Threads requesting, cancelling, picking up and dropping off rides in all
+ * the zones at once, each with its own users and drivers: every request is
+ * picked up, cancelled or still queued exactly once, in the queue of its
+ * zone and oldest first, a driver is in the pool of available drivers if
+ * and only if it is available, and no payment is lost: what the users paid
+ * is the revenue plus what the drivers got.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out ConcurrentDispatchTest
+ */
+public class ConcurrentDispatchTest {
+	static final int THREADS = 4;
+	static final int USERS = 50;   // per thread
+	static final int DRIVERS = 40; // per thread
+	static final int OPERATIONS = 40000; // per thread
+	static final long WALLET = 100000000;
+	static final String[] ADDRESSES = { "34 4th Street", "51 7th Avenue", "12 2nd Street", "81 8th Avenue", "22 2nd Avenue",
+			"77 7th Street", "19 9th Avenue", "93 3rd Street" };
+	// The exceptions a request, cancellation, pickup or drop off can expect when the others go on at the same time
+	static final List<String> EXPECTED = Arrays.asList("UserHasRideRequestException", "NoDriversAvailableException",
+			"InsufficientTravelDistanceException", "InvalidRequestNumberException", "DriverNotFoundException",
+			"NoServiceRequestInQueueException", "ZoneQueueFullException");
+
+	static volatile AssertionError failure;
+
+	public static void main(String[] args) throws Exception {
+		CityMap.reset();
+		TMUberSystemManager tmuber = new TMUberSystemManager(256);
+		for (int i = 0; i < THREADS * USERS; i++)
+			tmuber.registerNewUser("User" + i, ADDRESSES[i % ADDRESSES.length], WALLET);
+		for (int i = 0; i < THREADS * DRIVERS; i++)
+			tmuber.registerNewDriver("Driver" + i, "Model", "PLATE" + i, ADDRESSES[i % ADDRESSES.length]);
+		List<Driver> drivers = tmuber.getDriversList();
+
+		// the requests each thread made, cancelled and picked up
+		ArrayList<ArrayList<Long>> requested = new ArrayList<ArrayList<Long>>();
+		ArrayList<HashSet<Long>> cancelled = new ArrayList<HashSet<Long>>();
+		ArrayList<ArrayList<Long>> pickedUp = new ArrayList<ArrayList<Long>>();
+		long[] errors = new long[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			requested.add(new ArrayList<Long>());
+			cancelled.add(new HashSet<Long>());
+			pickedUp.add(new ArrayList<Long>());
+			threads[t] = new Thread(() -> {
+				Random random = new Random(5 + thread);
+				ArrayList<Long> made = requested.get(thread);
+				try {
+					for (int i = 0; i < OPERATIONS; i++) {
+						int op = random.nextInt(10);
+						// only this thread picks up and drops off its drivers
+						Driver driver = drivers.get(thread * DRIVERS + random.nextInt(DRIVERS));
+						try {
+							if (op < 4) {
+								String user = TMUberIds.USER_PREFIX + (thread * USERS + random.nextInt(USERS));
+								made.add(tmuber.requestRide(user, ADDRESSES[random.nextInt(ADDRESSES.length)],
+										ADDRESSES[random.nextInt(ADDRESSES.length)]));
+							} else if (op == 4 && !made.isEmpty()) {
+								long requestId = made.get(made.size() - 1 - random.nextInt(Math.min(made.size(), 20)));
+								tmuber.cancelServiceRequest(requestId);
+								check(cancelled.get(thread).add(requestId), "request " + requestId + " cancelled twice");
+							} else if (op < 7) {
+								tmuber.pickup(driver.getId());
+								pickedUp.get(thread).add(driver.getTmuberService().getRequestId());
+							} else {
+								tmuber.dropOff(driver.getId());
+							}
+						} catch (RuntimeException e) {
+							check(EXPECTED.contains(e.getClass().getSimpleName()), "unexpected " + e);
+							errors[thread]++;
+						}
+					}
+				} catch (AssertionError e) {
+					failure = e;
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		if (failure != null)
+			throw failure;
+
+		// every request in exactly one place
+		HashSet<Long> seen = new HashSet<Long>();
+		long picked = 0, cancels = 0, queued = 0, made = 0;
+		for (int t = 0; t < THREADS; t++) {
+			for (long requestId : pickedUp.get(t))
+				check(seen.add(requestId), "request " + requestId + " picked up twice");
+			for (long requestId : cancelled.get(t))
+				check(seen.add(requestId), "request " + requestId + " cancelled and picked up");
+			picked += pickedUp.get(t).size();
+			cancels += cancelled.get(t).size();
+			made += requested.get(t).size();
+		}
+		for (int zone = 0; zone < tmuber.getNumZones(); zone++) {
+			long last = 0;
+			for (TMUberService service : tmuber.getQueue(zone)) {
+				check(tmuber.getZones().getZone(service.getFrom()) == zone, service.getFrom() + " queued in zone " + zone);
+				check(service.getRequestId() > last, "request " + service.getRequestId() + " queued after " + last);
+				check(seen.add(service.getRequestId()), "request " + service.getRequestId() + " queued and gone");
+				last = service.getRequestId();
+				queued++;
+			}
+		}
+		check(seen.size() == made, made + " requests, " + picked + " picked up, " + cancels + " cancelled, " + queued + " queued");
+		for (int t = 0; t < THREADS; t++)
+			for (long requestId : requested.get(t))
+				check(seen.contains(requestId), "request " + requestId + " lost");
+
+		// the available drivers, and the money
+		long available = 0, fees = 0, paid = 0;
+		for (Driver driver : drivers) {
+			if (driver.getStatus() == Driver.Status.AVAILABLE)
+				available++;
+			fees += driver.getWallet();
+		}
+		check(tmuber.getAvailableDrivers().size() == available,
+				tmuber.getAvailableDrivers().size() + " drivers in the pool, " + available + " available");
+		for (int i = 0; i < THREADS * USERS; i++)
+			paid += WALLET - tmuber.getUser(TMUberIds.USER_PREFIX + i).getWallet();
+		check(paid > 0 && tmuber.getTotalRevenue() + fees == paid,
+				"paid " + paid + ", revenue " + tmuber.getTotalRevenue() + " and fees " + fees);
+		System.out.println("concurrent dispatch ok, " + made + " requests, " + picked + " picked up, " + cancels
+				+ " cancelled, " + queued + " queued, " + Arrays.stream(errors).sum() + " rejected");
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,202 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ *
+ * DispatchMatcher gives the optimal assignment when there are at most
+ * NEAREST blocks of drivers and of requests: the one found by trying every
+ * assignment on small random cities, and by the Hungarian method on up to
+ * NEAREST blocks. With many more blocks it makes as many pickups within 0.3%
+ * of the optimal total pickup distance, as its class comment says.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out DispatchMatcherTest
+ */
+public class DispatchMatcherTest {
+	static final int SMALL_CITIES = 2000;
+	static final int CITIES = 200;
+	static final int LARGE_CITIES = 40;
+
+	public static void main(String[] args) {
+		Random random = new Random(14);
+		// every assignment of up to 12 drivers and 12 requests on up to 8 blocks of each
+		for (int city = 0; city < SMALL_CITIES; city++) {
+			int size = 2 + random.nextInt(20);
+			int[][] drivers = blocks(random, size, 1 + random.nextInt(8), 12);
+			int[][] requests = blocks(random, size, 1 + random.nextInt(8), 12);
+			int[][] result = DispatchMatcher.solve(drivers[0], drivers[1], requests[0], requests[1]);
+			int[] matched = check(drivers, requests, result);
+			int[] a = expand(drivers), b = expand(requests);
+			check(matched[0] == Math.min(a.length, b.length), "city " + city + " matched " + matched[0]);
+			int optimum = a.length <= b.length ? bruteForce(a, b) : bruteForce(b, a);
+			check(matched[1] == optimum, "city " + city + " distance " + matched[1] + " instead of " + optimum);
+		}
+
+		// up to NEAREST blocks of each, against the Hungarian method
+		for (int city = 0; city < CITIES; city++) {
+			int size = 8 + random.nextInt(32);
+			int[][] drivers = blocks(random, size, 1 + random.nextInt(DispatchMatcher.NEAREST), 100);
+			int[][] requests = blocks(random, size, 1 + random.nextInt(DispatchMatcher.NEAREST), 100);
+			int[] matched = check(drivers, requests, DispatchMatcher.solve(drivers[0], drivers[1], requests[0], requests[1]));
+			int[] a = expand(drivers), b = expand(requests);
+			check(matched[0] == Math.min(a.length, b.length), "city " + city + " matched " + matched[0]);
+			long optimum = a.length <= b.length ? hungarian(a, b) : hungarian(b, a);
+			check(matched[1] == optimum, "city " + city + " distance " + matched[1] + " instead of " + optimum);
+		}
+
+		// many more blocks than NEAREST, spread over the city or the drivers on one side of it
+		long total = 0, optimal = 0, pickups = 0, most = 0;
+		for (int city = 0; city < LARGE_CITIES; city++) {
+			int size = 32 + random.nextInt(64);
+			int numBlocks = 4 * DispatchMatcher.NEAREST + random.nextInt(4 * DispatchMatcher.NEAREST);
+			int[][] drivers = blocks(random, city % 2 == 0 ? size : size / 3, size, numBlocks, numBlocks + numBlocks / 2);
+			int[][] requests = blocks(random, size, size, numBlocks, numBlocks + numBlocks / 2);
+			int[] matched = check(drivers, requests, DispatchMatcher.solve(drivers[0], drivers[1], requests[0], requests[1]));
+			int[] a = expand(drivers), b = expand(requests);
+			total += matched[1];
+			optimal += a.length <= b.length ? hungarian(a, b) : hungarian(b, a);
+			pickups += matched[0];
+			most += Math.min(a.length, b.length);
+		}
+		check(pickups == most, pickups + " pickups of " + most);
+		check(total * 1000 <= optimal * 1003, "total distance " + total + ", optimum " + optimal);
+		System.out.printf("dispatch matcher ok, %.3f%% over the optimum with many blocks%n", 100.0 * (total - optimal) / optimal);
+	}
+
+	// Distinct random blocks of a size x size city, with 1 or more of maxTotal drivers or requests each
+	static int[][] blocks(Random random, int size, int numBlocks, int maxTotal) {
+		return blocks(random, size, size, numBlocks, maxTotal);
+	}
+
+	// Same on the first avenues of the city
+	static int[][] blocks(Random random, int avenues, int streets, int numBlocks, int maxTotal) {
+		numBlocks = Math.min(numBlocks, avenues * streets);
+		int[] blocks = new int[numBlocks];
+		int[] counts = new int[numBlocks];
+		int total = 0;
+		for (int i = 0; i < numBlocks; i++) {
+			boolean taken;
+			do {
+				blocks[i] = CityMap.packBlock(1 + random.nextInt(avenues), 1 + random.nextInt(streets));
+				taken = false;
+				for (int k = 0; k < i; k++)
+					taken |= blocks[k] == blocks[i];
+			} while (taken);
+			counts[i] = 1;
+			total++;
+		}
+		while (total < maxTotal && random.nextInt(3) > 0) {
+			counts[random.nextInt(numBlocks)]++;
+			total++;
+		}
+		return new int[][] { blocks, counts };
+	}
+
+	// The packed block of each driver or request
+	static int[] expand(int[][] blocks) {
+		int[] expanded = new int[Arrays.stream(blocks[1]).sum()];
+		int n = 0;
+		for (int i = 0; i < blocks[0].length; i++)
+			for (int k = 0; k < blocks[1][i]; k++)
+				expanded[n++] = blocks[0][i];
+		return expanded;
+	}
+
+	// Check that the result assigns no more than there are on each block, returns the pickups and their distance
+	static int[] check(int[][] drivers, int[][] requests, int[][] result) {
+		int[] usedDrivers = new int[drivers[0].length];
+		int[] usedRequests = new int[requests[0].length];
+		int pickups = 0, distance = 0;
+		for (int[] pair : result) {
+			check(pair[2] > 0, "empty pair");
+			usedDrivers[pair[0]] += pair[2];
+			usedRequests[pair[1]] += pair[2];
+			pickups += pair[2];
+			distance += pair[2] * CityMap.getDistance(drivers[0][pair[0]], requests[0][pair[1]]);
+		}
+		for (int i = 0; i < usedDrivers.length; i++)
+			check(usedDrivers[i] <= drivers[1][i], "drivers of block " + i);
+		for (int j = 0; j < usedRequests.length; j++)
+			check(usedRequests[j] <= requests[1][j], "requests of block " + j);
+		return new int[] { pickups, distance };
+	}
+
+	// Smallest total distance of all of a assigned to some of b (a.length <= b.length), trying every assignment
+	static int bruteForce(int[] a, int[] b) {
+		// best[mask]: the first bitCount(mask) of a assigned to the b of mask
+		int[] best = new int[1 << b.length];
+		Arrays.fill(best, Integer.MAX_VALUE);
+		best[0] = 0;
+		int optimum = Integer.MAX_VALUE;
+		for (int mask = 0; mask < best.length; mask++) {
+			if (best[mask] == Integer.MAX_VALUE)
+				continue;
+			int i = Integer.bitCount(mask);
+			if (i == a.length) {
+				optimum = Math.min(optimum, best[mask]);
+				continue;
+			}
+			for (int j = 0; j < b.length; j++) {
+				if ((mask & 1 << j) == 0)
+					best[mask | 1 << j] = Math.min(best[mask | 1 << j], best[mask] + CityMap.getDistance(a[i], b[j]));
+			}
+		}
+		return optimum;
+	}
+
+	// Same with the Hungarian method, O(a.length^2 * b.length)
+	static long hungarian(int[] a, int[] b) {
+		int n = a.length, m = b.length;
+		long[] u = new long[n + 1], v = new long[m + 1];
+		int[] assigned = new int[m + 1]; // the a (from 1) assigned to each b, 0 if none
+		int[] way = new int[m + 1];
+		for (int i = 1; i <= n; i++) {
+			assigned[0] = i;
+			int j0 = 0;
+			long[] min = new long[m + 1];
+			Arrays.fill(min, Long.MAX_VALUE);
+			boolean[] used = new boolean[m + 1];
+			do {
+				used[j0] = true;
+				int i0 = assigned[j0], j1 = 0;
+				long delta = Long.MAX_VALUE;
+				for (int j = 1; j <= m; j++) {
+					if (used[j])
+						continue;
+					long cost = CityMap.getDistance(a[i0 - 1], b[j - 1]) - u[i0] - v[j];
+					if (cost < min[j]) {
+						min[j] = cost;
+						way[j] = j0;
+					}
+					if (min[j] < delta) {
+						delta = min[j];
+						j1 = j;
+					}
+				}
+				for (int j = 0; j <= m; j++) {
+					if (used[j]) {
+						u[assigned[j]] += delta;
+						v[j] -= delta;
+					} else {
+						min[j] -= delta;
+					}
+				}
+				j0 = j1;
+			} while (assigned[j0] != 0);
+			do {
+				int j1 = way[j0];
+				assigned[j0] = assigned[j1];
+				j0 = j1;
+			} while (j0 != 0);
+		}
+		long total = 0;
+		for (int j = 1; j <= m; j++)
+			if (assigned[j] != 0)
+				total += CityMap.getDistance(a[assigned[j] - 1], b[j - 1]);
+		return total;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
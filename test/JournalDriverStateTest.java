@@ -0,0 +1,104 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *
+ * Drivers added with their state (see setDrivers) replay with it: type,
+ * zone, wallet, status and the service they are working on, and only the
+ * available ones go back in the pool of available drivers.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out JournalDriverStateTest
+ */
+public class JournalDriverStateTest {
+	static final String ADDRESS = "53 5th Avenue";
+	static final String TO = "13 1st Avenue";
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		Path log = dir.resolve("drivers.log");
+		try {
+			TMUberSystemManager tmuber = new TMUberSystemManager();
+			TMUberJournal journal = new TMUberJournal(log.toString(), TMUberJournal.SyncPolicy.NEVER);
+			tmuber.setJournal(journal);
+			tmuber.registerNewUser("User", ADDRESS, 100000);
+			User user = tmuber.getUser(TMUberIds.USER_PREFIX + 0);
+
+			ArrayList<Driver> loaded = new ArrayList<Driver>();
+			Driver available = new Driver("D9001", "Available", "Model", "PLATE1", ADDRESS);
+			available.setWallet(12345);
+			available.setType("XL");
+			loaded.add(available);
+			Driver riding = new Driver("D9002", "Riding", "Model", "PLATE2", ADDRESS);
+			riding.setWallet(-250);
+			riding.setStatus(Driver.Status.DRIVING);
+			riding.setZone(2);
+			TMUberRide ride = new TMUberRide(ADDRESS, TO, user, 4, 1500);
+			ride.setNumPassengers(3);
+			ride.setRequestedXL(true);
+			ride.setRequestId(77);
+			ride.setQueuedAt(123456789);
+			riding.setTmuberService(ride);
+			loaded.add(riding);
+			Driver delivering = new Driver("D9003", "Delivering", "Model", "PLATE3", null);
+			delivering.setStatus(Driver.Status.DRIVING);
+			TMUberDelivery delivery = new TMUberDelivery(ADDRESS, TO, user, 4, 900, "Restaurant", "Order");
+			delivery.setRequestId(78);
+			delivering.setTmuberService(delivery);
+			loaded.add(delivering);
+			tmuber.setDrivers(loaded);
+			journal.close();
+
+			TMUberSystemManager recovered = TMUberSystemManager.recover(null, log.toString());
+			List<Driver> expected = tmuber.getDriversList();
+			List<Driver> actual = recovered.getDriversList();
+			check(actual.size() == expected.size(), "drivers " + actual.size() + " of " + expected.size());
+			for (int i = 0; i < expected.size(); i++)
+				checkSame(expected.get(i), actual.get(i));
+			check(recovered.getAvailableDrivers().size() == 1, "available " + recovered.getAvailableDrivers().size());
+		} finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(dir);
+		}
+		System.out.println("journal driver state ok");
+	}
+
+	static void checkSame(Driver expected, Driver actual) {
+		String id = expected.getId();
+		check(actual.getId().equals(id) && actual.getName().equals(expected.getName()), "driver " + id);
+		check(same(actual.getAddress(), expected.getAddress()), "address of " + id);
+		check(same(actual.getType(), expected.getType()), "type of " + id);
+		check(actual.getZone() == expected.getZone(), "zone of " + id + ": " + actual.getZone());
+		check(actual.getWallet() == expected.getWallet(), "wallet of " + id + ": " + actual.getWallet());
+		check(actual.getStatus() == expected.getStatus(), "status of " + id + ": " + actual.getStatus());
+		TMUberService a = actual.getTmuberService();
+		TMUberService e = expected.getTmuberService();
+		if (e == null) {
+			check(a == null, "service of " + id);
+			return;
+		}
+		check(a != null && a.getClass() == e.getClass() && a.getRequestId() == e.getRequestId()
+				&& a.getQueuedAt() == e.getQueuedAt() && a.getFrom().equals(e.getFrom()) && a.getTo().equals(e.getTo())
+				&& a.getDistance() == e.getDistance() && a.getCost() == e.getCost()
+				&& a.getUser().getAccountId().equals(e.getUser().getAccountId()), "service of " + id);
+		if (e instanceof TMUberRide) {
+			TMUberRide r = (TMUberRide) a;
+			check(r.getNumPassengers() == ((TMUberRide) e).getNumPassengers() && r.isRequestedXL() == ((TMUberRide) e).isRequestedXL(),
+					"ride of " + id);
+		} else {
+			TMUberDelivery d = (TMUberDelivery) a;
+			check(d.getRestaurant().equals(((TMUberDelivery) e).getRestaurant())
+					&& d.getFoodOrderId().equals(((TMUberDelivery) e).getFoodOrderId()), "delivery of " + id);
+		}
+	}
+
+	static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,95 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ *
+ * A user or driver is journaled before it can be found: a request made for a
+ * user, or a move made by a driver, the moment it is registered comes after
+ * it in the journal, and the journal replays.
+ *
+ * One thread registers users and drivers while two others request a ride
+ * for each user and move each driver as soon as they can find them, so their
+ * records are interleaved with the registrations in the journal.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out JournalOrderTest
+ */
+public class JournalOrderTest {
+	static final int ROUNDS = 20;
+	static final int REGISTRATIONS = 500;
+	static final String ADDRESS = "53 5th Avenue";
+	static final String TO = "13 1st Avenue";
+	// the moved drivers are kept away from the rides, so no ride takes one of them
+	static final String FAR = "93 9th Avenue";
+	static final String FARTHER = "83 9th Avenue";
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		Path log = dir.resolve("order.log");
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				Files.deleteIfExists(log);
+				TMUberSystemManager tmuber = new TMUberSystemManager();
+				TMUberJournal journal = new TMUberJournal(log.toString(), TMUberJournal.SyncPolicy.NEVER);
+				tmuber.setJournal(journal);
+				// drivers for the rides, so that every request gets one
+				for (int i = 0; i < REGISTRATIONS; i++)
+					tmuber.registerNewDriver("Rider" + i, "Model", "RIDE" + i, ADDRESS);
+
+				Thread registrar = new Thread(() -> {
+					for (int i = 0; i < REGISTRATIONS; i++) {
+						tmuber.registerNewUser("User" + i, ADDRESS, 100000);
+						tmuber.registerNewDriver("Driver" + i, "Model", "MOVE" + i, FAR);
+					}
+				});
+				Thread requester = new Thread(() -> {
+					for (int i = 0; i < REGISTRATIONS; i++) {
+						String accountId = TMUberIds.USER_PREFIX + i;
+						while (tmuber.getUser(accountId) == null)
+							Thread.onSpinWait();
+						tmuber.requestRide(accountId, ADDRESS, TO);
+					}
+				});
+				Thread mover = new Thread(() -> {
+					for (int i = REGISTRATIONS; i < 2 * REGISTRATIONS; i++) {
+						String driverId = TMUberIds.DRIVER_PREFIX + i;
+						while (!moved(tmuber, driverId))
+							Thread.onSpinWait();
+					}
+				});
+				requester.start();
+				mover.start();
+				registrar.start();
+				registrar.join();
+				requester.join();
+				mover.join();
+				journal.close();
+
+				TMUberSystemManager recovered = TMUberSystemManager.recover(null, log.toString());
+				check(recovered.getUser(TMUberIds.USER_PREFIX + (REGISTRATIONS - 1)) != null, "round " + round + " users");
+				int queued = 0;
+				for (int i = 0; i < recovered.getNumZones(); i++)
+					queued += recovered.getQueue(i).size();
+				check(queued == REGISTRATIONS, "round " + round + " queued " + queued);
+			}
+		} finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(dir);
+		}
+		System.out.println("journal order ok");
+	}
+
+	// Moves the driver, false while it cannot be found yet
+	static boolean moved(TMUberSystemManager tmuber, String driverId) {
+		try {
+			tmuber.driveTo(driverId, FARTHER);
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,87 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ *
+ * Saving a snapshot empties the journal, and the system is recovered from the
+ * snapshot and the records journaled after it. A journal larger than the
+ * buffer it is read with replays whole.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out JournalSnapshotTest
+ */
+public class JournalSnapshotTest {
+	// USER records take about 50 bytes, so the journal is read in a few buffers
+	static final int USERS = 60000;
+	static final String ADDRESS = "53 5th Avenue";
+	static final String TO = "13 1st Avenue";
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		Path log = dir.resolve("tmuber.log");
+		Path snapshot = dir.resolve("tmuber.snap");
+		try {
+			TMUberSystemManager tmuber = new TMUberSystemManager();
+			TMUberJournal journal = new TMUberJournal(log.toString(), TMUberJournal.SyncPolicy.NEVER);
+			tmuber.setJournal(journal);
+			register(tmuber, 0, USERS);
+			journal.close();
+			check(Files.size(log) > 2 << 20, "journal of " + Files.size(log) + " bytes");
+			TMUberSystemManager recovered = TMUberSystemManager.recover(null, log.toString());
+			checkSame(tmuber, recovered, USERS);
+
+			// the snapshot holds the records, the journal only what comes after it
+			journal = new TMUberJournal(log.toString(), TMUberJournal.SyncPolicy.NEVER);
+			tmuber.setJournal(journal);
+			tmuber.saveSnapshot(snapshot.toString());
+			check(Files.size(log) == 0, "journal of " + Files.size(log) + " bytes after the snapshot");
+			register(tmuber, USERS, 100);
+			journal.close();
+			recovered = TMUberSystemManager.recover(snapshot.toString(), log.toString());
+			checkSame(tmuber, recovered, USERS + 100);
+
+			// journaling goes on in the recovered system, numbered after the snapshot
+			journal = new TMUberJournal(log.toString(), TMUberJournal.SyncPolicy.NEVER);
+			recovered.setJournal(journal);
+			register(recovered, USERS + 100, 100);
+			journal.close();
+			TMUberSystemManager again = TMUberSystemManager.recover(snapshot.toString(), log.toString());
+			checkSame(recovered, again, USERS + 200);
+		} finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(snapshot);
+			Files.deleteIfExists(dir);
+		}
+		System.out.println("journal snapshot ok");
+	}
+
+	// Registers users and a driver for every tenth of them, who requests a ride
+	static void register(TMUberSystemManager tmuber, int first, int count) {
+		for (int i = first; i < first + count; i++) {
+			tmuber.registerNewUser("User" + i, ADDRESS, 100000);
+			if (i % 10 == 0) {
+				tmuber.registerNewDriver("Driver" + i, "Model", "PLATE" + i, ADDRESS);
+				tmuber.requestRide(TMUberIds.USER_PREFIX + i, ADDRESS, TO);
+			}
+		}
+	}
+
+	static void checkSame(TMUberSystemManager expected, TMUberSystemManager actual, int users) {
+		check(actual.getUser(TMUberIds.USER_PREFIX + (users - 1)) != null, "user " + (users - 1));
+		check(actual.getUser(TMUberIds.USER_PREFIX + users) == null, "user " + users);
+		check(queued(actual) == queued(expected), "queued " + queued(actual) + " of " + queued(expected));
+		check(actual.getJournalSequence() == expected.getJournalSequence(),
+				"sequence " + actual.getJournalSequence() + " of " + expected.getJournalSequence());
+	}
+
+	static int queued(TMUberSystemManager tmuber) {
+		int queued = 0;
+		for (int i = 0; i < tmuber.getNumZones(); i++)
+			queued += tmuber.getQueue(i).size();
+		return queued;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,94 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+/*
+ *
+ * Money rounds a percentage once, to the nearest cent with half cents away
+ * from zero, for negative amounts too, and throws instead of wrapping
+ * around. The driver fee and the revenue of every drop off, with surge
+ * costs, add up to exactly what the users paid.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out MoneyTest
+ */
+public class MoneyTest {
+	static final int AMOUNTS = 200000;
+	static final int TRIPS = 300;
+
+	public static void main(String[] args) {
+		// percent against exact decimal arithmetic, including the half cent ties
+		check(Money.percent(5, 10) == 1 && Money.percent(-5, 10) == -1, "half a cent");
+		check(Money.percent(15, 10) == 2 && Money.percent(25, 10) == 3 && Money.percent(-25, 10) == -3, "half cents");
+		check(Money.percent(4, 10) == 0 && Money.percent(-4, 10) == 0 && Money.percent(0, 10) == 0, "less than half a cent");
+		Random random = new Random(20);
+		for (int i = 0; i < AMOUNTS; i++) {
+			long cents = i % 2 == 0 ? random.nextInt(2000001) - 1000000 : random.nextLong() / 1000;
+			long percent = random.nextInt(400);
+			long expected = BigDecimal.valueOf(cents).multiply(BigDecimal.valueOf(percent)).divide(BigDecimal.valueOf(100))
+					.setScale(0, RoundingMode.HALF_UP).longValueExact();
+			long part = Money.percent(cents, percent);
+			check(part == expected, percent + "% of " + cents + " is " + part + ", not " + expected);
+			// the rest is what is left of the amount, so the two parts make the whole
+			check(part + (cents - part) == cents, "split of " + cents);
+		}
+
+		// overflow
+		checkThrows(() -> Money.percent(Long.MAX_VALUE / 50, 100), ArithmeticException.class, "percent overflow");
+		checkThrows(() -> Money.percent(Long.MIN_VALUE / 100, 100), ArithmeticException.class, "negative percent overflow");
+		checkThrows(() -> Money.times(Long.MAX_VALUE / 2, 3), ArithmeticException.class, "times overflow");
+		checkThrows(() -> Money.ofDollars(Double.NaN), ArithmeticException.class, "NaN dollars");
+		checkThrows(() -> Money.ofDollars(1e17), ArithmeticException.class, "too many dollars");
+
+		// parse: rounded half up (away from zero) to the cent, and only amounts a long holds
+		check(Money.parse(" 12.5 ") == 1250 && Money.parse("-0.05") == -5 && Money.parse("7") == 700, "parse");
+		check(Money.parse("0.005") == 1 && Money.parse("-0.005") == -1 && Money.parse("0.0049") == 0, "parse half a cent");
+		check(Money.parse("92233720368547758.07") == Long.MAX_VALUE, "parse the largest amount");
+		check(Money.parse("-92233720368547758.08") == Long.MIN_VALUE, "parse the smallest amount");
+		checkThrows(() -> Money.parse("92233720368547758.08"), NumberFormatException.class, "parse overflow");
+		checkThrows(() -> Money.parse("92233720368547758.075"), NumberFormatException.class, "parse overflow by rounding");
+		checkThrows(() -> Money.parse("1e30"), NumberFormatException.class, "parse 1e30");
+		checkThrows(() -> Money.parse("12,50"), NumberFormatException.class, "parse 12,50");
+		check(Money.format(-5).equals("-0.05") && Money.format(Money.parse("1234.5")).equals("1234.50"), "format");
+
+		// surge costs and driver fees of rides: what the users paid is the revenue plus what the drivers got
+		TMUberSystemManager tmuber = new TMUberSystemManager();
+		tmuber.setSurgePricing(new SurgePricing(0.13, 2.9));
+		String[] addresses = { "11 1st Street", "93 9th Avenue", "55 5th Street", "27 3rd Avenue", "81 8th Street" };
+		long paid = 0;
+		for (int i = 0; i < TRIPS; i++) {
+			tmuber.registerNewUser("User" + i, addresses[i % addresses.length], 1000000);
+			tmuber.registerNewDriver("Driver" + i, "Model", "PLATE" + i, addresses[(i * 3) % addresses.length]);
+		}
+		for (int i = 0; i < TRIPS; i++) {
+			String from = addresses[i % addresses.length];
+			String to = addresses[(i + 2) % addresses.length];
+			tmuber.requestRide(TMUberIds.USER_PREFIX + i, from, to);
+		}
+		long fees = 0;
+		// each ride took a driver, which drops it off
+		for (Driver driver : tmuber.getDriversList()) {
+			tmuber.dropOff(driver.getId());
+			fees += driver.getWallet();
+		}
+		for (int i = 0; i < TRIPS; i++)
+			paid += 1000000 - tmuber.getUser(TMUberIds.USER_PREFIX + i).getWallet();
+		check(paid > 0 && tmuber.getTotalRevenue() + fees == paid,
+				"paid " + paid + ", revenue " + tmuber.getTotalRevenue() + " and fees " + fees);
+		System.out.println("money ok, " + Money.format(paid) + " paid");
+	}
+
+	static void checkThrows(Runnable operation, Class<? extends Exception> expected, String message) {
+		try {
+			operation.run();
+		} catch (Exception e) {
+			check(expected.isInstance(e), message + ": " + e);
+			return;
+		}
+		throw new AssertionError(message + ": no " + expected.getSimpleName());
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.Objects;
+
+/*
+ *
+ * Changing the names and addresses of the users of an OffHeapUserStore over
+ * and over does not grow its strings: a string is overwritten when the new
+ * one fits, and the blocks it leaves are reused. Readers going on meanwhile,
+ * without the lock, only ever see whole strings.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out OffHeapUserStoreTest
+ */
+public class OffHeapUserStoreTest {
+	static final int USERS = 1000;
+	static final int CHANGES = 500000;
+	static final int LONGEST = 60;
+	// the longest string block: a header of 8 bytes and "u999:" with LONGEST characters, rounded up to 8
+	static final int BLOCK = 8 + 72;
+
+	static volatile boolean done;
+	static volatile AssertionError failure;
+
+	public static void main(String[] args) throws Exception {
+		OffHeapUserStore store = new OffHeapUserStore();
+		for (int i = 0; i < USERS; i++)
+			store.add(new User("id" + i, name(i, i), i % 7 == 0 ? null : name(i, 2 * i), 100));
+		long initial = store.stringBytes();
+
+		// a reader checks that every name it sees is one the user could have
+		long[] reads = new long[1];
+		Thread reader = new Thread(() -> {
+			try {
+				while (!done) {
+					for (int i = 0; i < USERS; i++) {
+						User user = store.get(i);
+						check(whole(user.getName(), i), "name " + user.getName() + " of user " + i);
+						String address = user.getAddress();
+						check(address == null || whole(address, i), "address " + address + " of user " + i);
+						reads[0]++;
+					}
+				}
+			} catch (AssertionError e) {
+				failure = e;
+			}
+		});
+		reader.start();
+		String[] names = new String[USERS];
+		String[] addresses = new String[USERS];
+		for (int change = 0; change < CHANGES; change++) {
+			int i = change % USERS;
+			User user = store.get(i);
+			names[i] = name(i, change);
+			user.setName(names[i]);
+			// addresses come and go, and change size both ways
+			addresses[i] = change % 5 == 0 ? null : name(i, change * 31);
+			user.setAddress(addresses[i]);
+		}
+		done = true;
+		reader.join();
+		if (failure != null)
+			throw failure;
+
+		for (int i = 0; i < USERS; i++) {
+			User user = store.get("id" + i);
+			check(user.getName().equals(names[i]), "name of user " + i);
+			check(Objects.equals(user.getAddress(), addresses[i]), "address of user " + i);
+		}
+		// every user holding its two strings in blocks of the longest size, and as much again freed
+		long bound = initial + 4L * USERS * BLOCK;
+		check(store.stringBytes() <= bound, store.stringBytes() + " bytes of strings, " + initial + " at first");
+		System.out.println("off heap strings ok, " + store.stringBytes() + " bytes after " + initial + ", "
+				+ reads[0] + " reads");
+	}
+
+	// A string of user i, from 1 to LONGEST characters, whose characters all tell its user and length
+	static String name(int i, int change) {
+		int length = 1 + Math.floorMod(change * 7 + i, LONGEST);
+		char c = (char) ('a' + (i + length) % 26);
+		return "u" + i + ":" + String.valueOf(c).repeat(length);
+	}
+
+	static boolean whole(String s, int i) {
+		String prefix = "u" + i + ":";
+		if (s == null || !s.startsWith(prefix) || s.length() == prefix.length())
+			return false;
+		int length = s.length() - prefix.length();
+		char c = (char) ('a' + (i + length) % 26);
+		for (int k = prefix.length(); k < s.length(); k++)
+			if (s.charAt(k) != c)
+				return false;
+		return true;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
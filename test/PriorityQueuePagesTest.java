@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+/*
+ *
+ * A PriorityServiceQueue lists, gets and removes its requests by position in
+ * the order they are picked up, through random offers, polls and
+ * cancellations, as a sorted reference set does. Paging through a long queue
+ * sorts it once, not once per page.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out PriorityQueuePagesTest
+ */
+public class PriorityQueuePagesTest {
+	static final int OPERATIONS = 50000;
+	static final int LONG_QUEUE = 200000;
+	static final int PAGE = 50;
+	static final ServicePriority PRIORITY = new ServicePriority();
+	static final User USER = new User("id", "User", "11 1st Street", 100000);
+
+	public static void main(String[] args) {
+		Random random = new Random(25);
+		PriorityServiceQueue queue = new PriorityServiceQueue(1 << 10, PRIORITY);
+		TreeSet<TMUberService> expected = new TreeSet<TMUberService>(
+				Comparator.comparingLong(PRIORITY::dueTime).thenComparingLong(TMUberService::getRequestId));
+		long requestId = 0;
+		long now = 0;
+		for (int i = 0; i < OPERATIONS; i++) {
+			int op = random.nextInt(10);
+			if (op < 4) {
+				// mostly in order of due time, so the sorted copy is often kept
+				now += random.nextInt(1000);
+				TMUberService service = request(++requestId, now, random.nextInt(4));
+				check(queue.offer(service) == expected.size() < queue.capacity(), "offer " + requestId);
+				if (expected.size() < queue.capacity())
+					expected.add(service);
+			} else if (op < 6) {
+				check(queue.poll() == expected.pollFirst(), "poll");
+			} else if (op == 6 && !expected.isEmpty()) {
+				// cancel by id, the first request or any other
+				TMUberService service = random.nextBoolean() ? expected.first() : get(expected, random.nextInt(expected.size()));
+				check(queue.removeById(service.getRequestId()) == service, "cancel " + service.getRequestId());
+				expected.remove(service);
+			} else if (op == 7 && !expected.isEmpty()) {
+				int index = random.nextInt(expected.size());
+				TMUberService service = get(expected, index);
+				check(queue.get(index) == service, "get " + index);
+				if (random.nextBoolean()) {
+					check(queue.removeAt(index) == service, "remove at " + index);
+					expected.remove(service);
+				}
+			} else {
+				checkPages(queue, expected, 1 + random.nextInt(20));
+			}
+			check(queue.size() == expected.size(), "size " + queue.size() + " of " + expected.size());
+		}
+
+		// every page of a long queue that does not change
+		PriorityServiceQueue longQueue = new PriorityServiceQueue(LONG_QUEUE, PRIORITY);
+		for (int i = 0; i < LONG_QUEUE; i++)
+			longQueue.offer(request(i + 1, random.nextInt(1000000), random.nextInt(4)));
+		long start = System.nanoTime();
+		TMUberService[] page = new TMUberService[PAGE];
+		TMUberService last = null;
+		int listed = 0;
+		for (int from = 0, copied; (copied = longQueue.copyTo(from, page, 0)) > 0; from += copied) {
+			for (int i = 0; i < copied; i++) {
+				check(last == null || PRIORITY.dueTime(last) <= PRIORITY.dueTime(page[i]), "order at " + (from + i));
+				last = page[i];
+			}
+			listed += copied;
+		}
+		long ms = (System.nanoTime() - start) / 1000000;
+		check(listed == LONG_QUEUE, "listed " + listed);
+		// each of the 4000 pages went through the whole queue before, for minutes
+		check(ms < 2000, LONG_QUEUE / PAGE + " pages in " + ms + " ms");
+		System.out.println("priority queue pages ok, " + LONG_QUEUE / PAGE + " pages in " + ms + " ms");
+	}
+
+	// A ride, XL ride or delivery queued at a time
+	static TMUberService request(long requestId, long queuedAt, int kind) {
+		TMUberService service;
+		if (kind == 3) {
+			service = new TMUberDelivery("11 1st Street", "22 2nd Street", USER, 2, 1000, "Restaurant", "Order");
+		} else {
+			TMUberRide ride = new TMUberRide("11 1st Street", "22 2nd Street", USER, 2, 1000);
+			ride.setRequestedXL(kind == 2);
+			service = ride;
+		}
+		service.setRequestId(requestId);
+		service.setQueuedAt(queuedAt);
+		return service;
+	}
+
+	// Copy the queue page by page and compare with the expected order
+	static void checkPages(PriorityServiceQueue queue, TreeSet<TMUberService> expected, int pageSize) {
+		ArrayList<TMUberService> listed = new ArrayList<TMUberService>();
+		TMUberService[] page = new TMUberService[pageSize];
+		for (int from = 0, copied; (copied = queue.copyTo(from, page, 0)) > 0; from += copied)
+			for (int i = 0; i < copied; i++)
+				listed.add(page[i]);
+		check(same(listed, new ArrayList<TMUberService>(expected)), "pages of " + pageSize);
+		ArrayList<TMUberService> iterated = new ArrayList<TMUberService>();
+		for (TMUberService service : queue)
+			iterated.add(service);
+		check(same(iterated, listed), "iteration");
+	}
+
+	// The same requests in the same order (equal requests are those of a user, see TMUberService.equals)
+	static boolean same(ArrayList<TMUberService> a, ArrayList<TMUberService> b) {
+		if (a.size() != b.size())
+			return false;
+		for (int i = 0; i < a.size(); i++)
+			if (a.get(i) != b.get(i))
+				return false;
+		return true;
+	}
+
+	static TMUberService get(TreeSet<TMUberService> set, int index) {
+		int i = 0;
+		for (TMUberService service : set)
+			if (i++ == index)
+				return service;
+		throw new IndexOutOfBoundsException("" + index);
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,79 @@
+import java.util.HashSet;
+
+/*
+ *
+ * Rezoning a system changes its own zones only, and while requests are made
+ * and cancelled during the rezone every queued request ends up once in the
+ * queue of its new zone, oldest first.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out RezoneTest
+ */
+public class RezoneTest {
+	static final int REQUESTS = 3000;
+	static final String[] ADDRESSES = { "34 4th Street", "51 7th Avenue", "12 2nd Street", "81 8th Avenue", "22 2nd Avenue",
+			"77 7th Street", "19 9th Avenue", "93 3rd Street" };
+	static final String TO = "55 5th Avenue";
+
+	public static void main(String[] args) throws Exception {
+		CityMap.reset();
+		TMUberSystemManager tmuber = system();
+		TMUberSystemManager other = system();
+		for (int i = 0; i < ADDRESSES.length; i++)
+			other.requestRide(TMUberIds.USER_PREFIX + i, ADDRESSES[i], TO);
+		tmuber.rezone(9);
+		check(tmuber.getNumZones() == 9, "zones " + tmuber.getNumZones());
+		check(CityMap.getNumZones() == 4 && other.getNumZones() == 4, "the city and other systems keep their zones");
+		check(other.getZones() == CityMap.getZones(), "zones of the other system");
+		checkQueues(other, ADDRESSES.length);
+
+		// requests and cancellations go on while the system is rezoned
+		int[] cancelled = new int[1];
+		Thread requester = new Thread(() -> {
+			for (int i = 0; i < REQUESTS; i++) {
+				long requestId = tmuber.requestRide(TMUberIds.USER_PREFIX + i, ADDRESSES[i % ADDRESSES.length], TO);
+				if (i % 3 == 0) {
+					tmuber.cancelServiceRequest(requestId);
+					cancelled[0]++;
+				}
+			}
+		});
+		requester.start();
+		for (int zones = 1; requester.isAlive(); zones = zones % 12 + 1)
+			tmuber.rezone(zones);
+		requester.join();
+		checkQueues(tmuber, REQUESTS - cancelled[0]);
+		tmuber.rezone(5);
+		checkQueues(tmuber, REQUESTS - cancelled[0]);
+		System.out.println("rezone ok");
+	}
+
+	// A system with a user and an available driver per request
+	static TMUberSystemManager system() {
+		TMUberSystemManager tmuber = new TMUberSystemManager();
+		for (int i = 0; i < REQUESTS; i++) {
+			tmuber.registerNewUser("User" + i, ADDRESSES[i % ADDRESSES.length], 100000);
+			tmuber.registerNewDriver("Driver" + i, "Model", "PLATE" + i, ADDRESSES[i % ADDRESSES.length]);
+		}
+		return tmuber;
+	}
+
+	// Every request is queued once, in the queue of its zone in the zones of the system, oldest first
+	static void checkQueues(TMUberSystemManager tmuber, int expected) {
+		HashSet<Long> ids = new HashSet<Long>();
+		for (int zone = 0; zone < tmuber.getNumZones(); zone++) {
+			long last = 0;
+			for (TMUberService service : tmuber.getQueue(zone)) {
+				check(tmuber.getZones().getZone(service.getFrom()) == zone, service.getFrom() + " queued in zone " + zone);
+				check(ids.add(service.getRequestId()), "request " + service.getRequestId() + " queued twice");
+				check(service.getRequestId() > last, "request " + service.getRequestId() + " queued after " + last);
+				last = service.getRequestId();
+			}
+		}
+		check(ids.size() == expected, "queued " + ids.size() + " of " + expected);
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/*
+ *
+ * A ServiceQueue is a FIFO queue with positions, as a reference list is,
+ * through random offers, polls, cancellations by id and by position, and
+ * removals while iterating, as the ring grows, wraps around and compacts
+ * the emptied slots. Zone queues shared by threads, each guarded by the
+ * lock of its zone as TMUberSystemManager does, hand out every request
+ * offered exactly once, polled in the order it was offered or cancelled,
+ * and reject requests past their capacity.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out ServiceQueueTest
+ */
+public class ServiceQueueTest {
+	static final int OPERATIONS = 300000;
+	static final int CAPACITY = 200; // rounded up to 256
+	static final int ZONES = 4;
+	static final int ZONE_CAPACITY = 64;
+	static final int PRODUCERS = 3;
+	static final int CONSUMERS = 3;
+	static final int OFFERS = 100000; // per producer
+	static final User USER = new User("id", "User", "11 1st Street", 100000);
+
+	static volatile AssertionError failure;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(6);
+		ServiceQueue queue = new ServiceQueue(CAPACITY);
+		check(queue.capacity() == 256, "capacity " + queue.capacity());
+		ArrayList<TMUberService> expected = new ArrayList<TMUberService>();
+		long requestId = 0;
+		for (int i = 0; i < OPERATIONS; i++) {
+			int op = random.nextInt(12);
+			if (op < 5) {
+				// runs of offers fill the queue up to its capacity
+				for (int n = 1 + random.nextInt(op == 0 ? 100 : 3); n > 0; n--) {
+					TMUberService service = request(++requestId);
+					boolean room = expected.size() < queue.capacity();
+					check(queue.offer(service) == room, "offer " + requestId);
+					if (room)
+						expected.add(service);
+					check(queue.remainingCapacity() == queue.capacity() - expected.size(), "remaining capacity");
+				}
+			} else if (op < 7) {
+				check(queue.peek() == (expected.isEmpty() ? null : expected.get(0)), "peek");
+				check(queue.poll() == (expected.isEmpty() ? null : expected.remove(0)), "poll");
+			} else if (op == 7) {
+				// cancel by id, a queued request or one that is gone
+				if (!expected.isEmpty() && random.nextInt(4) > 0) {
+					TMUberService service = expected.remove(random.nextInt(expected.size()));
+					check(queue.containsId(service.getRequestId()), "contains " + service.getRequestId());
+					check(queue.removeById(service.getRequestId()) == service, "cancel " + service.getRequestId());
+					check(!queue.containsId(service.getRequestId()), "cancelled " + service.getRequestId());
+				} else {
+					long gone = 1 + (long) random.nextInt((int) requestId + 1);
+					if (gone <= requestId && !containsId(expected, gone))
+						check(queue.removeById(gone) == null, "cancel of " + gone + " twice");
+				}
+			} else if (op == 8 && !expected.isEmpty()) {
+				// cancel by position, as the listings show it
+				int index = random.nextInt(expected.size());
+				check(queue.get(index) == expected.get(index), "get " + index);
+				check(queue.removeAt(index) == expected.remove(index), "remove at " + index);
+			} else if (op == 9) {
+				// remove some requests while going through the queue
+				Iterator<TMUberService> it = queue.iterator();
+				int index = 0;
+				while (it.hasNext()) {
+					TMUberService service = it.next();
+					check(service == expected.get(index), "iterator at " + index);
+					if (random.nextInt(8) == 0) {
+						it.remove();
+						expected.remove(index);
+					} else {
+						index++;
+					}
+				}
+				check(index == expected.size(), "iterated " + index + " of " + expected.size());
+			} else if (op == 10) {
+				checkPages(queue, expected, 1 + random.nextInt(40));
+			} else if (op == 11 && random.nextInt(50) == 0) {
+				queue.clear();
+				expected.clear();
+			}
+			check(queue.size() == expected.size(), "size " + queue.size() + " of " + expected.size());
+		}
+		checkPages(queue, expected, 7);
+		checkIndexes(queue);
+
+		// producers and consumers on the zone queues
+		ServiceQueue[] queues = new ServiceQueue[ZONES];
+		Object[] locks = new Object[ZONES];
+		// the sequence number last polled from each zone for each producer, and the consumer that polled each
+		// request, changed holding the lock of the zone
+		long[][] lastPolled = new long[ZONES][PRODUCERS];
+		byte[][] polledBy = new byte[PRODUCERS][OFFERS];
+		for (int z = 0; z < ZONES; z++) {
+			queues[z] = new ServiceQueue(ZONE_CAPACITY);
+			locks[z] = new Object();
+			Arrays.fill(lastPolled[z], -1);
+		}
+		// 1: offered and queued, 2: rejected, 4: cancelled by its producer
+		byte[][] states = new byte[PRODUCERS][OFFERS];
+		long[] polled = new long[CONSUMERS];
+		Thread[] threads = new Thread[PRODUCERS + CONSUMERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			threads[p] = new Thread(() -> {
+				try {
+					Random r = new Random(producer);
+					for (int seq = 0; seq < OFFERS; seq++) {
+						int zone = r.nextInt(ZONES);
+						boolean queued;
+						synchronized (locks[zone]) {
+							queued = queues[zone].offer(request((long) producer * OFFERS + seq));
+						}
+						states[producer][seq] = queued ? (byte) 1 : (byte) 2;
+						if (seq > 0 && r.nextInt(4) == 0) {
+							// cancel one of the last requests, unless it was polled meanwhile
+							int old = seq - r.nextInt(Math.min(seq, 2 * ZONE_CAPACITY));
+							TMUberService cancelled = null;
+							for (int z = 0; z < ZONES && cancelled == null; z++)
+								synchronized (locks[z]) {
+									cancelled = queues[z].removeById((long) producer * OFFERS + old);
+								}
+							if (cancelled != null) {
+								check(states[producer][old] == 1, "cancelled request " + old + " of producer " + producer);
+								states[producer][old] = 4;
+							}
+						}
+						if (seq % 64 == 0)
+							Thread.yield();
+					}
+				} catch (AssertionError e) {
+					failure = e;
+				}
+			});
+		}
+		for (int c = 0; c < CONSUMERS; c++) {
+			final int consumer = c;
+			threads[PRODUCERS + c] = new Thread(() -> {
+				try {
+					Random r = new Random(100 + consumer);
+					int idle = 0;
+					while (idle < 1000) {
+						int zone = r.nextInt(ZONES);
+						TMUberService service;
+						synchronized (locks[zone]) {
+							service = queues[zone].poll();
+							if (service != null) {
+								int producer = (int) (service.getRequestId() / OFFERS);
+								int seq = (int) (service.getRequestId() % OFFERS);
+								check(seq > lastPolled[zone][producer], "zone " + zone + " polled " + seq + " of producer "
+										+ producer + " after " + lastPolled[zone][producer]);
+								lastPolled[zone][producer] = seq;
+								check(polledBy[producer][seq] == 0, "request " + seq + " of producer " + producer + " polled twice");
+								polledBy[producer][seq] = (byte) (consumer + 1);
+							}
+						}
+						if (service == null) {
+							idle++;
+							Thread.yield();
+							continue;
+						}
+						idle = 0;
+						polled[consumer]++;
+					}
+				} catch (AssertionError e) {
+					failure = e;
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		if (failure != null)
+			throw failure;
+
+		// what is left in the queues, then every request is in exactly one place
+		byte[][] left = new byte[PRODUCERS][OFFERS];
+		for (int z = 0; z < ZONES; z++) {
+			checkIndexes(queues[z]);
+			for (TMUberService service; (service = queues[z].poll()) != null;)
+				left[(int) (service.getRequestId() / OFFERS)][(int) (service.getRequestId() % OFFERS)]++;
+		}
+		long queued = 0, rejected = 0, cancelled = 0, consumed = 0, remaining = 0;
+		for (int p = 0; p < PRODUCERS; p++) {
+			for (int seq = 0; seq < OFFERS; seq++) {
+				int places = (polledBy[p][seq] > 0 ? 1 : 0) + (states[p][seq] == 4 ? 1 : 0) + left[p][seq];
+				String request = "request " + seq + " of producer " + p;
+				check(states[p][seq] != 0, request + " not offered");
+				if (states[p][seq] == 2) {
+					check(places == 0, request + " rejected and queued");
+					rejected++;
+					continue;
+				}
+				check(places == 1, request + " in " + places + " places");
+				queued++;
+				cancelled += states[p][seq] == 4 ? 1 : 0;
+				remaining += left[p][seq];
+			}
+		}
+		for (long n : polled)
+			consumed += n;
+		check(consumed + cancelled + remaining == queued, "queued " + queued + ", polled " + consumed + ", cancelled "
+				+ cancelled + ", left " + remaining);
+		System.out.println("service queue ok, " + queued + " queued, " + rejected + " rejected, " + consumed + " polled, "
+				+ cancelled + " cancelled");
+	}
+
+	static TMUberService request(long requestId) {
+		TMUberService service = new TMUberRide("11 1st Street", "22 2nd Street", USER, 2, 1000);
+		service.setRequestId(requestId);
+		return service;
+	}
+
+	static boolean containsId(ArrayList<TMUberService> services, long requestId) {
+		for (TMUberService service : services)
+			if (service.getRequestId() == requestId)
+				return true;
+		return false;
+	}
+
+	// Copy the queue page by page and compare with the expected order
+	static void checkPages(ServiceQueue queue, ArrayList<TMUberService> expected, int pageSize) {
+		TMUberService[] page = new TMUberService[pageSize];
+		int listed = 0;
+		for (int from = 0, copied; (copied = queue.copyTo(from, page, 0)) > 0; from += copied) {
+			for (int i = 0; i < copied; i++)
+				check(page[i] == expected.get(from + i), "page of " + pageSize + " at " + (from + i));
+			listed += copied;
+		}
+		check(listed == expected.size(), "listed " + listed + " of " + expected.size());
+	}
+
+	// Every request is found by its id and at its position
+	static void checkIndexes(ServiceQueue queue) {
+		int index = 0;
+		for (TMUberService service : queue) {
+			check(queue.containsId(service.getRequestId()), "index of " + service.getRequestId());
+			check(queue.get(index++) == service, "position " + (index - 1));
+		}
+		check(index == queue.size(), "iterated " + index + " of " + queue.size());
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
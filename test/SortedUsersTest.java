@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/*
+ *
+ * SortedUsers lists its users in the order of a sorted reference list, from
+ * either end, as users are added one at a time or all at once and their
+ * wallets change over and over: chunks fill up and split, and empty out and
+ * are dropped when their users move to other keys. Many users share a
+ * wallet or the first characters of their name, and some have ids of other
+ * nodes or ids that are not TMUberIds. While users are moved, an iterator
+ * still returns every user that did not move exactly once and in order.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out SortedUsersTest
+ */
+public class SortedUsersTest {
+	static final int USERS = 20000;
+	static final int UPDATES = 100000;
+	static final int CHECK_EVERY = 5000;
+	static final int MOVING = 2000; // users moved while iterating
+	static final String[] NAMES = { "Anna", "Annabel", "Annabelle", "Ann", "Bob", "Bobby", "Zoe", "", "Anna Maria" };
+	static final TMUberIds IDS = new TMUberIds(TMUberIds.USER_PREFIX);
+	static final Comparator<User> BY_NAME = (a, b) -> a.getName().compareTo(b.getName());
+
+	static volatile boolean done;
+	static volatile AssertionError failure;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(24);
+		ArrayList<User> users = new ArrayList<User>();
+		for (int i = 0; i < USERS; i++)
+			users.add(new User(accountId(i), name(random), null, wallet(random)));
+
+		// by wallet, added one at a time and moved
+		SortedUsers byWallet = new SortedUsers(User::getWallet, IDS);
+		Comparator<User> walletOrder = Comparator.comparingLong(User::getWallet);
+		for (int i = 0; i < USERS; i++) {
+			byWallet.update(users.get(i));
+			if (i % 997 == 0)
+				checkOrder(byWallet, users.subList(0, i + 1), walletOrder);
+		}
+		checkOrder(byWallet, users, walletOrder);
+		move(byWallet, users, walletOrder, random);
+
+		// by name with ties (names do not change, see SortedUsers), half all at once then the others as they register
+		SortedUsers byName = new SortedUsers(user -> SortedUsers.prefix(user.getName()), BY_NAME, IDS);
+		byName.addAll(users.subList(0, USERS / 2).toArray(new User[0]));
+		Comparator<User> nameOrder = Comparator.comparingLong((User user) -> SortedUsers.prefix(user.getName())).thenComparing(BY_NAME);
+		checkOrder(byName, users.subList(0, USERS / 2), nameOrder);
+		for (int i = USERS / 2; i < USERS; i++) {
+			byName.update(users.get(i));
+			if (i % 997 == 0)
+				checkOrder(byName, users.subList(0, i + 1), nameOrder);
+		}
+		checkOrder(byName, users, nameOrder);
+
+		// users that do not move are returned once and in order while the others move
+		SortedUsers sorted = new SortedUsers(User::getWallet, IDS);
+		sorted.addAll(users.toArray(new User[0]));
+		ArrayList<User> stable = new ArrayList<User>(users.subList(MOVING, USERS));
+		stable.sort(order(walletOrder));
+		HashSet<String> moving = new HashSet<String>();
+		for (int i = 0; i < MOVING; i++)
+			moving.add(users.get(i).getAccountId());
+		Thread mover = new Thread(() -> {
+			Random r = new Random(2024);
+			try {
+				while (!done) {
+					User user = users.get(r.nextInt(MOVING));
+					user.setWallet(wallet(r));
+					sorted.update(user);
+				}
+			} catch (RuntimeException e) {
+				failure = new AssertionError("moving users: " + e, e);
+			}
+		});
+		mover.start();
+		int listings = 0;
+		try {
+			for (long end = System.nanoTime() + 1000000000L; System.nanoTime() < end; listings++) {
+				checkStable(sorted.iterator(), stable, moving, false);
+				checkStable(sorted.descendingIterator(), stable, moving, true);
+			}
+		} finally {
+			done = true;
+			mover.join();
+		}
+		if (failure != null)
+			throw failure;
+		checkOrder(sorted, users, walletOrder);
+		System.out.println("sorted users ok, " + listings + " listings while moving users");
+	}
+
+	// Move random users to new wallets, then all the users of the lowest wallets past most of the others and
+	// back, which empties and drops chunks and fills and splits others
+	static void move(SortedUsers sorted, ArrayList<User> users, Comparator<User> walletOrder, Random random) {
+		for (int i = 0; i < UPDATES; i++) {
+			User user = users.get(random.nextInt(USERS));
+			user.setWallet(wallet(random));
+			sorted.update(user);
+			if (i % CHECK_EVERY == 0)
+				checkOrder(sorted, users, walletOrder);
+		}
+		for (int round = 0; round < 2; round++) {
+			for (User user : users) {
+				if (user.getWallet() < 300) {
+					user.setWallet(user.getWallet() + 2000);
+					sorted.update(user);
+				}
+			}
+			checkOrder(sorted, users, walletOrder);
+			for (User user : users) {
+				if (user.getWallet() >= 2000) {
+					user.setWallet(user.getWallet() - 2000);
+					sorted.update(user);
+				}
+			}
+			checkOrder(sorted, users, walletOrder);
+		}
+		check(sorted.size() == USERS, "size " + sorted.size());
+	}
+
+	// The iterators, from either end, return the users in the order of a sorted list
+	static void checkOrder(SortedUsers sorted, List<User> users, Comparator<User> byKey) {
+		ArrayList<User> expected = new ArrayList<User>(users);
+		expected.sort(order(byKey));
+		check(sorted.size() == expected.size(), "size " + sorted.size() + " of " + expected.size());
+		int i = 0;
+		for (Iterator<User> it = sorted.iterator(); it.hasNext(); i++)
+			check(i < expected.size() && it.next() == expected.get(i), "user " + i);
+		check(i == expected.size(), "listed " + i + " of " + expected.size());
+		for (Iterator<User> it = sorted.descendingIterator(); it.hasNext(); i--)
+			check(i > 0 && it.next() == expected.get(i - 1), "user " + (i - 1) + " from the end");
+		check(i == 0, "listed from the end " + (expected.size() - i) + " of " + expected.size());
+	}
+
+	// Users that did not move are all returned once and in order, the others at most twice
+	static void checkStable(Iterator<User> it, ArrayList<User> stable, HashSet<String> moving, boolean descending) {
+		int next = descending ? stable.size() - 1 : 0;
+		int moved = 0;
+		while (it.hasNext()) {
+			User user = it.next();
+			if (moving.contains(user.getAccountId())) {
+				moved++;
+				continue;
+			}
+			check(next >= 0 && next < stable.size() && user == stable.get(next), "user " + user.getAccountId()
+					+ (descending ? " from the end" : "") + " instead of " + next);
+			next += descending ? -1 : 1;
+		}
+		check(next == (descending ? -1 : stable.size()), "listed " + next + " of " + stable.size() + " users that did not move");
+		check(moved <= 2 * moving.size(), moved + " users that moved");
+	}
+
+	// The order of SortedUsers: by key, then account id number, then account id for the ids that are not TMUberIds
+	static Comparator<User> order(Comparator<User> byKey) {
+		return byKey.thenComparingLong((User user) -> IDS.parse(user.getAccountId())).thenComparing((a, b) -> {
+			if (IDS.parse(a.getAccountId()) >= 0)
+				return 0;
+			return a.getAccountId().compareTo(b.getAccountId());
+		});
+	}
+
+	// Ids of this node mostly, and some of other nodes or not made by TMUberIds
+	static String accountId(int i) {
+		if (i % 10 == 3)
+			return IDS.format(TMUberIds.id(1 + i % 3, i));
+		if (i % 10 == 7)
+			return "guest" + i;
+		return IDS.format(TMUberIds.id(0, i));
+	}
+
+	// Wallets of a few hundred cents, most shared by many users
+	static long wallet(Random random) {
+		return random.nextInt(4) == 0 ? random.nextInt(1000000) : random.nextInt(500);
+	}
+
+	static String name(Random random) {
+		return NAMES[random.nextInt(NAMES.length)] + (random.nextBoolean() ? "" : (char) ('a' + random.nextInt(3)));
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
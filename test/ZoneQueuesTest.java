@@ -0,0 +1,81 @@
+/*
+ *
+ * A system with thousands of zones only pays for the requests it queues:
+ * every zone queue starts small and grows as requests come.
+ *
+ * javac -d out src/*.java test/*.java && java -cp out ZoneQueuesTest
+ */
+public class ZoneQueuesTest {
+	// Largest number of zones the system is built and benchmarked with, and one zone per block of a 256 x 256 city
+	static final int[][] CITIES = { { 64, 64, 64, 64 }, { 256, 256, 256, 256 } };
+
+	public static void main(String[] args) {
+		for (int[] city : CITIES) {
+			CityMap.configure(city[0], city[1], city[2], city[3]);
+			int numZones = CityMap.getNumZones();
+			long before = usedMemory();
+			TMUberSystemManager tmuber = new TMUberSystemManager();
+			long used = usedMemory() - before;
+			check(tmuber.getNumZones() == numZones, "zones " + tmuber.getNumZones());
+			// about 1 MB per zone when the queues were allocated at full capacity
+			check(used < 64L * 1024 * 1024, numZones + " zones take " + used / 1024 + " KB");
+
+			// requests queue past the first slots of a zone, and the zone still works after rezoning
+			String address = (city[0] / 2) + "1 " + ordinal(city[1] / 2) + " Street";
+			String to = "11 1st Avenue";
+			int users = 100;
+			for (int i = 0; i < users; i++) {
+				tmuber.registerNewUser("User" + i, address, 100000);
+				// each request claims a driver
+				tmuber.registerNewDriver("Driver" + i, "Model", "PLATE" + i, address);
+			}
+			for (int i = 0; i < users; i++)
+				tmuber.requestRide(TMUberIds.USER_PREFIX + i, address, to);
+			int zone = CityMap.getCityZone(address);
+			check(tmuber.getQueue(zone).size() == users, "queued " + tmuber.getQueue(zone).size());
+			tmuber.rezone(numZones);
+			int queued = 0;
+			for (int i = 0; i < tmuber.getNumZones(); i++)
+				queued += tmuber.getQueue(i).size();
+			check(queued == users, "queued after rezoning " + queued);
+			check(usedMemory() - before < 128L * 1024 * 1024, "rezoning " + numZones + " zones");
+			System.out.printf("%d zones: %d KB%n", numZones, used / 1024);
+		}
+		// the tables kept per block do not go past MAX_BLOCKS
+		try {
+			CityMap.configure(CityMap.MAX_SIZE, CityMap.MAX_SIZE, 1, 1);
+			check(false, "a city of " + CityMap.MAX_SIZE + " x " + CityMap.MAX_SIZE + " blocks");
+		} catch (IllegalArgumentException e) {
+			check(CityMap.getNumBlocks() == 256 * 256, "the city is kept");
+		}
+		CityMap.reset();
+		System.out.println("zone queues ok");
+	}
+
+	static String ordinal(int n) {
+		if (n % 100 >= 11 && n % 100 <= 13)
+			return n + "th";
+		switch (n % 10) {
+		case 1:
+			return n + "st";
+		case 2:
+			return n + "nd";
+		case 3:
+			return n + "rd";
+		default:
+			return n + "th";
+		}
+	}
+
+	static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}